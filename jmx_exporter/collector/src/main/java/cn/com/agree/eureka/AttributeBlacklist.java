@@ -0,0 +1,83 @@
+package cn.com.agree.eureka;
+
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AttributeBlacklist remembers mBean attributes that keep failing to be read, such as getters throwing
+ * UnsupportedOperationException. Once an attribute failed {@code failureThreshold} times in a row it is left out of
+ * the bulk fetches for {@code blacklistMillis}, after which it is tried again.
+ */
+class AttributeBlacklist {
+    private final int failureThreshold;
+    private final long blacklistMillis;
+    private final Map<ObjectName, Map<String, Failures>> failuresPerBean =
+            new ConcurrentHashMap<ObjectName, Map<String, Failures>>();
+
+    AttributeBlacklist(int failureThreshold, long blacklistMillis) {
+        this.failureThreshold = failureThreshold;
+        this.blacklistMillis = blacklistMillis;
+    }
+
+    public boolean isBlacklisted(ObjectName mbeanName, String attrName, long nowMillis) {
+        Map<String, Failures> failures = failuresPerBean.get(mbeanName);
+        if (failures == null) {
+            return false;
+        }
+        Failures attrFailures = failures.get(attrName);
+        return attrFailures != null && attrFailures.blacklistedUntilMillis > nowMillis;
+    }
+
+    public void recordFailure(ObjectName mbeanName, String attrName, long nowMillis) {
+        // Concurrent scrapes record the outcomes of the same bean: the per bean map is only changed while the entry is
+        // locked, so that recordSuccess cannot drop it while a failure is being added.
+        failuresPerBean.compute(mbeanName, (name, failures) -> {
+            if (failures == null) {
+                failures = new ConcurrentHashMap<String, Failures>();
+            }
+            Failures attrFailures = failures.computeIfAbsent(attrName, attr -> new Failures());
+            if (attrFailures.consecutive.incrementAndGet() >= failureThreshold) {
+                attrFailures.blacklistedUntilMillis = nowMillis + blacklistMillis;
+            }
+            return failures;
+        });
+    }
+
+    public void recordSuccess(ObjectName mbeanName, String attrName) {
+        failuresPerBean.computeIfPresent(mbeanName, (name, failures) -> {
+            failures.remove(attrName);
+            return failures.isEmpty() ? null : failures;
+        });
+    }
+
+    /**
+     * @return the number of attributes currently left out of the fetches.
+     */
+    public int blacklistedCount(long nowMillis) {
+        int count = 0;
+        for (Map<String, Failures> failures : failuresPerBean.values()) {
+            for (Failures attrFailures : failures.values()) {
+                if (attrFailures.blacklistedUntilMillis > nowMillis) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        for (ObjectName prevName : failuresPerBean.keySet()) {
+            if (!latestBeans.contains(prevName)) {
+                failuresPerBean.remove(prevName);
+            }
+        }
+    }
+
+    private static class Failures {
+        final AtomicInteger consecutive = new AtomicInteger();
+        volatile long blacklistedUntilMillis;
+    }
+}
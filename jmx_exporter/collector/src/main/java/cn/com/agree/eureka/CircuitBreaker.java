@@ -0,0 +1,88 @@
+package cn.com.agree.eureka;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CircuitBreaker stops sending requests to a Eureka peer that keeps failing.
+ *
+ * After {@code failureThreshold} consecutive failures the circuit opens: the peer is reported DOWN without any
+ * network I/O. Once the backoff is over a single probe request is let through (half open). If it succeeds the circuit
+ * closes, otherwise it opens again with twice the backoff, up to {@code maxBackoffMillis}. The actual wait is drawn
+ * between half and all of the backoff, so that exporters started together do not probe a peer in lockstep.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long backoffMillis;
+    private long retryAtMillis;
+    private final AtomicLong[] transitions = new AtomicLong[State.values().length];
+
+    CircuitBreaker(int failureThreshold, long initialBackoffMillis, long maxBackoffMillis, Random random) {
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.random = random;
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @return true if a request may be sent to the peer. In the half open state only the probe is allowed.
+     */
+    public synchronized boolean allowRequest(long nowMillis) {
+        if (state == State.OPEN && nowMillis >= retryAtMillis) {
+            transition(State.HALF_OPEN);
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        backoffMillis = 0;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordFailure(long nowMillis) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            backoffMillis = backoffMillis == 0 ? initialBackoffMillis : Math.min(maxBackoffMillis, backoffMillis * 2);
+            retryAtMillis = nowMillis + backoffMillis / 2 + (long) (random.nextDouble() * (backoffMillis / 2));
+            transition(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of times the circuit entered the given state.
+     */
+    public long getTransitions(State to) {
+        return transitions[to.ordinal()].get();
+    }
+
+    synchronized long getRetryAtMillis() {
+        return retryAtMillis;
+    }
+
+    private void transition(State to) {
+        state = to;
+        transitions[to.ordinal()].incrementAndGet();
+    }
+}
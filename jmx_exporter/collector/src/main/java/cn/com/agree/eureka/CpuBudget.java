@@ -0,0 +1,124 @@
+package cn.com.agree.eureka;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * CpuBudget caps the CPU time the scrapes of a collector spend in the JVM they run in, per scrape and per minute, as
+ * measured by {@link ThreadMXBean#getCurrentThreadCpuTime()} on the scraping threads.
+ *
+ * The per minute budget is a bucket refilled continuously up to one minute worth of budget, so that a burst of
+ * scrapes after a quiet period is allowed but the average stays below the limit. A scrape checks its {@link Usage}
+ * between beans: once the budget is exhausted, the remaining beans are served from the last values instead of being
+ * fetched (see {@link JmxScraper}).
+ */
+class CpuBudget {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final long MINUTE_NANOS = 60 * 1000000000L;
+
+    private final long perScrapeNanos;
+    private final long perMinuteNanos;
+    private long availableNanos;
+    private long refilledAtNanos;
+
+    /**
+     * @param perScrapeNanos CPU time a single scrape may use, 0 for no limit.
+     * @param perMinuteNanos CPU time all the scrapes may use per minute, 0 for no limit.
+     */
+    CpuBudget(long perScrapeNanos, long perMinuteNanos) {
+        this.perScrapeNanos = perScrapeNanos;
+        this.perMinuteNanos = perMinuteNanos;
+        this.availableNanos = perMinuteNanos;
+        this.refilledAtNanos = System.nanoTime();
+    }
+
+    boolean isLimited() {
+        return (perScrapeNanos > 0 || perMinuteNanos > 0) && currentThreadCpuNanos() >= 0;
+    }
+
+    /**
+     * @return the CPU time of the current thread, -1 if the JVM does not measure it.
+     */
+    static long currentThreadCpuNanos() {
+        if (!THREADS.isCurrentThreadCpuTimeSupported() || !THREADS.isThreadCpuTimeEnabled()) {
+            return -1;
+        }
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Start measuring a scrape running on the current thread.
+     */
+    Usage begin() {
+        return new Usage();
+    }
+
+    /**
+     * Charge CPU time spent outside of a scrape, e.g. by a background refresh.
+     */
+    synchronized void charge(long cpuNanos) {
+        refill();
+        availableNanos -= cpuNanos;
+    }
+
+    private synchronized boolean isMinuteBudgetExhausted(long pendingNanos) {
+        if (perMinuteNanos <= 0) {
+            return false;
+        }
+        refill();
+        return availableNanos - pendingNanos <= 0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double refill = (double) (now - refilledAtNanos) * perMinuteNanos / MINUTE_NANOS;
+        availableNanos = (long) Math.min(perMinuteNanos, availableNanos + refill);
+        refilledAtNanos = now;
+    }
+
+    /**
+     * The CPU time of a scrape, only valid on the thread that began it.
+     */
+    class Usage {
+        private final long startNanos = currentThreadCpuNanos();
+        private boolean exhausted;
+        private long cpuNanos = -1;
+
+        /**
+         * @return true once the scrape went over its budget or the per minute budget is exhausted.
+         */
+        boolean isExhausted() {
+            if (!exhausted && startNanos >= 0) {
+                long used = currentThreadCpuNanos() - startNanos;
+                exhausted = (perScrapeNanos > 0 && used >= perScrapeNanos) || isMinuteBudgetExhausted(used);
+            }
+            return exhausted;
+        }
+
+        /**
+         * @return true if the scrape found its budget exhausted, without measuring again.
+         */
+        boolean wasExhausted() {
+            return exhausted;
+        }
+
+        CpuBudget getBudget() {
+            return CpuBudget.this;
+        }
+
+        /**
+         * Charge the CPU time of the scrape to the per minute budget. Only the first call measures it.
+         *
+         * @return the CPU time of the scrape, -1 if not measured.
+         */
+        long end() {
+            if (cpuNanos < 0 && startNanos >= 0) {
+                cpuNanos = currentThreadCpuNanos() - startNanos;
+                if (perMinuteNanos > 0) {
+                    charge(cpuNanos);
+                }
+            }
+            return cpuNanos;
+        }
+    }
+}
@@ -1,25 +1,42 @@
 package cn.com.agree.eureka;
 
+import cn.com.agree.eureka.core.NamedThreadFactory;
 import cn.com.agree.eureka.util.HttpClient;
 import cn.com.agree.eureka.util.XmlTool;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.yaml.snakeyaml.Yaml;
 
 
 import javax.management.MalformedObjectNameException;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -37,8 +54,10 @@ import java.util.stream.Collectors;
  * <pre>
  *   eureka_nodes_info{version="3.2.0",name="jmx_prometheus_httpserver",} 1.0
  * </pre>
+ * The collector owns a pooled HTTP client whose connections are kept alive between scrapes,
+ * call {@link #close()} to release them.
  */
-public class EurekaInfoCollector extends Collector {
+public class EurekaInfoCollector extends Collector implements Closeable {
 
   private static final Logger LOGGER = Logger.getLogger(EurekaInfoCollector.class.getName());
 
@@ -46,6 +65,19 @@ public class EurekaInfoCollector extends Collector {
   private static final String EUREKA_METRIC_ENABLED = "metric.eureka.enabled";
   private static final String EUREKA_CLUSTER = "metric.eureka.cluster";
   private static final String EUREKA_CLUSTER_NAME = "metric.eureka.clusterName";
+  private static final String EUREKA_MAX_CONNECTIONS_PER_ROUTE = "metric.eureka.maxConnectionsPerRoute";
+  private static final String EUREKA_IDLE_CONNECTION_SECONDS = "metric.eureka.idleConnectionSeconds";
+  private static final String EUREKA_KEEP_ALIVE_SECONDS = "metric.eureka.keepAliveSeconds";
+  private static final String EUREKA_SCRAPE_TIMEOUT_SECONDS = "metric.eureka.scrapeTimeoutSeconds";
+  private static final String EUREKA_REFRESH_INTERVAL_SECONDS = "metric.eureka.refreshIntervalSeconds";
+  private static final String EUREKA_HEDGE_PERCENTILE = "metric.eureka.hedgePercentile";
+  private static final String EUREKA_HEDGE_MIN_DELAY_MILLIS = "metric.eureka.hedgeMinDelayMillis";
+  private static final String EUREKA_BREAKER_FAILURE_THRESHOLD = "metric.eureka.breakerFailureThreshold";
+  private static final String EUREKA_BREAKER_INITIAL_BACKOFF_SECONDS = "metric.eureka.breakerInitialBackoffSeconds";
+  private static final String EUREKA_BREAKER_MAX_BACKOFF_SECONDS = "metric.eureka.breakerMaxBackoffSeconds";
+  private static final String EUREKA_JMX_TARGETS = "metric.eureka.jmxTargets";
+  private static final String EUREKA_JMX_TARGET_PARALLELISM = "metric.eureka.jmxTargetParallelism";
+  private static final String EUREKA_JMX_TARGET_TIMEOUT_SECONDS = "metric.eureka.jmxTargetTimeoutSeconds";
 
   private static final int DEFAULT_CONNECT_TIMEOUT = 15000;
   private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 3000;
@@ -53,29 +85,106 @@ public class EurekaInfoCollector extends Collector {
   private static final String LOCALHOST = "127.0.0.1";
   private static final String REQUEST_SCHEME = "http://";
   private static final String APP_URL = "/eureka/apps";
+  private static final String DELTA_URL = "/delta";
   private static final String SERVER_URL = "/eureka/status";
 
   private static final String EUREKA_STATUS_UP = "UP";
   private static final String EUREKA_STATUS_DOWN = "DOWN";
+  private static final String EUREKA_STATUS_UNKNOWN = "UNKNOWN";
   private static final String EUREKA_DEFAULT_RENEWALINTERVALINSECS = "30";
   private static final String EUREKA_DEFAULT_DURATIONINSECS = "90";
 
   private Config config;
   private File configFile;
-  private static List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+  private HttpClient httpClient;
+  private ExecutorService peerExecutor;
+  private EurekaRegistryMirror registryMirror;
+  private final AtomicLong fullFetches = new AtomicLong();
+  private final AtomicLong deltaFetches = new AtomicLong();
+  private ScheduledExecutorService refresher;
+  // The families of the last successful refresh, served until the next one succeeds.
+  private volatile Snapshot snapshot;
+  private volatile HttpSdTargets httpSdTargets = HttpSdTargets.EMPTY;
+  private volatile double lastRefreshSeconds;
+  private final AtomicLong refreshErrors = new AtomicLong();
+  private final Map<String, CircuitBreaker> peerBreakers = new LinkedHashMap<String, CircuitBreaker>();
+  private ExecutorService registryExecutor;
+  private final LatencyWindow primaryLatencies = new LatencyWindow(100);
+  private final AtomicLong hedgedFetches = new AtomicLong();
+  private final AtomicLong localWins = new AtomicLong();
+  private final AtomicLong peerWins = new AtomicLong();
+  private final ScrapeCost scrapeCost = new ScrapeCost("eureka");
 
 
   public EurekaInfoCollector(File in) throws IOException, MalformedObjectNameException {
     configFile = in;
     config = loadConfig((Map<String, Object>)new Yaml().load(new FileReader(in)));
+    start();
   }
 
   public EurekaInfoCollector(String yamlConfig) throws MalformedObjectNameException {
     config = loadConfig((Map<String, Object>)new Yaml().load(yamlConfig));
+    start();
   }
 
   public EurekaInfoCollector(InputStream inputStream) throws MalformedObjectNameException {
     config = loadConfig((Map<String, Object>)new Yaml().load(inputStream));
+    start();
+  }
+
+  private void start() {
+    httpClient = newHttpClient(config);
+    peerExecutor = newPeerExecutor(config);
+    registryMirror = new EurekaRegistryMirror(config.getClusterName());
+    if (config.getCluster() != null) {
+      Random random = new Random();
+      for (String eureka : config.getCluster()) {
+        peerBreakers.put(eureka, new CircuitBreaker(config.getBreakerFailureThreshold(),
+                config.getBreakerInitialBackoffSeconds() * 1000L, config.getBreakerMaxBackoffSeconds() * 1000L, random));
+      }
+    }
+    if (config.getEnabled() && config.getHedgePercentile() > 0 && !peerBreakers.isEmpty()) {
+      // The local fetch and its hedge.
+      registryExecutor = Executors.newFixedThreadPool(2, new NamedThreadFactory("eureka-registry-fetch", true, Thread.MIN_PRIORITY));
+    }
+    if (config.getEnabled()) {
+      refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("eureka-refresher", true, Thread.MIN_PRIORITY));
+      refresher.scheduleWithFixedDelay(this::refresh, 0, config.getRefreshIntervalSeconds(), TimeUnit.SECONDS);
+    }
+  }
+
+  private static ExecutorService newPeerExecutor(Config config) {
+    if (!config.getEnabled() || config.getCluster() == null || config.getCluster().length == 0) {
+      return null;
+    }
+    // One thread per peer, so that a slow peer never delays the request to another one.
+    return Executors.newFixedThreadPool(config.getCluster().length, new NamedThreadFactory("eureka-peer-status", true, Thread.MIN_PRIORITY));
+  }
+
+  private static HttpClient newHttpClient(Config config) {
+    if (!config.getEnabled()) {
+      return null;
+    }
+    // The local registry plus every peer.
+    int routes = 1 + (config.getCluster() == null ? 0 : config.getCluster().length);
+    return new HttpClient(config.getMaxConnectionsPerRoute(), routes * config.getMaxConnectionsPerRoute(),
+            config.getIdleConnectionSeconds() * 1000L, config.getKeepAliveSeconds() * 1000L);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (refresher != null) {
+      refresher.shutdownNow();
+    }
+    if (peerExecutor != null) {
+      peerExecutor.shutdownNow();
+    }
+    if (registryExecutor != null) {
+      registryExecutor.shutdownNow();
+    }
+    if (httpClient != null) {
+      httpClient.close();
+    }
   }
 
   private Config loadConfig(Map<String, Object> yamlConfig) throws MalformedObjectNameException {
@@ -114,10 +223,92 @@ public class EurekaInfoCollector extends Collector {
       if (null != eurekaClusterName) {
         cfg.setClusterName((String)eurekaClusterName);
       }
+      Object maxConnectionsPerRoute = get(EUREKA_MAX_CONNECTIONS_PER_ROUTE, yamlConfig);
+      if (null != maxConnectionsPerRoute) {
+        cfg.setMaxConnectionsPerRoute(Integer.parseInt(String.valueOf(maxConnectionsPerRoute)));
+      }
+      Object idleConnectionSeconds = get(EUREKA_IDLE_CONNECTION_SECONDS, yamlConfig);
+      if (null != idleConnectionSeconds) {
+        cfg.setIdleConnectionSeconds(Integer.parseInt(String.valueOf(idleConnectionSeconds)));
+      }
+      Object keepAliveSeconds = get(EUREKA_KEEP_ALIVE_SECONDS, yamlConfig);
+      if (null != keepAliveSeconds) {
+        cfg.setKeepAliveSeconds(Integer.parseInt(String.valueOf(keepAliveSeconds)));
+      }
+      Object refreshIntervalSeconds = get(EUREKA_REFRESH_INTERVAL_SECONDS, yamlConfig);
+      if (null != refreshIntervalSeconds) {
+        cfg.setRefreshIntervalSeconds(Integer.parseInt(String.valueOf(refreshIntervalSeconds)));
+      }
+      Object hedgePercentile = get(EUREKA_HEDGE_PERCENTILE, yamlConfig);
+      if (null != hedgePercentile) {
+        cfg.setHedgePercentile(Double.parseDouble(String.valueOf(hedgePercentile)));
+      }
+      Object hedgeMinDelayMillis = get(EUREKA_HEDGE_MIN_DELAY_MILLIS, yamlConfig);
+      if (null != hedgeMinDelayMillis) {
+        cfg.setHedgeMinDelayMillis(Integer.parseInt(String.valueOf(hedgeMinDelayMillis)));
+      }
+      Object breakerFailureThreshold = get(EUREKA_BREAKER_FAILURE_THRESHOLD, yamlConfig);
+      if (null != breakerFailureThreshold) {
+        cfg.setBreakerFailureThreshold(Integer.parseInt(String.valueOf(breakerFailureThreshold)));
+      }
+      Object breakerInitialBackoffSeconds = get(EUREKA_BREAKER_INITIAL_BACKOFF_SECONDS, yamlConfig);
+      if (null != breakerInitialBackoffSeconds) {
+        cfg.setBreakerInitialBackoffSeconds(Integer.parseInt(String.valueOf(breakerInitialBackoffSeconds)));
+      }
+      Object breakerMaxBackoffSeconds = get(EUREKA_BREAKER_MAX_BACKOFF_SECONDS, yamlConfig);
+      if (null != breakerMaxBackoffSeconds) {
+        cfg.setBreakerMaxBackoffSeconds(Integer.parseInt(String.valueOf(breakerMaxBackoffSeconds)));
+      }
+      Object scrapeTimeoutSeconds = get(EUREKA_SCRAPE_TIMEOUT_SECONDS, yamlConfig);
+      if (null != scrapeTimeoutSeconds) {
+        cfg.setScrapeTimeoutSeconds(Integer.parseInt(String.valueOf(scrapeTimeoutSeconds)));
+      }
+      Object jmxTargets = get(EUREKA_JMX_TARGETS, yamlConfig);
+      if (null != jmxTargets) {
+        cfg.setJmxTargets(Boolean.parseBoolean(String.valueOf(jmxTargets)));
+      }
+      Object jmxTargetParallelism = get(EUREKA_JMX_TARGET_PARALLELISM, yamlConfig);
+      if (null != jmxTargetParallelism) {
+        cfg.setJmxTargetParallelism(Integer.parseInt(String.valueOf(jmxTargetParallelism)));
+      }
+      Object jmxTargetTimeoutSeconds = get(EUREKA_JMX_TARGET_TIMEOUT_SECONDS, yamlConfig);
+      if (null != jmxTargetTimeoutSeconds) {
+        cfg.setJmxTargetTimeoutSeconds(Integer.parseInt(String.valueOf(jmxTargetTimeoutSeconds)));
+      }
     }
     return cfg;
   }
 
+  /**
+   * @return true if the instances registered with a {@code jmx.port} metadata should be scraped as JMX targets,
+   * see {@link EurekaJmxTargetsCollector}.
+   */
+  public boolean isJmxTargetsEnabled() {
+    return config.getEnabled() && config.getJmxTargets();
+  }
+
+  int getJmxTargetParallelism() {
+    return config.getJmxTargetParallelism();
+  }
+
+  int getJmxTargetTimeoutSeconds() {
+    return config.getJmxTargetTimeoutSeconds();
+  }
+
+  /**
+   * @return the scrape targets of the last refresh, empty until the registry was first fetched.
+   */
+  HttpSdTargets getHttpSdTargets() {
+    return httpSdTargets;
+  }
+
+  /**
+   * @return the instances of the mirrored registry to scrape over JMX, empty until the registry was first fetched.
+   */
+  List<EurekaRegistryParser.Instance> jmxTargets() {
+    return registryMirror.jmxTargets();
+  }
+
   /**
    * support java properties access pattern.  key = path1.path2.path3;
    * @param key
@@ -134,95 +325,364 @@ public class EurekaInfoCollector extends Collector {
     return map.get(paths[paths.length - 1]);
   }
 
+  /**
+   * Also export the cost of the scrapes to the registry, see {@link ScrapeCost}.
+   */
   @Override
-  public List<MetricFamilySamples> collect() {
+  public <T extends Collector> T register(CollectorRegistry registry) {
+    T collector = super.register(registry);
+    scrapeCost.register(registry);
+    return collector;
+  }
 
+  /**
+   * Serve the snapshot of the last successful refresh. The Eureka servers are only queried by the background
+   * refresher, so a slow or failing server never blocks the scrape.
+   */
+  @Override
+  public List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
     if (!config.getEnabled()) {
       return mfs;
     }
 
-    String appUrl = REQUEST_SCHEME + LOCALHOST + ":" + config.getPort() + APP_URL;
-    if (!mfs.isEmpty()) {
-      mfs.clear();
+    Snapshot current = snapshot;
+    if (current != null) {
+      mfs.addAll(current.families);
     }
+    addRefreshStats(config.getClusterName(), current, mfs);
+    addRegistryFetches(config.getClusterName(), mfs);
+    addHedgeStats(config.getClusterName(), mfs);
+    addCircuitStats(config.getClusterName(), mfs);
+    addPoolStats(config.getClusterName(), mfs);
+    return mfs;
+  }
 
+  /**
+   * Build a new snapshot. It replaces the current one only if the local registry could be read, otherwise the
+   * previous snapshot keeps being served. Nothing is thrown: the executor would silently stop running the refresh.
+   */
+  void refresh() {
+    long start = System.nanoTime();
+    ScrapeCost.Measurement costMeasurement = scrapeCost.begin();
     try {
-      //scrape the nodeInfo registried on the eureka cluslter
-      scrapeNodeInfo(appUrl);
-      //scrape the eureka servers' status
-      scrapeServerInfo(config.getClusterName());
-
-    } catch (Exception e) {
+      snapshot = new Snapshot(Collections.unmodifiableList(scrapeEureka()), System.currentTimeMillis());
+    } catch (Throwable e) {
+      // Errors too, e.g. a NoClassDefFoundError of the HTTP or XML stack loaded on the first refresh.
+      refreshErrors.incrementAndGet();
+      LOGGER.warning("Eureka refresh failed, serving the previous snapshot: " + e);
+    } finally {
+      lastRefreshSeconds = (System.nanoTime() - start) / 1.0E9;
+      costMeasurement.end();
     }
+  }
+
+  /**
+   * @return the families of a new snapshot, read from the Eureka servers.
+   */
+  List<MetricFamilySamples> scrapeEureka() throws Exception {
+    // Each refresh builds its own list, with one family per metric name.
+    List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+    String localUrl = REQUEST_SCHEME + LOCALHOST + ":" + config.getPort();
+    //scrape the nodeInfo registried on the eureka cluslter
+    scrapeNodeInfo(localUrl, mfs);
+    //scrape the eureka servers' status
+    scrapeServerInfo(config.getClusterName(), mfs);
     return mfs;
   }
 
-  public void scrapeNodeInfo(String appUrl) {
+  private void addRefreshStats(String clusterName, Snapshot current, List<MetricFamilySamples> mfs) {
+    List<String> labelNames = Arrays.asList("eureka_cluster");
+    List<String> labelValues = Arrays.asList(clusterName);
+    if (current != null) {
+      mfs.add(new MetricFamilySamples("eureka_snapshot_age_seconds", Type.GAUGE,
+              "Time since the Eureka metrics served were refreshed.",
+              Arrays.asList(new MetricFamilySamples.Sample("eureka_snapshot_age_seconds", labelNames, labelValues,
+                      (System.currentTimeMillis() - current.createdAtMillis) / 1000.0))));
+    }
+    mfs.add(new MetricFamilySamples("eureka_refresh_duration_seconds", Type.GAUGE,
+            "Time the last refresh of the Eureka metrics took.",
+            Arrays.asList(new MetricFamilySamples.Sample("eureka_refresh_duration_seconds", labelNames, labelValues, lastRefreshSeconds))));
+    mfs.add(new MetricFamilySamples("eureka_refresh_errors", Type.COUNTER,
+            "Refreshes of the Eureka metrics that failed.",
+            Arrays.asList(new MetricFamilySamples.Sample("eureka_refresh_errors_total", labelNames, labelValues, refreshErrors.get()))));
+  }
+
+  private void addPoolStats(String clusterName, List<MetricFamilySamples> mfs) {
+    PoolStats stats = httpClient.getPoolStats();
+    List<String> labelNames = Arrays.asList("eureka_cluster");
+    List<String> labelValues = Arrays.asList(clusterName);
+    mfs.add(new MetricFamilySamples("eureka_http_pool_leased_connections", Type.GAUGE,
+            "Connections of the Eureka HTTP client pool currently in use.",
+            Arrays.asList(new MetricFamilySamples.Sample("eureka_http_pool_leased_connections", labelNames, labelValues, stats.getLeased()))));
+    mfs.add(new MetricFamilySamples("eureka_http_pool_available_connections", Type.GAUGE,
+            "Idle connections kept alive in the Eureka HTTP client pool.",
+            Arrays.asList(new MetricFamilySamples.Sample("eureka_http_pool_available_connections", labelNames, labelValues, stats.getAvailable()))));
+    mfs.add(new MetricFamilySamples("eureka_http_pool_pending_requests", Type.GAUGE,
+            "Requests of the Eureka HTTP client waiting for a connection.",
+            Arrays.asList(new MetricFamilySamples.Sample("eureka_http_pool_pending_requests", labelNames, labelValues, stats.getPending()))));
+  }
+
+  /**
+   * Bring the registry mirror up to date with the delta of the last changes, and only download the full registry
+   * when the mirror does not reconcile with the server.
+   */
+  public void scrapeNodeInfo(String localUrl, List<MetricFamilySamples> mfs) throws Exception {
+    if (registryMirror.isSynced()) {
+      AppHandler delta = fetchRegistry(localUrl, APP_URL + DELTA_URL);
+      deltaFetches.incrementAndGet();
+      if (!registryMirror.applyDelta(delta.instances, delta.appsHashcode)) {
+        LOGGER.fine("Eureka registry mirror does not match apps__hashcode " + delta.appsHashcode + ", fetching the full registry");
+      }
+    }
+    if (!registryMirror.isSynced()) {
+      AppHandler full = fetchRegistry(localUrl, APP_URL);
+      fullFetches.incrementAndGet();
+      registryMirror.applyFull(full.instances);
+    }
+    List<MetricFamilySamples.Sample> nodeSamples = new ArrayList<MetricFamilySamples.Sample>();
+    List<MetricFamilySamples.Sample> applicationSamples = new ArrayList<MetricFamilySamples.Sample>();
+    registryMirror.addSamples(nodeSamples, applicationSamples);
+    httpSdTargets = HttpSdTargets.render(config.getClusterName(), registryMirror.upInstances());
+    mfs.add(new MetricFamilySamples("eureka_nodes_info", Type.GAUGE, "A metric shows that the service node info which registried on the eureka server.",
+            nodeSamples));
+    mfs.add(new MetricFamilySamples("eureka_application_instances", Type.GAUGE, "Number of instances registered on the eureka server, per application and status.",
+            applicationSamples));
+  }
+
+  /**
+   * Fetch a registry path from the local eureka server. If it has not answered after the configured percentile of
+   * its recent latencies, or if it failed, the same request is sent to a healthy peer. The first response is used and
+   * the other request is aborted.
+   */
+  private AppHandler fetchRegistry(String localBaseUrl, String path) throws Exception {
+    RegistryFetch primary = new RegistryFetch(localBaseUrl, path, true);
+    String peer = hedgePeer();
+    if (peer == null) {
+      return primary.call();
+    }
+    long delay = Math.max(config.getHedgeMinDelayMillis(), primaryLatencies.percentile(config.getHedgePercentile()));
+    CompletionService<AppHandler> completionService = new ExecutorCompletionService<AppHandler>(registryExecutor);
+    Map<Future<AppHandler>, RegistryFetch> running = new HashMap<Future<AppHandler>, RegistryFetch>();
+    running.put(completionService.submit(scrapeCost.onWorker(primary)), primary);
+    boolean hedged = false;
+    Exception failure = null;
     try {
-              HttpClient.sendGet(appUrl, null, new AppHandler(config.getClusterName()), DEFAULT_CONNECT_TIMEOUT,
-                      DEFAULT_CONNECTION_REQUEST_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
-    } catch (Exception e) {
+      Future<AppHandler> done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+      while (true) {
+        if (done == null) {
+          if (!hedged) {
+            hedged = true;
+            hedgedFetches.incrementAndGet();
+            RegistryFetch hedge = new RegistryFetch(peer, path, false);
+            running.put(completionService.submit(scrapeCost.onWorker(hedge)), hedge);
+          }
+          done = completionService.take();
+        }
+        RegistryFetch fetch = running.remove(done);
+        try {
+          AppHandler result = done.get();
+          (fetch.primary ? localWins : peerWins).incrementAndGet();
+          return result;
+        } catch (ExecutionException e) {
+          failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          LOGGER.fine("Eureka registry fetch from " + fetch.baseUrl + " failed: " + failure);
+        }
+        if (running.isEmpty() && hedged) {
+          throw failure;
+        }
+        done = null;
+      }
+    } finally {
+      for (RegistryFetch loser : running.values()) {
+        loser.request.abort();
+      }
+    }
+  }
+
+  /**
+   * @return the first peer whose circuit is closed, or null if hedging is disabled or no peer is healthy.
+   */
+  private String hedgePeer() {
+    if (config.getHedgePercentile() <= 0 || registryExecutor == null) {
+      return null;
     }
+    for (Map.Entry<String, CircuitBreaker> entry : peerBreakers.entrySet()) {
+      String hostPort = entry.getKey().substring(entry.getKey().indexOf("://") + 3);
+      boolean local = hostPort.equals(LOCALHOST + ":" + config.getPort()) || hostPort.equals("localhost:" + config.getPort());
+      if (!local && entry.getValue().getState() == CircuitBreaker.State.CLOSED) {
+        return entry.getKey();
+      }
+    }
+    return null;
   }
 
-  public void scrapeServerInfo(String clusterName) {
+  private class RegistryFetch implements Callable<AppHandler> {
+    final String baseUrl;
+    final boolean primary;
+    final HttpGet request;
+
+    RegistryFetch(String baseUrl, String path, boolean primary) {
+      this.baseUrl = baseUrl;
+      this.primary = primary;
+      this.request = new HttpGet(baseUrl + path);
+    }
+
+    @Override
+    public AppHandler call() throws Exception {
+      long start = System.currentTimeMillis();
+      AppHandler handler = new AppHandler();
+      httpClient.execute(request, handler, DEFAULT_CONNECT_TIMEOUT, DEFAULT_CONNECTION_REQUEST_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+      if (primary) {
+        primaryLatencies.record(System.currentTimeMillis() - start);
+      }
+      return handler;
+    }
+  }
+
+  private void addHedgeStats(String clusterName, List<MetricFamilySamples> mfs) {
+    List<String> labelNames = Arrays.asList("eureka_cluster");
+    List<String> labelValues = Arrays.asList(clusterName);
+    mfs.add(new MetricFamilySamples("eureka_registry_hedged_fetches", Type.COUNTER,
+            "Registry fetches also sent to a peer because the local eureka server was slow or failed.",
+            Arrays.asList(new MetricFamilySamples.Sample("eureka_registry_hedged_fetches_total", labelNames, labelValues, hedgedFetches.get()))));
+    List<String> winnerLabelNames = Arrays.asList("eureka_cluster", "winner");
+    List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+    samples.add(new MetricFamilySamples.Sample("eureka_registry_fetch_wins_total", winnerLabelNames, Arrays.asList(clusterName, "local"), localWins.get()));
+    samples.add(new MetricFamilySamples.Sample("eureka_registry_fetch_wins_total", winnerLabelNames, Arrays.asList(clusterName, "peer"), peerWins.get()));
+    mfs.add(new MetricFamilySamples("eureka_registry_fetch_wins", Type.COUNTER,
+            "Registry fetches answered first by the local eureka server or by a peer.", samples));
+  }
+
+  private void addRegistryFetches(String clusterName, List<MetricFamilySamples> mfs) {
+    List<String> labelNames = Arrays.asList("eureka_cluster", "type");
+    List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+    samples.add(new MetricFamilySamples.Sample("eureka_registry_fetches_total", labelNames, Arrays.asList(clusterName, "full"), fullFetches.get()));
+    samples.add(new MetricFamilySamples.Sample("eureka_registry_fetches_total", labelNames, Arrays.asList(clusterName, "delta"), deltaFetches.get()));
+    mfs.add(new MetricFamilySamples("eureka_registry_fetches", Type.COUNTER, "Downloads of the full Eureka registry and of its delta.", samples));
+  }
+
+  /**
+   * Query the status of every peer concurrently. The results are merged as they complete, until the scrape timeout,
+   * after which the peers that have not answered are reported with the UNKNOWN status.
+   */
+  public void scrapeServerInfo(String clusterName, List<MetricFamilySamples> mfs) {
     String[] cluster = config.getCluster();
     if (null != cluster && cluster.length > 0) {
-      for (String eureka : cluster) {
-        try {
-          HttpClient.sendGet(eureka + SERVER_URL, null, new ServerHandler(config.getClusterName()), DEFAULT_CONNECT_TIMEOUT,
-                  DEFAULT_CONNECTION_REQUEST_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
-        } catch (Exception e) {
-          if (e instanceof ConnectException) {
-            String replicas = Arrays.stream(cluster).collect(Collectors.joining("/, ")) + "/";
-            String instanceId = eureka.substring(eureka.indexOf("://") + 3);
-            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
-            samples.add(new MetricFamilySamples.Sample(
-                    "eureka_server_info", Arrays.asList("eureka_cluster","replicas", "instance_id", "status", "renewal_interval_in_secs", "duration_in_secs"),
-                    Arrays.asList(clusterName, replicas, instanceId, EUREKA_STATUS_DOWN, EUREKA_DEFAULT_RENEWALINTERVALINSECS, EUREKA_DEFAULT_DURATIONINSECS), 1));
-            mfs.add(new MetricFamilySamples("eureka_server_info", Type.GAUGE, "A metric shows that eureka servers info.", samples));
+      String replicas = Arrays.stream(cluster).collect(Collectors.joining("/, ")) + "/";
+      long timeoutMillis = config.getScrapeTimeoutSeconds() * 1000L;
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      // No single request may outlive the scrape, so that a stuck peer does not keep a worker busy.
+      final int connectTimeout = (int) Math.min(DEFAULT_CONNECT_TIMEOUT, timeoutMillis);
+      final int socketTimeout = (int) Math.min(DEFAULT_SOCKET_TIMEOUT, timeoutMillis);
+
+      CompletionService<List<MetricFamilySamples.Sample>> completionService =
+              new ExecutorCompletionService<List<MetricFamilySamples.Sample>>(peerExecutor);
+      Map<Future<List<MetricFamilySamples.Sample>>, String> pending =
+              new HashMap<Future<List<MetricFamilySamples.Sample>>, String>();
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      for (final String eureka : cluster) {
+        if (!peerBreakers.get(eureka).allowRequest(System.currentTimeMillis())) {
+          // The peer keeps failing, do not wait for it again until its backoff is over.
+          samples.add(serverInfoSample(clusterName, replicas, eureka, EUREKA_STATUS_DOWN));
+          continue;
+        }
+        pending.put(completionService.submit(scrapeCost.onWorker(
+                () -> scrapePeer(eureka, clusterName, replicas, connectTimeout, socketTimeout))), eureka);
+      }
 
+      try {
+        while (!pending.isEmpty()) {
+          long remaining = deadline - System.currentTimeMillis();
+          Future<List<MetricFamilySamples.Sample>> done = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+          if (done == null) {
+            break;
+          }
+          pending.remove(done);
+          try {
+            samples.addAll(done.get());
+          } catch (ExecutionException e) {
+            LOGGER.fine("Unable to scrape the status of a eureka server: " + e.getCause());
           }
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (Map.Entry<Future<List<MetricFamilySamples.Sample>>, String> entry : pending.entrySet()) {
+        entry.getKey().cancel(true);
+        LOGGER.fine("Eureka server " + entry.getValue() + " did not answer within " + config.getScrapeTimeoutSeconds() + "s");
+        samples.add(serverInfoSample(clusterName, replicas, entry.getValue(), EUREKA_STATUS_UNKNOWN));
+      }
+      if (!samples.isEmpty()) {
+        mfs.add(new MetricFamilySamples("eureka_server_info", Type.GAUGE, "A metric shows that eureka servers info.", samples));
       }
     }
 
   }
 
-  private static class AppHandler implements HttpClient.IHttpResponseHandler {
-
-    private String clusterName;
+  private List<MetricFamilySamples.Sample> scrapePeer(String eureka, String clusterName, String replicas,
+                                                      int connectTimeout, int socketTimeout) throws Exception {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+    CircuitBreaker breaker = peerBreakers.get(eureka);
+    try {
+      httpClient.sendGet(eureka + SERVER_URL, null, new ServerHandler(clusterName, samples), connectTimeout,
+              DEFAULT_CONNECTION_REQUEST_TIMEOUT, socketTimeout);
+      breaker.recordSuccess();
+    } catch (ConnectException e) {
+      breaker.recordFailure(System.currentTimeMillis());
+      samples.clear();
+      samples.add(serverInfoSample(clusterName, replicas, eureka, EUREKA_STATUS_DOWN));
+    } catch (Exception e) {
+      // Timeouts included: the scrape reported this peer UNKNOWN already.
+      breaker.recordFailure(System.currentTimeMillis());
+      throw e;
+    }
+    return samples;
+  }
 
-    public AppHandler(String clusterName) {
-      this.clusterName = clusterName;
+  private void addCircuitStats(String clusterName, List<MetricFamilySamples> mfs) {
+    List<String> labelNames = Arrays.asList("eureka_cluster", "peer", "state");
+    List<MetricFamilySamples.Sample> states = new ArrayList<MetricFamilySamples.Sample>();
+    List<MetricFamilySamples.Sample> transitions = new ArrayList<MetricFamilySamples.Sample>();
+    for (Map.Entry<String, CircuitBreaker> entry : peerBreakers.entrySet()) {
+      String peer = entry.getKey().substring(entry.getKey().indexOf("://") + 3);
+      CircuitBreaker.State current = entry.getValue().getState();
+      for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+        List<String> labelValues = Arrays.asList(clusterName, peer, state.name().toLowerCase());
+        states.add(new MetricFamilySamples.Sample("eureka_peer_circuit_state", labelNames, labelValues, state == current ? 1 : 0));
+        transitions.add(new MetricFamilySamples.Sample("eureka_peer_circuit_transitions_total", labelNames, labelValues,
+                entry.getValue().getTransitions(state)));
+      }
     }
+    mfs.add(new MetricFamilySamples("eureka_peer_circuit_state", Type.GAUGE,
+            "State of the circuit breaker of each eureka server, an open circuit means the server is not queried.", states));
+    mfs.add(new MetricFamilySamples("eureka_peer_circuit_transitions", Type.COUNTER,
+            "Number of times the circuit breaker of each eureka server entered a state.", transitions));
+  }
+
+  private static MetricFamilySamples.Sample serverInfoSample(String clusterName, String replicas, String eureka, String status) {
+    String instanceId = eureka.substring(eureka.indexOf("://") + 3);
+    return new MetricFamilySamples.Sample(
+            "eureka_server_info", Arrays.asList("eureka_cluster","replicas", "instance_id", "status", "renewal_interval_in_secs", "duration_in_secs"),
+            Arrays.asList(clusterName, replicas, instanceId, status, EUREKA_DEFAULT_RENEWALINTERVALINSECS, EUREKA_DEFAULT_DURATIONINSECS), 1);
+  }
+
+  /**
+   * Collects the instances of a /eureka/apps or /eureka/apps/delta response, along with its apps__hashcode.
+   */
+  private static class AppHandler implements HttpClient.IHttpResponseHandler {
+
+    private final List<EurekaRegistryParser.Instance> instances = new ArrayList<EurekaRegistryParser.Instance>();
+    private String appsHashcode;
 
     @Override
     public void handle(CloseableHttpResponse response) throws Exception {
-      List<MetricFamilySamples.Sample> samples;
       try {
         HttpEntity entity = response.getEntity();
         if (entity != null) {
-          String msg = EntityUtils.toString(entity, "utf-8");
-          JSONObject jsonObject = XmlTool.documentToJSONObject(msg);
-          JSONArray applications = ((JSONArray) jsonObject.get("applications"));
-          if ( null != applications && applications.size() > 0) {
-            for (int i = 0; i < applications.size(); i++) {
-              JSONArray application = ((JSONArray) ((JSONObject) applications.get(i)).get("application"));
-              for (int j = 0; j < application.size(); j++) {
-                JSONArray instances = ((JSONArray) ((JSONObject) application.get(j)).get("instance"));
-                for (int k = 0; k < instances.size(); k++) {
-                  samples = new ArrayList<MetricFamilySamples.Sample>();
-                  samples.add(new MetricFamilySamples.Sample(
-                          "eureka_nodes_info", Arrays.asList("eureka_cluster", "application", "host", "instance_id", "status"),
-                          Arrays.asList(clusterName, ((JSONObject) instances.get(k)).getString("app"),
-                                  ((JSONObject) instances.get(k)).getString("hostName"),
-                                  ((JSONObject) instances.get(k)).getString("instanceId"),
-                                  ((JSONObject) instances.get(k)).getString("status")), 1));
-                  mfs.add(new MetricFamilySamples("eureka_nodes_info", Type.GAUGE, "A metric shows that the service node info which registried on the eureka server.", samples));
-                }
-              }
-            }
+          Charset charset = ContentType.getOrDefault(entity).getCharset();
+          try (InputStream content = entity.getContent()) {
+            appsHashcode = EurekaRegistryParser.parse(content, charset == null ? "utf-8" : charset.name(), instances::add);
           }
           return;
         }
@@ -237,14 +697,15 @@ public class EurekaInfoCollector extends Collector {
   private static class ServerHandler implements HttpClient.IHttpResponseHandler {
 
     private String clusterName;
+    private List<MetricFamilySamples.Sample> samples;
 
-    public ServerHandler(String clusterName) {
+    public ServerHandler(String clusterName, List<MetricFamilySamples.Sample> samples) {
       this.clusterName = clusterName;
+      this.samples = samples;
     }
 
     @Override
     public void handle(CloseableHttpResponse response) throws Exception {
-      List<MetricFamilySamples.Sample> samples;
       try {
         HttpEntity entity = response.getEntity();
         if (entity != null) {
@@ -267,11 +728,9 @@ public class EurekaInfoCollector extends Collector {
               String renewalIntervalInSecs = (String) ((JSONObject) leaseInfo.get(0)).get("renewalIntervalInSecs");
               String durationInSecs = (String) ((JSONObject) leaseInfo.get(0)).get("durationInSecs");
 
-              samples = new ArrayList<MetricFamilySamples.Sample>();
               samples.add(new MetricFamilySamples.Sample(
                       "eureka_server_info", Arrays.asList("eureka_cluster","replicas", "instance_id", "status", "renewal_interval_in_secs", "duration_in_secs"),
                       Arrays.asList(clusterName, replicas, instanceId, status, renewalIntervalInSecs, durationInSecs), 1));
-              mfs.add(new MetricFamilySamples("eureka_server_info", Type.GAUGE, "A metric shows that eureka servers info.", samples));
             }
 
           }
@@ -291,11 +750,34 @@ public class EurekaInfoCollector extends Collector {
 
 
 
+  private static class Snapshot {
+    final List<MetricFamilySamples> families;
+    final long createdAtMillis;
+
+    Snapshot(List<MetricFamilySamples> families, long createdAtMillis) {
+      this.families = families;
+      this.createdAtMillis = createdAtMillis;
+    }
+  }
+
   private static class Config {
     Boolean enabled = false;
     String port = "8761";
     String[] cluster;
     String clusterName = "default";
+    int maxConnectionsPerRoute = 2;
+    int idleConnectionSeconds = 60;
+    int keepAliveSeconds = 30;
+    int scrapeTimeoutSeconds = 10;
+    int refreshIntervalSeconds = 15;
+    double hedgePercentile = 95;
+    int hedgeMinDelayMillis = 200;
+    int breakerFailureThreshold = 3;
+    int breakerInitialBackoffSeconds = 30;
+    int breakerMaxBackoffSeconds = 600;
+    boolean jmxTargets = false;
+    int jmxTargetParallelism = 4;
+    int jmxTargetTimeoutSeconds = 10;
 
     public Boolean getEnabled() {
       return enabled;
@@ -329,6 +811,110 @@ public class EurekaInfoCollector extends Collector {
       this.clusterName = clusterName;
     }
 
+    public int getMaxConnectionsPerRoute() {
+      return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public int getIdleConnectionSeconds() {
+      return idleConnectionSeconds;
+    }
+
+    public void setIdleConnectionSeconds(int idleConnectionSeconds) {
+      this.idleConnectionSeconds = idleConnectionSeconds;
+    }
+
+    public int getKeepAliveSeconds() {
+      return keepAliveSeconds;
+    }
+
+    public void setKeepAliveSeconds(int keepAliveSeconds) {
+      this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public double getHedgePercentile() {
+      return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+    }
+
+    public int getHedgeMinDelayMillis() {
+      return hedgeMinDelayMillis;
+    }
+
+    public void setHedgeMinDelayMillis(int hedgeMinDelayMillis) {
+      this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+    }
+
+    public int getBreakerFailureThreshold() {
+      return breakerFailureThreshold;
+    }
+
+    public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+      this.breakerFailureThreshold = breakerFailureThreshold;
+    }
+
+    public int getBreakerInitialBackoffSeconds() {
+      return breakerInitialBackoffSeconds;
+    }
+
+    public void setBreakerInitialBackoffSeconds(int breakerInitialBackoffSeconds) {
+      this.breakerInitialBackoffSeconds = breakerInitialBackoffSeconds;
+    }
+
+    public int getBreakerMaxBackoffSeconds() {
+      return breakerMaxBackoffSeconds;
+    }
+
+    public void setBreakerMaxBackoffSeconds(int breakerMaxBackoffSeconds) {
+      this.breakerMaxBackoffSeconds = breakerMaxBackoffSeconds;
+    }
+
+    public int getRefreshIntervalSeconds() {
+      return refreshIntervalSeconds;
+    }
+
+    public void setRefreshIntervalSeconds(int refreshIntervalSeconds) {
+      this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+
+    public int getScrapeTimeoutSeconds() {
+      return scrapeTimeoutSeconds;
+    }
+
+    public void setScrapeTimeoutSeconds(int scrapeTimeoutSeconds) {
+      this.scrapeTimeoutSeconds = scrapeTimeoutSeconds;
+    }
+
+    public boolean getJmxTargets() {
+      return jmxTargets;
+    }
+
+    public void setJmxTargets(boolean jmxTargets) {
+      this.jmxTargets = jmxTargets;
+    }
+
+    public int getJmxTargetParallelism() {
+      return jmxTargetParallelism;
+    }
+
+    public void setJmxTargetParallelism(int jmxTargetParallelism) {
+      this.jmxTargetParallelism = jmxTargetParallelism;
+    }
+
+    public int getJmxTargetTimeoutSeconds() {
+      return jmxTargetTimeoutSeconds;
+    }
+
+    public void setJmxTargetTimeoutSeconds(int jmxTargetTimeoutSeconds) {
+      this.jmxTargetTimeoutSeconds = jmxTargetTimeoutSeconds;
+    }
+
   }
 
 
@@ -0,0 +1,272 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Scrapes over JMX every instance of the Eureka registry that carries a {@code jmx.port} in its metadata, with the
+ * rules of a {@link JmxCollector}, so that a single exporter covers a whole cluster instead of a sidecar per JVM.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   EurekaInfoCollector eureka = new EurekaInfoCollector(file).register();
+ *   new EurekaJmxTargetsCollector(eureka, new JmxCollector(file)).register();
+ * }
+ * </pre>
+ * The targets are taken from the registry mirrored by the {@link EurekaInfoCollector}, their connections are kept
+ * open between scrapes. At most {@code metric.eureka.jmxTargetParallelism} targets are scraped at the same time, and
+ * the samples of each target carry its {@code application} and {@code instance_id}. A target that does not answer
+ * within {@code metric.eureka.jmxTargetTimeoutSeconds}, counted from the start of its own scrape and not while it
+ * waits for its turn, is reported with {@code jmx_scrape_error} 1. The scrapes run on
+ * the executor of {@link ScrapeExecutors}, on virtual threads with Java 21 and later.
+ */
+public class EurekaJmxTargetsCollector extends Collector implements Collector.Describable, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(EurekaJmxTargetsCollector.class.getName());
+
+    private final EurekaInfoCollector registry;
+    private final JmxCollector jmxCollector;
+    private final JmxConnectionPool connectionPool = new JmxConnectionPool();
+    private final ExecutorService executor;
+    private final Semaphore parallelism;
+    private final int timeoutSeconds;
+    private final ScrapeCost scrapeCost = new ScrapeCost("jmx_targets");
+
+    public EurekaJmxTargetsCollector(EurekaInfoCollector registry, JmxCollector jmxCollector) {
+        this.registry = registry;
+        this.jmxCollector = jmxCollector;
+        this.timeoutSeconds = registry.getJmxTargetTimeoutSeconds();
+        this.executor = ScrapeExecutors.newExecutor("jmx-target-scrape", true, registry.getJmxTargetParallelism());
+        // The executor does not bound the scrapes in flight, the permits do.
+        this.parallelism = new Semaphore(registry.getJmxTargetParallelism());
+    }
+
+    static String jmxUrl(EurekaRegistryParser.Instance instance) {
+        String host = instance.ipAddr != null ? instance.ipAddr : instance.hostName;
+        return "service:jmx:rmi:///jndi/rmi://" + host + ":" + instance.jmxPort + "/jmxrmi";
+    }
+
+    static Map<String, String> targetLabels(EurekaRegistryParser.Instance instance) {
+        Map<String, String> labels = new LinkedHashMap<String, String>();
+        labels.put("application", instance.app);
+        labels.put("instance_id", instance.instanceId != null ? instance.instanceId : instance.hostName);
+        return labels;
+    }
+
+    /**
+     * Also export the cost of the scrapes to the registry, see {@link ScrapeCost}.
+     */
+    @Override
+    public <T extends Collector> T register(CollectorRegistry registry) {
+        T collector = super.register(registry);
+        scrapeCost.register(registry);
+        return collector;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        ScrapeCost.Measurement costMeasurement = scrapeCost.begin();
+        try {
+            return collectTargets();
+        } finally {
+            costMeasurement.end();
+        }
+    }
+
+    private List<MetricFamilySamples> collectTargets() {
+        Map<String, EurekaRegistryParser.Instance> targets = new LinkedHashMap<String, EurekaRegistryParser.Instance>();
+        for (EurekaRegistryParser.Instance instance : registry.jmxTargets()) {
+            targets.put(jmxUrl(instance), instance);
+        }
+        connectionPool.retainAll(targets.keySet());
+        jmxCollector.retainTargets(targets.keySet());
+
+        BlockingQueue<TargetScrape> progress = new LinkedBlockingQueue<TargetScrape>();
+        List<TargetScrape> scrapes = new ArrayList<TargetScrape>();
+        for (Map.Entry<String, EurekaRegistryParser.Instance> target : targets.entrySet()) {
+            TargetScrape scrape = new TargetScrape(target.getKey(), target.getValue(), progress);
+            scrapes.add(scrape);
+            executor.execute(scrape.future);
+        }
+        try {
+            awaitScrapes(scrapes, progress);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (TargetScrape scrape : scrapes) {
+                scrape.cancel();
+            }
+            return new ArrayList<MetricFamilySamples>();
+        }
+
+        // The same metric of every target goes to a single family.
+        Map<String, MetricFamilySamples> families = new LinkedHashMap<String, MetricFamilySamples>();
+        List<MetricFamilySamples.Sample> timedOut = new ArrayList<MetricFamilySamples.Sample>();
+        for (TargetScrape scrape : scrapes) {
+            if (scrape.timedOut) {
+                LOGGER.warning("JMX scrape of " + scrape.jmxUrl + " timed out after " + timeoutSeconds + "s");
+                Map<String, String> labels = targetLabels(scrape.instance);
+                timedOut.add(new MetricFamilySamples.Sample("jmx_scrape_error",
+                        new ArrayList<String>(labels.keySet()), new ArrayList<String>(labels.values()), 1));
+                continue;
+            }
+            try {
+                for (MetricFamilySamples mfs : scrape.future.get()) {
+                    MetricFamilySamples merged = families.get(mfs.name);
+                    if (merged == null) {
+                        merged = new MetricFamilySamples(mfs.name, mfs.type, mfs.help, new ArrayList<MetricFamilySamples.Sample>());
+                        families.put(mfs.name, merged);
+                    }
+                    merged.samples.addAll(mfs.samples);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                LOGGER.warning("JMX scrape of " + scrape.jmxUrl + " failed: " + e.getCause());
+            }
+        }
+        if (!timedOut.isEmpty()) {
+            MetricFamilySamples errors = families.get("jmx_scrape_error");
+            if (errors == null) {
+                errors = new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.",
+                        new ArrayList<MetricFamilySamples.Sample>());
+                families.put("jmx_scrape_error", errors);
+            }
+            errors.samples.addAll(timedOut);
+        }
+
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>(families.values());
+        mfs.add(new MetricFamilySamples("jmx_targets", Type.GAUGE, "Number of JMX targets discovered from the Eureka registry",
+                Arrays.asList(new MetricFamilySamples.Sample("jmx_targets", new ArrayList<String>(), new ArrayList<String>(), targets.size()))));
+        mfs.add(new MetricFamilySamples("jmx_target_idle_connections", Type.GAUGE, "Number of JMX connections kept open between scrapes",
+                Arrays.asList(new MetricFamilySamples.Sample("jmx_target_idle_connections", new ArrayList<String>(), new ArrayList<String>(), connectionPool.size()))));
+        return mfs;
+    }
+
+    /**
+     * Wait until every scrape is over, cancelling the ones still running {@code timeoutSeconds} after they got their
+     * permit. The targets waiting for a permit are not timed.
+     */
+    private void awaitScrapes(List<TargetScrape> scrapes, BlockingQueue<TargetScrape> progress)
+            throws InterruptedException {
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        List<TargetScrape> pending = new LinkedList<TargetScrape>(scrapes);
+        while (true) {
+            long now = System.nanoTime();
+            long waitNanos = timeoutNanos;
+            for (Iterator<TargetScrape> it = pending.iterator(); it.hasNext(); ) {
+                TargetScrape scrape = it.next();
+                if (scrape.future.isDone()) {
+                    it.remove();
+                } else if (scrape.started) {
+                    long leftNanos = scrape.startedNanos + timeoutNanos - now;
+                    if (leftNanos <= 0) {
+                        scrape.timedOut = true;
+                        scrape.cancel();
+                        it.remove();
+                    } else {
+                        waitNanos = Math.min(waitNanos, leftNanos);
+                    }
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            // Woken up as soon as a scrape starts or ends.
+            progress.poll(waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The scrape of one target, timed from the moment it gets its permit.
+     */
+    private class TargetScrape implements Callable<List<MetricFamilySamples>> {
+        final String jmxUrl;
+        final EurekaRegistryParser.Instance instance;
+        final FutureTask<List<MetricFamilySamples>> future;
+        private final BlockingQueue<TargetScrape> progress;
+        private final AtomicBoolean holdsPermit = new AtomicBoolean();
+        volatile boolean started;
+        volatile long startedNanos;
+        // Only read and written by the collecting thread.
+        boolean timedOut;
+
+        TargetScrape(String jmxUrl, EurekaRegistryParser.Instance instance, final BlockingQueue<TargetScrape> progress) {
+            this.jmxUrl = jmxUrl;
+            this.instance = instance;
+            this.progress = progress;
+            // The JVM does not measure the cost of virtual threads, it would only charge zeros.
+            Callable<List<MetricFamilySamples>> task = ScrapeExecutors.isVirtual() ? this : scrapeCost.onWorker(this);
+            this.future = new FutureTask<List<MetricFamilySamples>>(task) {
+                @Override
+                protected void done() {
+                    progress.add(TargetScrape.this);
+                }
+            };
+        }
+
+        @Override
+        public List<MetricFamilySamples> call() throws InterruptedException {
+            parallelism.acquire();
+            holdsPermit.set(true);
+            startedNanos = System.nanoTime();
+            started = true;
+            progress.add(this);
+            try {
+                return jmxCollector.scrapeTarget(jmxUrl, targetLabels(instance), connectionPool);
+            } finally {
+                releasePermit();
+            }
+        }
+
+        /**
+         * Give up on the scrape. Its permit goes to the next target right away, a JMX call ignoring the interrupt
+         * must not hold it until it returns.
+         */
+        void cancel() {
+            future.cancel(true);
+            releasePermit();
+        }
+
+        private void releasePermit() {
+            if (holdsPermit.compareAndSet(true, false)) {
+                parallelism.release();
+            }
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_targets", Type.GAUGE, "Number of JMX targets discovered from the Eureka registry", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_target_idle_connections", Type.GAUGE, "Number of JMX connections kept open between scrapes", new ArrayList<MetricFamilySamples.Sample>()));
+        return sampleFamilies;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        connectionPool.close();
+    }
+}
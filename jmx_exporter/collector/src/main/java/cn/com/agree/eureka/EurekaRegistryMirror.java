@@ -0,0 +1,179 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * EurekaRegistryMirror is a local copy of the instances registered on the Eureka server, kept up to date with the
+ * changes returned by {@code /eureka/apps/delta} instead of downloading the full registry on every scrape.
+ *
+ * After applying a delta, the mirror is checked against the {@code apps__hashcode} sent by the server, the same
+ * reconciliation Eureka clients do. On a mismatch the caller falls back to a full fetch.
+ * The sample of an instance is only rendered again when the instance changed.
+ */
+class EurekaRegistryMirror {
+    private static final List<String> LABEL_NAMES =
+            Arrays.asList("eureka_cluster", "application", "host", "instance_id", "status");
+    private static final List<String> APPLICATION_LABEL_NAMES = Arrays.asList("eureka_cluster", "application", "status");
+    private static final Comparator<List<String>> LABEL_VALUES_ORDER = new Comparator<List<String>>() {
+        @Override
+        public int compare(List<String> a, List<String> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = String.valueOf(a.get(i)).compareTo(String.valueOf(b.get(i)));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private final String clusterName;
+    private final Map<String, EurekaRegistryParser.Instance> instances = new HashMap<String, EurekaRegistryParser.Instance>();
+    private final Map<String, MetricFamilySamples.Sample> samples = new HashMap<String, MetricFamilySamples.Sample>();
+    private boolean synced;
+
+    EurekaRegistryMirror(String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    /**
+     * @return false until the first full registry was applied, or after a reconciliation failed.
+     */
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Replace the mirror with the full registry.
+     */
+    public synchronized void applyFull(List<EurekaRegistryParser.Instance> registry) {
+        Map<String, EurekaRegistryParser.Instance> previous = new HashMap<String, EurekaRegistryParser.Instance>(instances);
+        instances.clear();
+        for (EurekaRegistryParser.Instance instance : registry) {
+            String key = key(instance);
+            instances.put(key, instance);
+            if (!sameSample(previous.remove(key), instance)) {
+                samples.put(key, render(instance));
+            }
+        }
+        for (String key : previous.keySet()) {
+            samples.remove(key);
+        }
+        synced = true;
+    }
+
+    /**
+     * Apply the changes returned by {@code /eureka/apps/delta}. A delta holds the changes of the last few minutes,
+     * so it may be applied more than once.
+     *
+     * @return true if the mirror matches the server registry afterwards.
+     */
+    public synchronized boolean applyDelta(List<EurekaRegistryParser.Instance> delta, String appsHashcode) {
+        for (EurekaRegistryParser.Instance instance : delta) {
+            String key = key(instance);
+            if ("DELETED".equals(instance.actionType)) {
+                instances.remove(key);
+                samples.remove(key);
+            } else {
+                EurekaRegistryParser.Instance previous = instances.put(key, instance);
+                if (!sameSample(previous, instance)) {
+                    samples.put(key, render(instance));
+                }
+            }
+        }
+        synced = appsHashcode != null && appsHashcode.equals(reconcileHashCode());
+        return synced;
+    }
+
+    public synchronized List<MetricFamilySamples.Sample> samples() {
+        return new ArrayList<MetricFamilySamples.Sample>(samples.values());
+    }
+
+    /**
+     * @return the instances that are UP, ordered by application.
+     */
+    public synchronized List<EurekaRegistryParser.Instance> upInstances() {
+        List<EurekaRegistryParser.Instance> up = new ArrayList<EurekaRegistryParser.Instance>();
+        for (EurekaRegistryParser.Instance instance : new TreeMap<String, EurekaRegistryParser.Instance>(instances).values()) {
+            if ("UP".equals(instance.status)) {
+                up.add(instance);
+            }
+        }
+        return up;
+    }
+
+    /**
+     * @return the instances that are UP and carry a {@code jmx.port} in their metadata, ordered by application.
+     */
+    public List<EurekaRegistryParser.Instance> jmxTargets() {
+        List<EurekaRegistryParser.Instance> targets = new ArrayList<EurekaRegistryParser.Instance>();
+        for (EurekaRegistryParser.Instance instance : upInstances()) {
+            if (instance.jmxPort != null) {
+                targets.add(instance);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Add the sample of each instance to {@code nodeSamples}, and the number of instances per application and status
+     * to {@code applicationSamples}, in a single pass over the mirror.
+     */
+    public synchronized void addSamples(List<MetricFamilySamples.Sample> nodeSamples,
+                                        List<MetricFamilySamples.Sample> applicationSamples) {
+        Map<List<String>, Integer> countPerApplication = new TreeMap<List<String>, Integer>(LABEL_VALUES_ORDER);
+        for (Map.Entry<String, EurekaRegistryParser.Instance> entry : instances.entrySet()) {
+            nodeSamples.add(samples.get(entry.getKey()));
+            List<String> labelValues = Arrays.asList(clusterName, entry.getValue().app, entry.getValue().status);
+            Integer count = countPerApplication.get(labelValues);
+            countPerApplication.put(labelValues, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<List<String>, Integer> entry : countPerApplication.entrySet()) {
+            applicationSamples.add(new MetricFamilySamples.Sample("eureka_application_instances",
+                    APPLICATION_LABEL_NAMES, entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * The Eureka reconciliation hash: the number of instances per status, sorted by status, e.g. {@code DOWN_1_UP_2_}.
+     */
+    synchronized String reconcileHashCode() {
+        Map<String, Integer> countPerStatus = new TreeMap<String, Integer>();
+        for (EurekaRegistryParser.Instance instance : instances.values()) {
+            Integer count = countPerStatus.get(instance.status);
+            countPerStatus.put(instance.status, count == null ? 1 : count + 1);
+        }
+        StringBuilder hashCode = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : countPerStatus.entrySet()) {
+            hashCode.append(entry.getKey()).append('_').append(entry.getValue()).append('_');
+        }
+        return hashCode.toString();
+    }
+
+    private MetricFamilySamples.Sample render(EurekaRegistryParser.Instance instance) {
+        return new MetricFamilySamples.Sample("eureka_nodes_info", LABEL_NAMES,
+                Arrays.asList(clusterName, instance.app, instance.hostName, instance.instanceId, instance.status), 1);
+    }
+
+    private static boolean sameSample(EurekaRegistryParser.Instance previous, EurekaRegistryParser.Instance instance) {
+        return previous != null && equals(previous.status, instance.status)
+                && equals(previous.hostName, instance.hostName) && equals(previous.instanceId, instance.instanceId);
+    }
+
+    private static String key(EurekaRegistryParser.Instance instance) {
+        // Old Eureka versions do not send instanceId, the host name is unique within an application there.
+        return instance.app + "/" + (instance.instanceId != null ? instance.instanceId : instance.hostName);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,135 @@
+package cn.com.agree.eureka;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * EurekaRegistryParser reads the XML returned by {@code /eureka/apps} as a stream. Only the fields used by the
+ * collector are read from each {@code <instance>}, plus the {@code jmx.port} and {@code prometheus.port} entries of its
+ * metadata. The rest of the document (lease info, other metadata, data center info) is skipped, and each instance is handed to the listener as soon as its closing tag is read. Memory use therefore
+ * does not grow with the size of the registry.
+ *
+ * The same format is returned by {@code /eureka/apps/delta}, where each instance also carries its {@code actionType}.
+ */
+class EurekaRegistryParser {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+    interface InstanceListener {
+        void onInstance(Instance instance);
+    }
+
+    static class Instance {
+        String app;
+        String hostName;
+        String ipAddr;
+        String port;
+        String instanceId;
+        String status;
+        // ADDED, MODIFIED or DELETED in a delta, null in the full registry.
+        String actionType;
+        // The jmx.port metadata of the instance, null if it does not expose a JMX port.
+        String jmxPort;
+        // The prometheus.port metadata of the instance, the port of its exporter if it is not the application port.
+        String prometheusPort;
+    }
+
+    /**
+     * @return the {@code apps__hashcode} of the document, null if absent.
+     */
+    static String parse(InputStream in, String encoding, InstanceListener listener) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in, encoding);
+        String appsHashcode = null;
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if ("instance".equals(reader.getLocalName())) {
+                    listener.onInstance(readInstance(reader));
+                } else if ("apps__hashcode".equals(reader.getLocalName())) {
+                    appsHashcode = reader.getElementText().trim();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return appsHashcode;
+    }
+
+    /**
+     * Read the direct children of an {@code <instance>}, leaving the reader on its closing tag.
+     */
+    private static Instance readInstance(XMLStreamReader reader) throws XMLStreamException {
+        Instance instance = new Instance();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if ("app".equals(name)) {
+                instance.app = reader.getElementText().trim();
+            } else if ("hostName".equals(name)) {
+                instance.hostName = reader.getElementText().trim();
+            } else if ("port".equals(name)) {
+                instance.port = reader.getElementText().trim();
+            } else if ("ipAddr".equals(name)) {
+                instance.ipAddr = reader.getElementText().trim();
+            } else if ("instanceId".equals(name)) {
+                instance.instanceId = reader.getElementText().trim();
+            } else if ("status".equals(name)) {
+                instance.status = reader.getElementText().trim();
+            } else if ("actionType".equals(name)) {
+                instance.actionType = reader.getElementText().trim();
+            } else if ("metadata".equals(name)) {
+                readMetadata(reader, instance);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Read the {@code jmx.port} and {@code prometheus.port} entries of a {@code <metadata>}, leaving the reader on its
+     * closing tag.
+     */
+    private static void readMetadata(XMLStreamReader reader, Instance instance) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if ("jmx.port".equals(name)) {
+                String port = reader.getElementText().trim();
+                instance.jmxPort = port.isEmpty() ? null : port;
+            } else if ("prometheus.port".equals(name)) {
+                String port = reader.getElementText().trim();
+                instance.prometheusPort = port.isEmpty() ? null : port;
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
+
+    /**
+     * Skip the current element and all its content, leaving the reader on its closing tag.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static XMLInputFactory newXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // The registry is plain data, never resolve DTDs or external entities.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
@@ -0,0 +1,33 @@
+package cn.com.agree.eureka;
+
+/**
+ * Serves the Eureka registry as Prometheus {@code http_sd} targets, see {@link HttpSdTargets}.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   server.addHandler(HttpSdHandler.PATH, new HttpSdHandler(eurekaCollector));
+ * }
+ * </pre>
+ */
+public class HttpSdHandler implements NioHttpServer.Handler {
+    public static final String PATH = "/sd/targets";
+
+    private final EurekaInfoCollector eurekaCollector;
+
+    public HttpSdHandler(EurekaInfoCollector eurekaCollector) {
+        this.eurekaCollector = eurekaCollector;
+    }
+
+    @Override
+    public NioHttpServer.Response handle(NioHttpServer.Request request) {
+        HttpSdTargets targets = eurekaCollector.getHttpSdTargets();
+        NioHttpServer.Response response;
+        if (targets.matches(request.getHeader("If-None-Match"))) {
+            response = new NioHttpServer.Response(304, null, null);
+        } else {
+            response = new NioHttpServer.Response(200, HttpSdTargets.CONTENT_TYPE, targets.getBody());
+        }
+        return response.header("ETag", targets.getEtag());
+    }
+}
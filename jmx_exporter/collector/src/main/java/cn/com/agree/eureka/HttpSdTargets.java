@@ -0,0 +1,103 @@
+package cn.com.agree.eureka;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpSdTargets is the list of scrape targets in the Prometheus {@code http_sd} format, one target group per
+ * application:
+ * <pre>
+ * [{"targets":["10.0.0.1:8080","10.0.0.2:8080"],"labels":{"eureka_cluster":"default","application":"ORDER"}}]
+ * </pre>
+ * A target is the host of an UP instance with its {@code prometheus.port} metadata, or its application port if absent.
+ * The document is rendered once per registry refresh, its ETag lets Prometheus poll an unchanged registry without
+ * downloading it again.
+ */
+class HttpSdTargets {
+    static final String CONTENT_TYPE = "application/json; charset=utf-8";
+    static final HttpSdTargets EMPTY = new HttpSdTargets("[]".getBytes(Charset.forName("UTF-8")));
+
+    private final byte[] body;
+    private final String etag;
+
+    private HttpSdTargets(byte[] body) {
+        this.body = body;
+        this.etag = etag(body);
+    }
+
+    static HttpSdTargets render(String clusterName, List<EurekaRegistryParser.Instance> instances) {
+        Map<String, List<String>> targetsPerApplication = new LinkedHashMap<String, List<String>>();
+        for (EurekaRegistryParser.Instance instance : instances) {
+            String port = instance.prometheusPort != null ? instance.prometheusPort : instance.port;
+            if (port == null) {
+                continue;
+            }
+            List<String> targets = targetsPerApplication.get(instance.app);
+            if (targets == null) {
+                targets = new ArrayList<String>();
+                targetsPerApplication.put(instance.app, targets);
+            }
+            targets.add(instance.hostName + ":" + port);
+        }
+
+        JSONArray groups = new JSONArray();
+        for (Map.Entry<String, List<String>> entry : targetsPerApplication.entrySet()) {
+            JSONObject labels = new JSONObject(true);
+            labels.put("eureka_cluster", clusterName);
+            labels.put("application", entry.getKey());
+            JSONObject group = new JSONObject(true);
+            group.put("targets", entry.getValue());
+            group.put("labels", labels);
+            groups.add(group);
+        }
+        return new HttpSdTargets(groups.toJSONString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the strong validator of the document, quoted as sent in the {@code ETag} header.
+     */
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return true if the {@code If-None-Match} header of a request matches this document.
+     */
+    boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            StringBuilder etag = new StringBuilder("\"");
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(body)) {
+                etag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+}
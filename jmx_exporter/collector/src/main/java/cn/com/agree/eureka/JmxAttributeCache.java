@@ -0,0 +1,234 @@
+package cn.com.agree.eureka;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JmxAttributeCache keeps the values recorded for mBean attributes during the last fetch, along with the interval
+ * requested by the rule that exported them. Attributes that are not due yet are replayed from this cache instead of
+ * being fetched from the MBeanServer again (See the rule level {@code interval} setting).
+ * <p>
+ * It also keeps the names of the metrics each attribute was exported as, so that a scrape asking for a few metrics
+ * only fetches the attributes producing them (See {@link #selectExporting}).
+ * <p>
+ * The entry of a bean of the local MBeanServer is dropped as soon as the bean is unregistered or registered again, so
+ * that a new bean under the same name is fetched (See {@link #listenForRegistrations}). The entries of the beans of a
+ * remote target are only dropped once a full scrape no longer finds the bean.
+ */
+class JmxAttributeCache {
+    private static final Logger LOGGER = Logger.getLogger(JmxAttributeCache.class.getName());
+
+    private final Map<ObjectName, CachedBean> cachedBeans = new ConcurrentHashMap<ObjectName, CachedBean>();
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    /**
+     * @return the cache entry of the bean, created if absent.
+     */
+    public CachedBean getBean(ObjectName mbeanName) {
+        // Scrapes and background refreshes run concurrently, the entry must only be created once.
+        return cachedBeans.computeIfAbsent(mbeanName, name -> new CachedBean());
+    }
+
+    /**
+     * @return the number of beans none of whose attributes can be exported, and which are therefore not fetched.
+     */
+    public int neverExportedBeanCount() {
+        int count = 0;
+        for (CachedBean cachedBean : cachedBeans.values()) {
+            if (cachedBean.isNeverExported()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the attributes to fetch per bean to produce the given metrics, as far as the previous fetches tell.
+     */
+    public Map<ObjectName, Set<String>> selectExporting(Set<String> metricNames) {
+        Map<ObjectName, Set<String>> selection = new HashMap<ObjectName, Set<String>>();
+        for (Map.Entry<ObjectName, CachedBean> bean : cachedBeans.entrySet()) {
+            for (Map.Entry<String, Set<String>> export : bean.getValue().exports.entrySet()) {
+                if (Collections.disjoint(export.getValue(), metricNames)) {
+                    continue;
+                }
+                Set<String> attrNames = selection.get(bean.getKey());
+                if (attrNames == null) {
+                    attrNames = new HashSet<String>();
+                    selection.put(bean.getKey(), attrNames);
+                }
+                attrNames.add(export.getKey());
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Drop the entry of a bean whenever it is registered or unregistered on the server, even between two scrapes or
+     * during selective scrapes, which do not look for the beans that are gone. Only the first call registers a listener.
+     */
+    public void listenForRegistrations(MBeanServer server) {
+        if (!listening.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, new RegistrationListener(this, server),
+                    null, null);
+        } catch (InstanceNotFoundException e) {
+            LOGGER.log(Level.FINE, "Unable to listen for mBean registrations", e);
+        }
+    }
+
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        for (ObjectName prevName : cachedBeans.keySet()) {
+            if (!latestBeans.contains(prevName)) {
+                cachedBeans.remove(prevName);
+            }
+        }
+    }
+
+    /**
+     * Only holds the cache weakly: the listener of a cache dropped on a configuration reload removes itself on the next
+     * registration.
+     */
+    private static class RegistrationListener implements NotificationListener {
+        private final WeakReference<JmxAttributeCache> cache;
+        private final MBeanServer server;
+
+        RegistrationListener(JmxAttributeCache cache, MBeanServer server) {
+            this.cache = new WeakReference<JmxAttributeCache>(cache);
+            this.server = server;
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            JmxAttributeCache attributeCache = cache.get();
+            if (attributeCache == null) {
+                try {
+                    server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+                } catch (InstanceNotFoundException e) {
+                    LOGGER.log(Level.FINE, "Unable to remove the mBean registration listener", e);
+                } catch (ListenerNotFoundException e) {
+                    LOGGER.log(Level.FINE, "Unable to remove the mBean registration listener", e);
+                }
+            } else if (notification instanceof MBeanServerNotification) {
+                attributeCache.cachedBeans.remove(((MBeanServerNotification) notification).getMBeanName());
+            }
+        }
+    }
+
+    static class CachedBean {
+        final Map<String, CachedAttribute> attributes = new ConcurrentHashMap<String, CachedAttribute>();
+        // Number of readable attributes found in the MBeanInfo of the last fetch, -1 if never fetched.
+        volatile int readableAttributes = -1;
+        // Names of the metrics exported from each attribute so far.
+        final Map<String, Set<String>> exports = new ConcurrentHashMap<String, Set<String>>();
+
+        void recordExport(String attrName, String metricName) {
+            exports.computeIfAbsent(attrName, name -> Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()))
+                    .add(metricName);
+        }
+
+        /**
+         * @return true if every readable attribute of the bean can be served from the cache.
+         */
+        boolean isFullyCached(long nowMillis) {
+            if (readableAttributes < 0 || attributes.size() != readableAttributes) {
+                return false;
+            }
+            for (CachedAttribute cachedAttribute : attributes.values()) {
+                if (cachedAttribute.isDue(nowMillis)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isNeverExported() {
+            if (readableAttributes < 0 || attributes.size() != readableAttributes) {
+                return false;
+            }
+            for (CachedAttribute cachedAttribute : attributes.values()) {
+                if (cachedAttribute.intervalMillis != JmxScraper.MBeanReceiver.NEVER_EXPORTED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void replay(JmxScraper.MBeanReceiver receiver) {
+            for (CachedAttribute cachedAttribute : attributes.values()) {
+                cachedAttribute.replay(receiver);
+            }
+        }
+    }
+
+    /**
+     * A single call to {@link JmxScraper.MBeanReceiver#recordBean}, kept so that it can be replayed later.
+     */
+    static class RecordedValue {
+        final String domain;
+        final LinkedHashMap<String, String> beanProperties;
+        final LinkedList<String> attrKeys;
+        final String attrName;
+        final String attrType;
+        final String attrDescription;
+        final Object value;
+
+        RecordedValue(String domain, LinkedHashMap<String, String> beanProperties, LinkedList<String> attrKeys,
+                      String attrName, String attrType, String attrDescription, Object value) {
+            this.domain = domain;
+            this.beanProperties = beanProperties;
+            this.attrKeys = attrKeys;
+            this.attrName = attrName;
+            this.attrType = attrType;
+            this.attrDescription = attrDescription;
+            this.value = value;
+        }
+
+        void replay(JmxScraper.MBeanReceiver receiver) {
+            receiver.recordBean(domain, beanProperties, attrKeys, attrName, attrType, attrDescription, value);
+        }
+    }
+
+    static class CachedAttribute {
+        final List<RecordedValue> values;
+        final long fetchedAtMillis;
+        final long intervalMillis;
+
+        CachedAttribute(List<RecordedValue> values, long fetchedAtMillis, long intervalMillis) {
+            this.values = values;
+            this.fetchedAtMillis = fetchedAtMillis;
+            this.intervalMillis = intervalMillis;
+        }
+
+        boolean isDue(long nowMillis) {
+            return nowMillis - fetchedAtMillis >= intervalMillis;
+        }
+
+        void replay(JmxScraper.MBeanReceiver receiver) {
+            for (RecordedValue value : values) {
+                value.replay(receiver);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package cn.com.agree.eureka;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import org.yaml.snakeyaml.Yaml;
 
@@ -11,6 +12,8 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -19,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,6 +44,11 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
     private static final String PUBLIC_LABELS = "publicLabels";
 
+    // The targets of a config share its rule matches, a match is evicted once no target has used it for this long.
+    private static final long TARGET_RULES_EVICTION_MILLIS = 10 * 60 * 1000L;
+    // The collector label of the cost of the scrapes of the main configuration.
+    private static final String SCRAPE_COST_COLLECTOR = "jmx";
+
     static class Rule {
         Pattern pattern;
         String name;
@@ -48,6 +57,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
         String help;
         boolean attrNameSnakeCase;
         boolean cache = false;
+        long intervalMillis = 0;
         Type type = Type.UNKNOWN;
         ArrayList<String> labelNames;
         ArrayList<String> labelValues;
@@ -62,6 +72,14 @@ public class JmxCollector extends Collector implements Collector.Describable {
         boolean ssl = false;
         boolean lowercaseOutputName;
         boolean lowercaseOutputLabelNames;
+        long expensiveBeanThresholdMillis = 0;
+        long expensiveBeanRefreshSeconds = 60;
+        int attributeFailureThreshold = 3;
+        long attributeBlacklistSeconds = 600;
+        long selectiveScrapeMaxAgeSeconds = 600;
+        double scrapeCpuBudgetMillis = 0;
+        double scrapeCpuBudgetMillisPerMinute = 0;
+        boolean directPlatformMBeanAccess;
         List<ObjectName> whitelistObjectNames = new ArrayList<ObjectName>();
         List<ObjectName> blacklistObjectNames = new ArrayList<ObjectName>();
         List<Rule> rules = new ArrayList<Rule>();
@@ -69,25 +87,72 @@ public class JmxCollector extends Collector implements Collector.Describable {
         Map<String, String> publicLabels = new HashMap<String, String>();
 
         MatchedRulesCache rulesCache;
+        JmxAttributeCache attributeCache;
+        MBeanCostTracker costTracker;
+        AttributeBlacklist attributeBlacklist;
+        CpuBudget cpuBudget;
+        // Rule matches of the targets scraped with scrapeTarget, and the ones used since the last eviction.
+        MatchedRulesCache targetRulesCache;
+        final MatchedRulesCache.StalenessTracker targetStaleness = new MatchedRulesCache.StalenessTracker();
+        long targetStalenessSinceMillis = System.currentTimeMillis();
+        // When the last successful scrape of every whitelisted bean ended, selective scrapes rely on what it learnt.
+        volatile long lastFullScrapeMillis = 0L;
+    }
+
+    /**
+     * The caches of a target scraped with {@link #scrapeTarget}, valid for the config they were built with. The rule
+     * matches are shared by all the targets of the config.
+     */
+    private static class TargetState {
+        final Config config;
+        final JmxMBeanPropertyCache jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+        final JmxAttributeCache attributeCache = new JmxAttributeCache();
+        final MBeanCostTracker costTracker;
+        final AttributeBlacklist attributeBlacklist;
+
+        TargetState(Config config) {
+            this.config = config;
+            costTracker = new MBeanCostTracker(config.expensiveBeanThresholdMillis * 1000000L,
+                    config.expensiveBeanRefreshSeconds * 1000L);
+            attributeBlacklist = new AttributeBlacklist(config.attributeFailureThreshold,
+                    config.attributeBlacklistSeconds * 1000L);
+        }
     }
 
     private Config config;
     private File configFile;
     private long createTimeNanoSecs = System.nanoTime();
 
-    private final JmxMBeanPropertyCache jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+    private final JmxMBeanPropertyCache jmxMBeanPropertyCache;
+    private final Map<String, TargetState> targets = new ConcurrentHashMap<String, TargetState>();
+    private final ScrapeCost scrapeCost;
 
     public JmxCollector(File in) throws IOException, MalformedObjectNameException {
+        this(in, new JmxMBeanPropertyCache(), SCRAPE_COST_COLLECTOR);
+    }
+
+    /**
+     * @param jmxMBeanPropertyCache the cache of the bean key properties, shared by the collectors of the same JVM.
+     * @param name                  the {@code collector} label of the cost of the scrapes, see {@link ScrapeCost}.
+     */
+    JmxCollector(File in, JmxMBeanPropertyCache jmxMBeanPropertyCache, String name)
+            throws IOException, MalformedObjectNameException {
+        this.jmxMBeanPropertyCache = jmxMBeanPropertyCache;
+        scrapeCost = new ScrapeCost(name);
         configFile = in;
         config = loadConfig((Map<String, Object>) new Yaml().load(new FileReader(in)));
         config.lastUpdate = configFile.lastModified();
     }
 
     public JmxCollector(String yamlConfig) throws MalformedObjectNameException {
+        jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+        scrapeCost = new ScrapeCost(SCRAPE_COST_COLLECTOR);
         config = loadConfig((Map<String, Object>) new Yaml().load(yamlConfig));
     }
 
     public JmxCollector(InputStream inputStream) throws MalformedObjectNameException {
+        jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+        scrapeCost = new ScrapeCost(SCRAPE_COST_COLLECTOR);
         config = loadConfig((Map<String, Object>) new Yaml().load(inputStream));
     }
 
@@ -168,6 +233,38 @@ public class JmxCollector extends Collector implements Collector.Describable {
             cfg.lowercaseOutputLabelNames = (Boolean) yamlConfig.get("lowercaseOutputLabelNames");
         }
 
+        if (yamlConfig.containsKey("expensiveBeanThresholdMillis")) {
+            cfg.expensiveBeanThresholdMillis = ((Number) yamlConfig.get("expensiveBeanThresholdMillis")).longValue();
+        }
+
+        if (yamlConfig.containsKey("expensiveBeanRefreshSeconds")) {
+            cfg.expensiveBeanRefreshSeconds = ((Number) yamlConfig.get("expensiveBeanRefreshSeconds")).longValue();
+        }
+
+        if (yamlConfig.containsKey("attributeFailureThreshold")) {
+            cfg.attributeFailureThreshold = ((Number) yamlConfig.get("attributeFailureThreshold")).intValue();
+        }
+
+        if (yamlConfig.containsKey("attributeBlacklistSeconds")) {
+            cfg.attributeBlacklistSeconds = ((Number) yamlConfig.get("attributeBlacklistSeconds")).longValue();
+        }
+
+        if (yamlConfig.containsKey("selectiveScrapeMaxAgeSeconds")) {
+            cfg.selectiveScrapeMaxAgeSeconds = ((Number) yamlConfig.get("selectiveScrapeMaxAgeSeconds")).longValue();
+        }
+
+        if (yamlConfig.containsKey("scrapeCpuBudgetMillis")) {
+            cfg.scrapeCpuBudgetMillis = ((Number) yamlConfig.get("scrapeCpuBudgetMillis")).doubleValue();
+        }
+
+        if (yamlConfig.containsKey("scrapeCpuBudgetMillisPerMinute")) {
+            cfg.scrapeCpuBudgetMillisPerMinute = ((Number) yamlConfig.get("scrapeCpuBudgetMillisPerMinute")).doubleValue();
+        }
+
+        if (yamlConfig.containsKey("directPlatformMBeanAccess")) {
+            cfg.directPlatformMBeanAccess = (Boolean) yamlConfig.get("directPlatformMBeanAccess");
+        }
+
         if (yamlConfig.containsKey("whitelistObjectNames")) {
             List<Object> names = (List<Object>) yamlConfig.get("whitelistObjectNames");
             for (Object name : names) {
@@ -213,6 +310,13 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 if (yamlRule.containsKey("cache")) {
                     rule.cache = (Boolean) yamlRule.get("cache");
                 }
+                if (yamlRule.containsKey("interval")) {
+                    try {
+                        rule.intervalMillis = (long) (Double.valueOf(String.valueOf(yamlRule.get("interval"))) * 1000);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid number provided for interval: " + yamlRule, e);
+                    }
+                }
                 if (yamlRule.containsKey("type")) {
                     String t = (String) yamlRule.get("type");
                     // Gracefully handle switch to OM data model.
@@ -253,6 +357,14 @@ public class JmxCollector extends Collector implements Collector.Describable {
         }
 
         cfg.rulesCache = new MatchedRulesCache(cfg.rules);
+        cfg.targetRulesCache = new MatchedRulesCache(cfg.rules);
+        cfg.attributeCache = new JmxAttributeCache();
+        cfg.costTracker = new MBeanCostTracker(cfg.expensiveBeanThresholdMillis * 1000000L,
+                cfg.expensiveBeanRefreshSeconds * 1000L);
+        cfg.attributeBlacklist = new AttributeBlacklist(cfg.attributeFailureThreshold,
+                cfg.attributeBlacklistSeconds * 1000L);
+        cfg.cpuBudget = new CpuBudget((long) (cfg.scrapeCpuBudgetMillis * 1000000L),
+                (long) (cfg.scrapeCpuBudgetMillisPerMinute * 1000000L));
         return cfg;
 
     }
@@ -322,15 +434,35 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 new HashMap<String, MetricFamilySamples>();
 
         Config config;
+        MatchedRulesCache rulesCache;
+        JmxAttributeCache attributeCache;
         MatchedRulesCache.StalenessTracker stalenessTracker;
+        // The attribute being fetched, its exports are recorded to the attribute cache.
+        private ObjectName currentBean;
+        private String currentAttribute;
 
         private static final char SEP = '_';
 
-        Receiver(Config config, MatchedRulesCache.StalenessTracker stalenessTracker) {
+        Receiver(Config config, MatchedRulesCache rulesCache, JmxAttributeCache attributeCache,
+                 MatchedRulesCache.StalenessTracker stalenessTracker) {
             this.config = config;
+            this.rulesCache = rulesCache;
+            this.attributeCache = attributeCache;
             this.stalenessTracker = stalenessTracker;
         }
 
+        @Override
+        public void startAttribute(ObjectName mbeanName, String attrName) {
+            currentBean = mbeanName;
+            currentAttribute = attrName;
+        }
+
+        @Override
+        public void endAttribute() {
+            currentBean = null;
+            currentAttribute = null;
+        }
+
         // [] and () are special in regexes, so swtich to <>.
         private String angleBrackets(String s) {
             return "<" + s.substring(1, s.length() - 1) + ">";
@@ -351,7 +483,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
         // if the rule is configured to be cached
         private void addToCache(final Rule rule, final String cacheKey, final MatchedRule matchedRule) {
             if (rule.cache) {
-                config.rulesCache.put(rule, cacheKey, matchedRule);
+                rulesCache.put(rule, cacheKey, matchedRule);
                 stalenessTracker.add(rule, cacheKey);
             }
         }
@@ -404,7 +536,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
             return new MatchedRule(fullname, matchName, type, help, labelNames, labelValues, value, valueFactor);
         }
 
-        public void recordBean(
+        public long recordBean(
                 String domain,
                 LinkedHashMap<String, String> beanProperties,
                 LinkedList<String> attrKeys,
@@ -419,8 +551,16 @@ public class JmxCollector extends Collector implements Collector.Describable {
             String attrNameSnakeCase = toSnakeAndLowerCase(attrName);
 
             MatchedRule matchedRule = MatchedRule.unmatched();
-
-            for (Rule rule : config.rules) {
+            long intervalMillis = 0;
+            // As long as only cached rules are involved, the outcome does not depend on the bean value,
+            // so a value that is not exported now will never be.
+            boolean valueIndependent = true;
+            Object matchEvent = ScrapeEvents.beginRuleMatch();
+            int ruleIndex = -1;
+
+            for (int r = 0; r < config.rules.size(); r++) {
+                Rule rule = config.rules.get(r);
+                valueIndependent &= rule.cache;
                 // Rules with bean values cannot be properly cached (only the value from the first scrape will be cached).
                 // If caching for the rule is enabled, replace the value with a dummy <cache> to avoid caching different values at different times.
                 Object matchBeanValue = rule.cache ? "<cache>" : beanValue;
@@ -428,11 +568,13 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 String matchName = beanName + (rule.attrNameSnakeCase ? attrNameSnakeCase : attrName) + ": " + matchBeanValue;
 
                 if (rule.cache) {
-                    MatchedRule cachedRule = config.rulesCache.get(rule, matchName);
+                    MatchedRule cachedRule = rulesCache.get(rule, matchName);
                     if (cachedRule != null) {
                         stalenessTracker.add(rule, matchName);
                         if (cachedRule.isMatched()) {
                             matchedRule = cachedRule;
+                            intervalMillis = rule.intervalMillis;
+                            ruleIndex = r;
                             break;
                         }
 
@@ -458,7 +600,8 @@ public class JmxCollector extends Collector implements Collector.Describable {
                         value = Double.valueOf(val);
                     } catch (NumberFormatException e) {
                         LOGGER.fine("Unable to parse configured value '" + val + "' to number for bean: " + beanName + attrName + ": " + beanValue);
-                        return;
+                        ScrapeEvents.endRuleMatch(matchEvent, beanName, attrName, r);
+                        return valueIndependent ? NEVER_EXPORTED : 0;
                     }
                 }
 
@@ -466,13 +609,16 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 if (rule.name == null) {
                     matchedRule = defaultExport(matchName, domain, beanProperties, attrKeys, rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, help, value, rule.valueFactor, rule.type);
                     addToCache(rule, matchName, matchedRule);
+                    intervalMillis = rule.intervalMillis;
+                    ruleIndex = r;
                     break;
                 }
 
                 // Matcher is set below here due to validation in the constructor.
                 String name = safeName(matcher.replaceAll(rule.name));
                 if (name.isEmpty()) {
-                    return;
+                    ScrapeEvents.endRuleMatch(matchEvent, beanName, attrName, r);
+                    return valueIndependent ? NEVER_EXPORTED : 0;
                 }
                 if (config.lowercaseOutputName) {
                     name = name.toLowerCase();
@@ -509,11 +655,14 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
                 matchedRule = new MatchedRule(name, matchName, rule.type, help, labelNames, labelValues, value, rule.valueFactor);
                 addToCache(rule, matchName, matchedRule);
+                intervalMillis = rule.intervalMillis;
+                ruleIndex = r;
                 break;
             }
+            ScrapeEvents.endRuleMatch(matchEvent, beanName, attrName, ruleIndex);
 
             if (matchedRule.isUnmatched()) {
-                return;
+                return valueIndependent ? NEVER_EXPORTED : 0;
             }
 
             Number value;
@@ -527,7 +676,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 value = (Boolean) beanValue ? 1 : 0;
             } else {
                 LOGGER.fine("Ignoring unsupported bean: " + beanName + attrName + ": " + beanValue);
-                return;
+                return valueIndependent ? NEVER_EXPORTED : 0;
             }
 
             //append public labels
@@ -540,34 +689,64 @@ public class JmxCollector extends Collector implements Collector.Describable {
             // Add to samples.
             LOGGER.fine("add metric sample: " + matchedRule.name + " " + matchedRule.labelNames + " " + matchedRule.labelValues + " " + value.doubleValue());
             addSample(new MetricFamilySamples.Sample(matchedRule.name, matchedRule.labelNames, matchedRule.labelValues, value.doubleValue()), matchedRule.type, help);
+            if (currentBean != null) {
+                attributeCache.getBean(currentBean).recordExport(currentAttribute, matchedRule.name);
+            }
+            return intervalMillis;
         }
 
     }
 
+    /**
+     * Also export the cost of the scrapes to the registry, see {@link ScrapeCost}.
+     */
+    @Override
+    public <T extends Collector> T register(CollectorRegistry registry) {
+        T collector = super.register(registry);
+        scrapeCost.register(registry);
+        return collector;
+    }
+
     public List<MetricFamilySamples> collect() {
         // Take a reference to the current config and collect with this one
         // (to avoid race conditions in case another thread reloads the config in the meantime)
         Config config = getLatestConfig();
 
+        Map<ObjectName, Set<String>> selection = selection(config, ScrapeRequest.requestedNames());
         MatchedRulesCache.StalenessTracker stalenessTracker = new MatchedRulesCache.StalenessTracker();
-        Receiver receiver = new Receiver(config, stalenessTracker);
+        Receiver receiver = new Receiver(config, config.rulesCache, config.attributeCache, stalenessTracker);
         JmxScraper scraper = new JmxScraper(config.jmxUrl, config.username, config.password, config.clusterId, config.ssl,
-                config.whitelistObjectNames, config.blacklistObjectNames, receiver, jmxMBeanPropertyCache);
+                config.whitelistObjectNames, config.blacklistObjectNames, receiver, jmxMBeanPropertyCache,
+                config.attributeCache, config.costTracker, config.attributeBlacklist, null,
+                config.directPlatformMBeanAccess ? PlatformMBeanAccessor.getInstance() : null);
+        Object scrapeEvent = ScrapeEvents.beginScrape();
         long start = System.nanoTime();
         double error = 0;
         if ((config.startDelaySeconds > 0) &&
                 ((start - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds)) {
             throw new IllegalStateException("JMXCollector waiting for startDelaySeconds");
         }
+        CpuBudget.Usage cpuUsage = config.cpuBudget.begin();
+        ScrapeCost.Measurement costMeasurement = scrapeCost.begin(cpuUsage);
         try {
-            scraper.doScrape();
+            scraper.doScrape(selection, config.cpuBudget.isLimited() ? cpuUsage : null, scrapeCost);
         } catch (Exception e) {
             error = 1;
             StringWriter sw = new StringWriter();
             e.printStackTrace(new PrintWriter(sw));
             LOGGER.severe("JMX scrape failed: " + sw.toString());
+        } finally {
+            // Also charges the CPU time of the scrape to its budget.
+            costMeasurement.end();
         }
-        config.rulesCache.evictStaleEntries(stalenessTracker);
+        if (selection == null) {
+            // A selective scrape only sees a few rules in use, it cannot tell which are stale.
+            config.rulesCache.evictStaleEntries(stalenessTracker);
+            if (error == 0) {
+                config.lastFullScrapeMillis = System.currentTimeMillis();
+            }
+        }
+        ScrapeEvents.endScrape(scrapeEvent, config.jmxUrl, receiver.metricFamilySamplesMap.size(), error != 0);
 
         List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
         mfsList.addAll(receiver.metricFamilySamplesMap.values());
@@ -581,17 +760,152 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 "jmx_scrape_error", new ArrayList<String>(), new ArrayList<String>(), error));
         mfsList.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
         samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+                "jmx_scrape_cpu_budget_exhausted", new ArrayList<String>(), new ArrayList<String>(), cpuUsage.wasExhausted() ? 1 : 0));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_cpu_budget_exhausted", Type.GAUGE, "1 if this scrape ran out of CPU budget and served the remaining beans from their last values.", samples));
+        samples = new ArrayList<MetricFamilySamples.Sample>();
         samples.add(new MetricFamilySamples.Sample(
                 "jmx_scrape_cached_beans", new ArrayList<String>(), new ArrayList<String>(), stalenessTracker.cachedCount()));
         mfsList.add(new MetricFamilySamples("jmx_scrape_cached_beans", Type.GAUGE, "Number of beans with their matching rule cached", samples));
+
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+                "jmx_scrape_blacklisted_attributes", new ArrayList<String>(), new ArrayList<String>(), config.attributeBlacklist.blacklistedCount(System.currentTimeMillis())));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_blacklisted_attributes", Type.GAUGE, "Number of attributes left out of the fetches after failing repeatedly", samples));
+
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+                "jmx_scrape_skipped_beans", new ArrayList<String>(), new ArrayList<String>(), config.attributeCache.neverExportedBeanCount()));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_skipped_beans", Type.GAUGE, "Number of beans not fetched anymore as none of their attributes can be exported", samples));
+
+        Map<ObjectName, Double> expensiveBeans = config.costTracker.expensiveBeans();
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+                "jmx_scrape_async_beans", new ArrayList<String>(), new ArrayList<String>(), expensiveBeans.size()));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_async_beans", Type.GAUGE, "Number of beans too expensive to fetch on every scrape, refreshed in the background", samples));
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        for (Map.Entry<ObjectName, Double> entry : expensiveBeans.entrySet()) {
+            samples.add(new MetricFamilySamples.Sample(
+                    "jmx_scrape_async_bean_cost_seconds", Arrays.asList("object_name"), Arrays.asList(entry.getKey().toString()), entry.getValue()));
+        }
+        mfsList.add(new MetricFamilySamples("jmx_scrape_async_bean_cost_seconds", Type.GAUGE, "Estimated getAttributes latency of the beans refreshed in the background", samples));
         return mfsList;
     }
 
+    /**
+     * A scrape asking for a few metrics with {@code name[]} only fetches the attributes that produced them during the
+     * previous scrapes. Beans registered since are only picked up by a full scrape, which is therefore done instead
+     * when the last one is older than {@code selectiveScrapeMaxAgeSeconds}.
+     *
+     * @return the attributes to fetch per bean, null for a full scrape.
+     */
+    private static Map<ObjectName, Set<String>> selection(Config config, Set<String> requestedNames) {
+        if (requestedNames.isEmpty() || config.selectiveScrapeMaxAgeSeconds <= 0) {
+            return null;
+        }
+        if (System.currentTimeMillis() - config.lastFullScrapeMillis > config.selectiveScrapeMaxAgeSeconds * 1000L) {
+            return null;
+        }
+        return config.attributeCache.selectExporting(requestedNames);
+    }
+
+    /**
+     * Scrape a target other than the configured one with the rules of this collector. Each target keeps its own caches,
+     * the samples carry the given target labels.
+     *
+     * @param connectionPool where the connection to the target is kept between scrapes.
+     */
+    List<MetricFamilySamples> scrapeTarget(String jmxUrl, Map<String, String> targetLabels,
+                                           JmxConnectionPool connectionPool) {
+        Config config = getLatestConfig();
+        TargetState state = targets.get(jmxUrl);
+        if (state == null || state.config != config) {
+            state = new TargetState(config);
+            targets.put(jmxUrl, state);
+        }
+
+        MatchedRulesCache.StalenessTracker stalenessTracker = new MatchedRulesCache.StalenessTracker();
+        Receiver receiver = new Receiver(config, config.targetRulesCache, state.attributeCache, stalenessTracker);
+        JmxScraper scraper = new JmxScraper(jmxUrl, config.username, config.password, config.clusterId, config.ssl,
+                config.whitelistObjectNames, config.blacklistObjectNames, receiver, state.jmxMBeanPropertyCache,
+                state.attributeCache, state.costTracker, state.attributeBlacklist, connectionPool);
+        Object scrapeEvent = ScrapeEvents.beginScrape();
+        long start = System.nanoTime();
+        double error = 0;
+        try {
+            scraper.doScrape();
+        } catch (Exception e) {
+            error = 1;
+            LOGGER.warning("JMX scrape of " + jmxUrl + " failed: " + e);
+        }
+        evictStaleTargetRules(config, stalenessTracker);
+        ScrapeEvents.endScrape(scrapeEvent, jmxUrl, receiver.metricFamilySamplesMap.size(), error != 0);
+
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+        for (MetricFamilySamples mfs : receiver.metricFamilySamplesMap.values()) {
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(mfs.samples.size());
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                samples.add(withLabels(sample.name, sample.labelNames, sample.labelValues, targetLabels, sample.value));
+            }
+            mfsList.add(new MetricFamilySamples(mfs.name, mfs.type, mfs.help, samples));
+        }
+        List<String> noLabels = new ArrayList<String>();
+        mfsList.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.",
+                Arrays.asList(withLabels("jmx_scrape_duration_seconds", noLabels, noLabels, targetLabels, (System.nanoTime() - start) / 1.0E9))));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.",
+                Arrays.asList(withLabels("jmx_scrape_error", noLabels, noLabels, targetLabels, error))));
+        return mfsList;
+    }
+
+    private static void evictStaleTargetRules(Config config, MatchedRulesCache.StalenessTracker stalenessTracker) {
+        synchronized (config.targetStaleness) {
+            config.targetStaleness.addAll(stalenessTracker);
+            long now = System.currentTimeMillis();
+            if (now - config.targetStalenessSinceMillis >= TARGET_RULES_EVICTION_MILLIS) {
+                config.targetRulesCache.evictStaleEntries(config.targetStaleness);
+                config.targetStaleness.clear();
+                config.targetStalenessSinceMillis = now;
+            }
+        }
+    }
+
+    /**
+     * Drop the caches of the targets that are not scraped anymore.
+     */
+    void retainTargets(Collection<String> jmxUrls) {
+        targets.keySet().retainAll(jmxUrls);
+    }
+
+    /**
+     * Drop the caches of the given targets.
+     */
+    void removeTargets(Collection<String> jmxUrls) {
+        targets.keySet().removeAll(jmxUrls);
+    }
+
+    private static MetricFamilySamples.Sample withLabels(String name, List<String> labelNames, List<String> labelValues,
+                                                         Map<String, String> extraLabels, double value) {
+        List<String> names = new ArrayList<String>(labelNames.size() + extraLabels.size());
+        List<String> values = new ArrayList<String>(labelNames.size() + extraLabels.size());
+        names.addAll(labelNames);
+        values.addAll(labelValues);
+        for (Map.Entry<String, String> label : extraLabels.entrySet()) {
+            names.add(label.getKey());
+            values.add(label.getValue());
+        }
+        return new MetricFamilySamples.Sample(name, names, values, value);
+    }
+
     public List<MetricFamilySamples> describe() {
         List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
         sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
         sampleFamilies.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_cpu_budget_exhausted", Type.GAUGE, "1 if this scrape ran out of CPU budget and served the remaining beans from their last values.", new ArrayList<MetricFamilySamples.Sample>()));
         sampleFamilies.add(new MetricFamilySamples("jmx_scrape_cached_beans", Type.GAUGE, "Number of beans with their matching rule cached", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_blacklisted_attributes", Type.GAUGE, "Number of attributes left out of the fetches after failing repeatedly", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_skipped_beans", Type.GAUGE, "Number of beans not fetched anymore as none of their attributes can be exported", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_async_beans", Type.GAUGE, "Number of beans too expensive to fetch on every scrape, refreshed in the background", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_async_bean_cost_seconds", Type.GAUGE, "Estimated getAttributes latency of the beans refreshed in the background", new ArrayList<MetricFamilySamples.Sample>()));
         return sampleFamilies;
     }
 
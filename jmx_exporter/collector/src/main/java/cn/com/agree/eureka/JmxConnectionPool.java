@@ -0,0 +1,108 @@
+package cn.com.agree.eureka;
+
+import javax.management.remote.JMXConnector;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JmxConnectionPool keeps the JMX connection of each target open between scrapes, so that scraping a target does not
+ * pay for the RMI lookup and the connection handshake every time.
+ *
+ * A target is scraped by one thread at a time, so at most one connection per JMX URL is kept. A connection is taken
+ * out of the pool for the duration of a scrape and given back only if the scrape succeeded.
+ */
+class JmxConnectionPool implements Closeable {
+    private static final Logger logger = Logger.getLogger(JmxConnectionPool.class.getName());
+
+    private final Map<String, JMXConnector> idle = new HashMap<String, JMXConnector>();
+    private boolean closed;
+
+    /**
+     * @return the idle connection to the given URL, null if there is none.
+     */
+    public synchronized JMXConnector acquire(String jmxUrl) {
+        return idle.remove(jmxUrl);
+    }
+
+    public void release(String jmxUrl, JMXConnector connector) {
+        JMXConnector evicted;
+        synchronized (this) {
+            evicted = closed ? connector : idle.put(jmxUrl, connector);
+        }
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+    }
+
+    /**
+     * Close the connections to the URLs that are not targets anymore.
+     */
+    public void retainAll(Collection<String> jmxUrls) {
+        Set<String> keep = new HashSet<String>(jmxUrls);
+        for (JMXConnector connector : removeAllBut(keep)) {
+            closeQuietly(connector);
+        }
+    }
+
+    /**
+     * Close the connections to the given URLs.
+     */
+    public void removeAll(Collection<String> jmxUrls) {
+        Collection<JMXConnector> removed = new HashSet<JMXConnector>();
+        synchronized (this) {
+            for (String jmxUrl : jmxUrls) {
+                JMXConnector connector = idle.remove(jmxUrl);
+                if (connector != null) {
+                    removed.add(connector);
+                }
+            }
+        }
+        for (JMXConnector connector : removed) {
+            closeQuietly(connector);
+        }
+    }
+
+    public synchronized int size() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        Collection<JMXConnector> connectors;
+        synchronized (this) {
+            closed = true;
+            connectors = removeAllBut(new HashSet<String>());
+        }
+        for (JMXConnector connector : connectors) {
+            closeQuietly(connector);
+        }
+    }
+
+    private synchronized Collection<JMXConnector> removeAllBut(Set<String> keep) {
+        Collection<JMXConnector> removed = new HashSet<JMXConnector>();
+        for (Iterator<Map.Entry<String, JMXConnector>> it = idle.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, JMXConnector> entry = it.next();
+            if (!keep.contains(entry.getKey())) {
+                removed.add(entry.getValue());
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    static void closeQuietly(JMXConnector connector) {
+        try {
+            connector.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Unable to close the JMX connection", e);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package cn.com.agree.eureka;
 
+import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -32,8 +34,19 @@ class JmxMBeanPropertyCache {
     // in the order they were added).
     private final Map<ObjectName, LinkedHashMap<String, String>> keyPropertiesPerBean;
 
+    private final boolean shared;
+
     public JmxMBeanPropertyCache() {
+        this(false);
+    }
+
+    /**
+     * @param shared true if the cache is used by several collectors with different whitelists. Such a cache keeps the
+     *               beans left out of a scrape as long as they are registered, another collector may still need them.
+     */
+    public JmxMBeanPropertyCache(boolean shared) {
         this.keyPropertiesPerBean = new ConcurrentHashMap<ObjectName, LinkedHashMap<String, String>>();
+        this.shared = shared;
     }
 
     Map<ObjectName, LinkedHashMap<String, String>> getKeyPropertiesPerBean() {
@@ -59,6 +72,29 @@ class JmxMBeanPropertyCache {
         return keyProperties;
     }
 
+    /**
+     * Remove the beans that are not in the latest scrape, or for a shared cache the ones that are not registered
+     * anymore.
+     */
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans, MBeanServerConnection beanConn) {
+        if (!shared) {
+            onlyKeepMBeans(latestBeans);
+            return;
+        }
+        for (ObjectName prevName : keyPropertiesPerBean.keySet()) {
+            if (latestBeans.contains(prevName)) {
+                continue;
+            }
+            try {
+                if (!beanConn.isRegistered(prevName)) {
+                    keyPropertiesPerBean.remove(prevName);
+                }
+            } catch (IOException e) {
+                keyPropertiesPerBean.remove(prevName);
+            }
+        }
+    }
+
     public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
         for (ObjectName prevName : keyPropertiesPerBean.keySet()) {
             if (!latestBeans.contains(prevName)) {
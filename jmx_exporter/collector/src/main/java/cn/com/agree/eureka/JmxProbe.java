@@ -0,0 +1,287 @@
+package cn.com.agree.eureka;
+
+import cn.com.agree.eureka.core.NamedThreadFactory;
+import io.prometheus.client.Collector;
+import org.yaml.snakeyaml.Yaml;
+
+import javax.management.MalformedObjectNameException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * JmxProbe scrapes the JVM given in the request, in the manner of the blackbox exporter, so that a single exporter
+ * serves any number of JVMs:
+ * <pre>
+ * /probe?target=10.0.0.1:9010&amp;module=kafka
+ * </pre>
+ * The probe is only served with {@code metric.probe.enabled}. The target is a {@code host:port} matching one of the
+ * regular expressions of {@code allowedTargets}, or a full JMX URL matching one of those of {@code allowedJmxUrls};
+ * any other target is rejected: the exporter looks up and deserializes whatever the target names, and the endpoint is
+ * not authenticated. The module names a {@link JmxCollector} configuration, the main configuration being the
+ * {@code default} module, and its rules and rule matches are shared by all the targets:
+ * <pre>
+ * metric:
+ *   probe:
+ *     enabled: true
+ *     modules:
+ *       kafka: kafka.yml
+ *     allowedTargets: ['10\.0\.0\.[0-9]+:9010']
+ *     allowedJmxUrls: ['service:jmx:rmi:///jndi/rmi://10\.0\.0\.[0-9]+:9010/jmxrmi']
+ *     maxConcurrentScrapes: 8
+ *     maxConcurrentScrapesPerTarget: 1
+ *     idleConnectionSeconds: 300
+ * </pre>
+ * The connection to a target is kept open between probes, and closed along with its caches by a background task once
+ * the target has not been probed for {@code idleConnectionSeconds}. A probe over the limits is answered with 503.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   JmxProbe probe = JmxProbe.load(file);
+ *   server.addRemoteEndpoint(JmxProbe.PATH, probe, probe.getMaxConcurrentScrapes());
+ * }
+ * </pre>
+ */
+public class JmxProbe implements NioHttpServer.MetricsSource, Closeable {
+    public static final String PATH = "/probe";
+    public static final String DEFAULT_MODULE = "default";
+
+    private static final String METRIC = "metric";
+    private static final String PROBE = "probe";
+    private static final Pattern HOST_PORT = Pattern.compile("(?:[\\w.-]+|\\[[0-9A-Fa-f:.]+]):\\d{1,5}");
+    private static final long MAX_EVICTION_PERIOD_MILLIS = 60000;
+
+    private final Map<String, JmxCollector> modules;
+    private final int maxConcurrentScrapes;
+    private final int maxConcurrentScrapesPerTarget;
+    private final long idleConnectionMillis;
+    private final List<Pattern> allowedTargets;
+    private final List<Pattern> allowedJmxUrls;
+    private final ScheduledExecutorService evictor;
+    private final JmxConnectionPool connectionPool = new JmxConnectionPool();
+    private final Map<String, Semaphore> targetPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final Map<String, Long> lastProbeMillis = new HashMap<String, Long>();
+
+    JmxProbe(Map<String, JmxCollector> modules, int maxConcurrentScrapes, int maxConcurrentScrapesPerTarget,
+             long idleConnectionMillis, List<Pattern> allowedTargets, List<Pattern> allowedJmxUrls) {
+        this.modules = modules;
+        this.maxConcurrentScrapes = maxConcurrentScrapes;
+        this.maxConcurrentScrapesPerTarget = maxConcurrentScrapesPerTarget;
+        this.idleConnectionMillis = idleConnectionMillis;
+        this.allowedTargets = allowedTargets;
+        this.allowedJmxUrls = allowedJmxUrls;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("jmx-probe-eviction", true, Thread.MIN_PRIORITY));
+        long periodMillis = Math.max(1000, Math.min(idleConnectionMillis, MAX_EVICTION_PERIOD_MILLIS));
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleTargets();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the configuration serves the probe, with {@code metric.probe.enabled}.
+     */
+    public static boolean isEnabled(File configFile) throws IOException {
+        Object enabled = probeConfig(configFile).get("enabled");
+        return enabled != null && Boolean.parseBoolean(String.valueOf(enabled));
+    }
+
+    public static JmxProbe load(File configFile) throws IOException, MalformedObjectNameException {
+        Map<String, Object> probe = probeConfig(configFile);
+
+        Map<String, JmxCollector> modules = new LinkedHashMap<String, JmxCollector>();
+        // A collector of its own, the targets of the probe are not the ones of any other collector.
+        modules.put(DEFAULT_MODULE, new JmxCollector(configFile));
+        if (probe.get("modules") != null) {
+            for (Map.Entry<String, Object> module : ((Map<String, Object>) probe.get("modules")).entrySet()) {
+                File file = new File((String) module.getValue());
+                if (!file.isAbsolute()) {
+                    file = new File(configFile.getAbsoluteFile().getParentFile(), file.getPath());
+                }
+                modules.put(module.getKey(), new JmxCollector(file));
+            }
+        }
+        return new JmxProbe(modules,
+                intValue(probe, "maxConcurrentScrapes", 8),
+                intValue(probe, "maxConcurrentScrapesPerTarget", 1),
+                intValue(probe, "idleConnectionSeconds", 300) * 1000L,
+                patterns(probe, "allowedTargets"),
+                patterns(probe, "allowedJmxUrls"));
+    }
+
+    private static List<Pattern> patterns(Map<String, Object> probe, String key) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        if (probe.get(key) != null) {
+            for (Object pattern : (List<Object>) probe.get(key)) {
+                patterns.add(Pattern.compile((String) pattern));
+            }
+        }
+        return patterns;
+    }
+
+    private static Map<String, Object> probeConfig(File configFile) throws IOException {
+        FileReader reader = new FileReader(configFile);
+        Map<String, Object> yamlConfig;
+        try {
+            yamlConfig = (Map<String, Object>) new Yaml().load(reader);
+        } finally {
+            reader.close();
+        }
+        Map<String, Object> metric = yamlConfig != null ? (Map<String, Object>) yamlConfig.get(METRIC) : null;
+        Map<String, Object> probe = metric != null ? (Map<String, Object>) metric.get(PROBE) : null;
+        return probe != null ? probe : new HashMap<String, Object>();
+    }
+
+    private static int intValue(Map<String, Object> probe, String key, int defaultValue) {
+        Object value = probe.get(key);
+        return value != null ? ((Number) value).intValue() : defaultValue;
+    }
+
+    public int getMaxConcurrentScrapes() {
+        return maxConcurrentScrapes;
+    }
+
+    /**
+     * @throws NioHttpServer.StatusException 400 if the target is neither a {@code host:port} nor a JMX URL, 403 if it
+     *                                       is a {@code host:port} matching none of {@code allowedTargets} or a JMX URL
+     *                                       matching none of {@code allowedJmxUrls}.
+     */
+    String jmxUrl(String target) {
+        if (HOST_PORT.matcher(target).matches()) {
+            if (!matchesAny(allowedTargets, target)) {
+                throw new NioHttpServer.StatusException(403, "Target " + target + " is not an allowed target");
+            }
+            return "service:jmx:rmi:///jndi/rmi://" + target + "/jmxrmi";
+        }
+        if (!target.startsWith("service:jmx:")) {
+            throw new NioHttpServer.StatusException(400, "Target " + target + " is not a host:port");
+        }
+        if (!matchesAny(allowedJmxUrls, target)) {
+            throw new NioHttpServer.StatusException(403, "Target " + target + " is not an allowed JMX URL");
+        }
+        return target;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String target) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(target).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<Collector.MetricFamilySamples> collect(NioHttpServer.Request request, Set<String> names) {
+        String target = request.getParameter("target");
+        if (target == null || target.isEmpty()) {
+            throw new NioHttpServer.StatusException(400, "Missing target parameter");
+        }
+        String moduleName = request.getParameter("module");
+        JmxCollector module = modules.get(moduleName != null ? moduleName : DEFAULT_MODULE);
+        if (module == null) {
+            throw new NioHttpServer.StatusException(400, "Unknown module " + moduleName);
+        }
+
+        String jmxUrl = jmxUrl(target);
+        Semaphore permits = permits(jmxUrl);
+        if (!permits.tryAcquire()) {
+            throw new NioHttpServer.StatusException(503, "Too many concurrent scrapes of " + target);
+        }
+        List<Collector.MetricFamilySamples> mfsList;
+        try {
+            mfsList = module.scrapeTarget(jmxUrl, Collections.<String, String>emptyMap(), connectionPool);
+        } finally {
+            permits.release();
+        }
+        return names.isEmpty() ? mfsList : filter(mfsList, names);
+    }
+
+    /**
+     * Record the probe of a target.
+     */
+    private synchronized Semaphore permits(String jmxUrl) {
+        lastProbeMillis.put(jmxUrl, System.currentTimeMillis());
+        Semaphore permits = targetPermits.get(jmxUrl);
+        if (permits == null) {
+            permits = new Semaphore(maxConcurrentScrapesPerTarget);
+            targetPermits.put(jmxUrl, permits);
+        }
+        return permits;
+    }
+
+    /**
+     * Close the connections and caches of the targets not probed for {@code idleConnectionMillis}. The connections
+     * are closed outside the lock, a target that does not answer must not hold the probes back.
+     */
+    void evictIdleTargets() {
+        List<String> evicted = new ArrayList<String>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Long>> it = lastProbeMillis.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> entry = it.next();
+                Semaphore permits = targetPermits.get(entry.getKey());
+                boolean probing = permits != null && permits.availablePermits() < maxConcurrentScrapesPerTarget;
+                if (now - entry.getValue() > idleConnectionMillis && !probing) {
+                    it.remove();
+                    targetPermits.remove(entry.getKey());
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+        if (!evicted.isEmpty()) {
+            connectionPool.removeAll(evicted);
+            for (JmxCollector module : modules.values()) {
+                module.removeTargets(evicted);
+            }
+        }
+    }
+
+    private static List<Collector.MetricFamilySamples> filter(List<Collector.MetricFamilySamples> mfsList, Set<String> names) {
+        List<Collector.MetricFamilySamples> filtered = new ArrayList<Collector.MetricFamilySamples>();
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<Collector.MetricFamilySamples.Sample>();
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                if (names.contains(sample.name)) {
+                    samples.add(sample);
+                }
+            }
+            if (!samples.isEmpty()) {
+                filtered.add(new Collector.MetricFamilySamples(mfs.name, mfs.type, mfs.help, samples));
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * @return the number of connections kept open to the probed targets.
+     */
+    int idleConnections() {
+        return connectionPool.size();
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        connectionPool.close();
+    }
+}
@@ -2,9 +2,10 @@ package cn.com.agree.eureka;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
-import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
@@ -20,6 +21,8 @@ import javax.naming.Context;
 import javax.rmi.ssl.SslRMIClientSocketFactory;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -36,7 +39,19 @@ class JmxScraper {
     private static final Logger logger = Logger.getLogger(JmxScraper.class.getName());
 
     public static interface MBeanReceiver {
-        void recordBean(
+        /**
+         * Returned for values that can never be exported whatever they are, e.g. because no rule can match them.
+         */
+        long NEVER_EXPORTED = Long.MAX_VALUE;
+
+        /**
+         * Record a single value of an mBean attribute.
+         *
+         * @return how long, in milliseconds, the value may be served from the last fetch before the attribute has to
+         * be fetched again. 0 means the attribute is fetched on every scrape, {@link #NEVER_EXPORTED} that it does not
+         * need to be fetched anymore.
+         */
+        long recordBean(
             String domain,
             LinkedHashMap<String, String> beanProperties,
             LinkedList<String> attrKeys,
@@ -44,6 +59,16 @@ class JmxScraper {
             String attrType,
             String attrDescription,
             Object value);
+
+        /**
+         * Called before the values of an attribute fetched from the MBeanServer are recorded, values replayed from
+         * the cache come without it.
+         */
+        default void startAttribute(ObjectName mbeanName, String attrName) {
+        }
+
+        default void endAttribute() {
+        }
     }
 
     private final MBeanReceiver receiver;
@@ -54,11 +79,45 @@ class JmxScraper {
     private final boolean ssl;
     private final List<ObjectName> whitelistObjectNames, blacklistObjectNames;
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache;
+    private final JmxAttributeCache jmxAttributeCache;
+    private final MBeanCostTracker mBeanCostTracker;
+    private final AttributeBlacklist attributeBlacklist;
+    private final JmxConnectionPool connectionPool;
+    private final PlatformMBeanAccessor platformAccessor;
     private final OptionalValueExtractor optionalValueExtractor = new OptionalValueExtractor();
 
     public JmxScraper(String jmxUrl, String username, String password, String clusterId, boolean ssl,
                       List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
-                      MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache) {
+                      MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache,
+                      JmxAttributeCache jmxAttributeCache, MBeanCostTracker mBeanCostTracker,
+                      AttributeBlacklist attributeBlacklist) {
+        this(jmxUrl, username, password, clusterId, ssl, whitelistObjectNames, blacklistObjectNames, receiver,
+                jmxMBeanPropertyCache, jmxAttributeCache, mBeanCostTracker, attributeBlacklist, null);
+    }
+
+    /**
+     * @param connectionPool where the connection is taken from and given back to after a successful scrape,
+     *                       null to open a new connection for every scrape.
+     */
+    public JmxScraper(String jmxUrl, String username, String password, String clusterId, boolean ssl,
+                      List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+                      MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache,
+                      JmxAttributeCache jmxAttributeCache, MBeanCostTracker mBeanCostTracker,
+                      AttributeBlacklist attributeBlacklist, JmxConnectionPool connectionPool) {
+        this(jmxUrl, username, password, clusterId, ssl, whitelistObjectNames, blacklistObjectNames, receiver,
+                jmxMBeanPropertyCache, jmxAttributeCache, mBeanCostTracker, attributeBlacklist, connectionPool, null);
+    }
+
+    /**
+     * @param platformAccessor reads the platform MXBeans directly when scraping this JVM, null to always go through
+     *                         the MBeanServer.
+     */
+    JmxScraper(String jmxUrl, String username, String password, String clusterId, boolean ssl,
+               List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+               MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache,
+               JmxAttributeCache jmxAttributeCache, MBeanCostTracker mBeanCostTracker,
+               AttributeBlacklist attributeBlacklist, JmxConnectionPool connectionPool,
+               PlatformMBeanAccessor platformAccessor) {
         this.jmxUrl = jmxUrl;
         this.receiver = receiver;
         this.username = username;
@@ -68,6 +127,11 @@ class JmxScraper {
         this.whitelistObjectNames = whitelistObjectNames;
         this.blacklistObjectNames = blacklistObjectNames;
         this.jmxMBeanPropertyCache = jmxMBeanPropertyCache;
+        this.jmxAttributeCache = jmxAttributeCache;
+        this.mBeanCostTracker = mBeanCostTracker;
+        this.attributeBlacklist = attributeBlacklist;
+        this.connectionPool = connectionPool;
+        this.platformAccessor = jmxUrl.isEmpty() ? platformAccessor : null;
     }
 
     /**
@@ -76,133 +140,464 @@ class JmxScraper {
       * Values are passed to the receiver in a single thread.
       */
     public void doScrape() throws Exception {
+        doScrape(null);
+    }
+
+    /**
+     * Scrape only the given attributes of the given beans, without querying the bean names. The caches are not pruned,
+     * as the selection says nothing about the beans left out.
+     *
+     * @param selection the attributes to fetch per bean, null to scrape every whitelisted bean.
+     */
+    public void doScrape(Map<ObjectName, Set<String>> selection) throws Exception {
+        doScrape(selection, null);
+    }
+
+    /**
+     * @param cpuUsage the CPU budget of this scrape, null for no limit. Once it is exhausted, the remaining beans are
+     *                 served from their last values, beans never fetched are left out, and no background refresh is
+     *                 started.
+     */
+    public void doScrape(Map<ObjectName, Set<String>> selection, CpuBudget.Usage cpuUsage) throws Exception {
+        doScrape(selection, cpuUsage, null);
+    }
+
+    /**
+     * @param scrapeCost where the cost of the background refreshes started by this scrape is charged, null not to
+     *                   measure them.
+     */
+    void doScrape(Map<ObjectName, Set<String>> selection, CpuBudget.Usage cpuUsage, ScrapeCost scrapeCost)
+            throws Exception {
+        if (selection != null && selection.isEmpty()) {
+            return;
+        }
         MBeanServerConnection beanConn;
         JMXConnector jmxc = null;
         if (jmxUrl.isEmpty()) {
-          beanConn = ManagementFactory.getPlatformMBeanServer();
+          MBeanServer platformServer = ManagementFactory.getPlatformMBeanServer();
+          jmxAttributeCache.listenForRegistrations(platformServer);
+          beanConn = platformServer;
         } else {
-          Map<String, Object> environment = new HashMap<String, Object>();
-          if (username != null && username.length() != 0 && password != null && password.length() != 0) {
-            String[] credent = new String[] {username, password};
-            environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
-          }
-          if (ssl) {
-              environment.put(Context.SECURITY_PROTOCOL, "ssl");
-              SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
-              environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
-              environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
+          jmxc = pooledConnection();
+          if (jmxc == null) {
+            jmxc = connect();
           }
-
-          jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
           beanConn = jmxc.getMBeanServerConnection();
         }
+        boolean succeeded = false;
         try {
-            // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
-            Set<ObjectName> mBeanNames = new HashSet<ObjectName>();
-            for (ObjectName name : whitelistObjectNames) {
-                for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
-                    mBeanNames.add(instance.getObjectName());
-                }
-            }
-
-            for (ObjectName name : blacklistObjectNames) {
-                for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
-                    mBeanNames.remove(instance.getObjectName());
-                }
+            Set<ObjectName> mBeanNames;
+            if (selection != null) {
+                mBeanNames = selection.keySet();
+            } else {
+                mBeanNames = queryMBeanNames(beanConn);
+                // Now that we have *only* the whitelisted mBeans, remove any old ones from the cache:
+                jmxMBeanPropertyCache.onlyKeepMBeans(mBeanNames, beanConn);
+                jmxAttributeCache.onlyKeepMBeans(mBeanNames);
+                mBeanCostTracker.onlyKeepMBeans(mBeanNames);
+                attributeBlacklist.onlyKeepMBeans(mBeanNames);
             }
 
-            // Now that we have *only* the whitelisted mBeans, remove any old ones from the cache:
-            jmxMBeanPropertyCache.onlyKeepMBeans(mBeanNames);
-
+            List<ObjectName> refreshInBackground = new ArrayList<ObjectName>();
             for (ObjectName objectName : mBeanNames) {
                 long start = System.nanoTime();
-                scrapeBean(beanConn, objectName);
-                logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + objectName.toString());
+                JmxAttributeCache.CachedBean cachedBean = jmxAttributeCache.getBean(objectName);
+                boolean overBudget = cpuUsage != null && cpuUsage.isExhausted();
+                if (overBudget && cachedBean.readableAttributes >= 0) {
+                    logScrape(objectName, "over the CPU budget, served from cache");
+                    cachedBean.replay(receiver);
+                } else if (overBudget) {
+                    logScrape(objectName, "over the CPU budget, never fetched");
+                } else if (mBeanCostTracker.isExpensive(objectName) && cachedBean.readableAttributes >= 0) {
+                    // Too expensive to fetch on the scrape path, serve the last values instead.
+                    logScrape(objectName, "expensive, served from cache");
+                    cachedBean.replay(receiver);
+                    if (mBeanCostTracker.startRefreshIfDue(objectName, System.currentTimeMillis())) {
+                        refreshInBackground.add(objectName);
+                    }
+                } else {
+                    scrapeBean(beanConn, objectName, selection != null ? selection.get(objectName) : null);
+                }
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + objectName.toString());
+                }
+            }
+            if (!refreshInBackground.isEmpty()) {
+                refreshInBackground(refreshInBackground, cpuUsage != null ? cpuUsage.getBudget() : null, scrapeCost);
             }
+            succeeded = true;
         } finally {
           if (jmxc != null) {
-            jmxc.close();
+            if (connectionPool != null && succeeded) {
+              connectionPool.release(jmxUrl, jmxc);
+            } else {
+              jmxc.close();
+            }
           }
         }
     }
 
-    private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName) {
-        MBeanInfo info;
+    private Set<ObjectName> queryMBeanNames(MBeanServerConnection beanConn) throws IOException {
+        // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
+        Set<ObjectName> mBeanNames = new HashSet<ObjectName>();
+        for (ObjectName name : whitelistObjectNames) {
+            for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
+                mBeanNames.add(instance.getObjectName());
+            }
+        }
+
+        for (ObjectName name : blacklistObjectNames) {
+            for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
+                mBeanNames.remove(instance.getObjectName());
+            }
+        }
+        return mBeanNames;
+    }
+
+    /**
+     * @return the pooled connection to the target if it is still alive, null otherwise.
+     */
+    private JMXConnector pooledConnection() {
+        if (connectionPool == null) {
+            return null;
+        }
+        JMXConnector jmxc = connectionPool.acquire(jmxUrl);
+        if (jmxc != null) {
+            try {
+                // A cheap round trip, the target may have been restarted since the last scrape.
+                jmxc.getMBeanServerConnection().getMBeanCount();
+            } catch (IOException e) {
+                logger.fine("Pooled connection to " + jmxUrl + " is broken, reconnecting: " + e);
+                JmxConnectionPool.closeQuietly(jmxc);
+                jmxc = null;
+            }
+        }
+        return jmxc;
+    }
+
+    private JMXConnector connect() throws IOException {
+        Map<String, Object> environment = new HashMap<String, Object>();
+        if (username != null && username.length() != 0 && password != null && password.length() != 0) {
+          String[] credent = new String[] {username, password};
+          environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
+        }
+        if (ssl) {
+            environment.put(Context.SECURITY_PROTOCOL, "ssl");
+            SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
+            environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
+            environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
+        }
+
+        return JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
+    }
+
+    /**
+     * Fetch expensive beans on the background refresh thread. The fetched values only go to the attribute cache,
+     * the receiver of this scrape is not thread safe and has already been given the previous values.
+     */
+    private void refreshInBackground(final List<ObjectName> mbeanNames, final CpuBudget cpuBudget,
+                                     final ScrapeCost scrapeCost) {
+        final JmxScraper refresher = new JmxScraper(jmxUrl, username, password, clusterId, ssl,
+                whitelistObjectNames, blacklistObjectNames, new NoopReceiver(), jmxMBeanPropertyCache,
+                jmxAttributeCache, mBeanCostTracker, attributeBlacklist, null, platformAccessor);
+        try {
+            MBeanCostTracker.refreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startNanos = CpuBudget.currentThreadCpuNanos();
+                    long startAllocatedBytes = ScrapeCost.currentThreadAllocatedBytes();
+                    refresher.refresh(mbeanNames);
+                    long cpuNanos = startNanos >= 0 ? CpuBudget.currentThreadCpuNanos() - startNanos : 0;
+                    if (cpuBudget != null) {
+                        cpuBudget.charge(cpuNanos);
+                    }
+                    if (scrapeCost != null) {
+                        scrapeCost.charge(cpuNanos, startAllocatedBytes >= 0
+                                ? ScrapeCost.currentThreadAllocatedBytes() - startAllocatedBytes : 0);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to schedule the refresh of expensive beans", e);
+            for (ObjectName mbeanName : mbeanNames) {
+                mBeanCostTracker.refreshDone(mbeanName);
+            }
+        }
+    }
+
+    private void refresh(List<ObjectName> mbeanNames) {
+        JMXConnector jmxc = null;
+        try {
+            MBeanServerConnection beanConn;
+            if (jmxUrl.isEmpty()) {
+                beanConn = ManagementFactory.getPlatformMBeanServer();
+            } else {
+                jmxc = connect();
+                beanConn = jmxc.getMBeanServerConnection();
+            }
+            for (ObjectName mbeanName : mbeanNames) {
+                try {
+                    scrapeBean(beanConn, mbeanName, null);
+                } finally {
+                    mBeanCostTracker.refreshDone(mbeanName);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Background refresh of expensive beans failed", e);
+            for (ObjectName mbeanName : mbeanNames) {
+                mBeanCostTracker.refreshDone(mbeanName);
+            }
+        } finally {
+            if (jmxc != null) {
+                try {
+                    jmxc.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Unable to close the refresh connection", e);
+                }
+            }
+        }
+    }
+
+    private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName, Set<String> attrFilter) {
+        Object event = ScrapeEvents.beginBean();
+        int fetchedAttributes = 0;
+        try {
+            fetchedAttributes = fetchBean(beanConn, mbeanName, attrFilter);
+        } finally {
+            ScrapeEvents.endBean(event, mbeanName, fetchedAttributes);
+        }
+    }
+
+    /**
+     * @param attrFilter the attributes to fetch, null for all of them.
+     * @return the number of attributes fetched from the MBeanServer, the others having been served from the cache.
+     */
+    private int fetchBean(MBeanServerConnection beanConn, ObjectName mbeanName, Set<String> attrFilter) {
+        long now = System.currentTimeMillis();
+        JmxAttributeCache.CachedBean cachedBean = jmxAttributeCache.getBean(mbeanName);
+        if (cachedBean.isFullyCached(now)) {
+            // Every attribute of this bean was exported by a rule whose interval is not over yet,
+            // so there is no need to talk to the MBeanServer at all.
+            logScrape(mbeanName, "served from cache");
+            cachedBean.replay(receiver);
+            return 0;
+        }
+
+        PlatformMBeanAccessor.Bean platformBean = null;
+        MBeanAttributeInfo[] attrInfos;
         try {
-          info = beanConn.getMBeanInfo(mbeanName);
+          if (platformAccessor != null) {
+            platformBean = platformAccessor.getBean(beanConn, mbeanName);
+          }
+          attrInfos = platformBean != null ? platformBean.attributes : beanConn.getMBeanInfo(mbeanName).getAttributes();
         } catch (IOException e) {
-          logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
-          return;
+          logScrape(mbeanName, "getMBeanInfo Fail: " + e);
+          return 0;
         } catch (JMException e) {
-          logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
-          return;
+          logScrape(mbeanName, "getMBeanInfo Fail: " + e);
+          return 0;
         }
-        MBeanAttributeInfo[] attrInfos = info.getAttributes();
 
         Map<String, MBeanAttributeInfo> name2AttrInfo = new LinkedHashMap<String, MBeanAttributeInfo>();
+        int readableAttributes = 0;
         for (int idx = 0; idx < attrInfos.length; ++idx) {
             MBeanAttributeInfo attr = attrInfos[idx];
+            if (attrFilter != null && !attrFilter.contains(attr.getName())) {
+                continue;
+            }
             if (!attr.isReadable()) {
                 logScrape(mbeanName, attr, "not readable");
                 continue;
             }
+            if (attributeBlacklist.isBlacklisted(mbeanName, attr.getName(), now)) {
+                logScrape(mbeanName, attr, "blacklisted after repeated failures");
+                continue;
+            }
+            readableAttributes++;
+            JmxAttributeCache.CachedAttribute cachedAttribute = cachedBean.attributes.get(attr.getName());
+            if (cachedAttribute != null && !cachedAttribute.isDue(now)) {
+                logScrape(mbeanName, attr, "served from cache");
+                cachedAttribute.replay(receiver);
+                continue;
+            }
             name2AttrInfo.put(attr.getName(), attr);
         }
-        final AttributeList attributes;
-        try {
-            attributes = beanConn.getAttributes(mbeanName, name2AttrInfo.keySet().toArray(new String[0]));
-            if (attributes == null) {
-                logScrape(mbeanName.toString(), "getAttributes Fail: attributes are null");
-                return;
-            }
-        } catch (Exception e) {
-            logScrape(mbeanName, name2AttrInfo.keySet(), "Fail: " + e);
-            return;
+        if (attrFilter == null) {
+            cachedBean.readableAttributes = readableAttributes;
+        }
+        if (name2AttrInfo.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        List<String> attrNames = new ArrayList<String>(name2AttrInfo.keySet());
+        final AttributeList attributes = platformBean != null
+                ? fetchPlatformAttributes(beanConn, mbeanName, platformBean, attrNames, now)
+                : fetchAttributes(beanConn, mbeanName, attrNames, now);
+        mBeanCostTracker.record(mbeanName, System.nanoTime() - start, System.currentTimeMillis());
+        if (attributes == null) {
+            return 0;
+        }
+        // getAttributes leaves out the attributes it failed to read instead of failing altogether.
+        Set<String> missing = new HashSet<String>(name2AttrInfo.keySet());
+        for (Attribute attribute : attributes.asList()) {
+            missing.remove(attribute.getName());
+            attributeBlacklist.recordSuccess(mbeanName, attribute.getName());
         }
+        for (String attrName : missing) {
+            attributeBlacklist.recordFailure(mbeanName, attrName, now);
+        }
+        // Expensive beans keep all their values, they are served from the cache until the next background refresh.
+        boolean expensive = mBeanCostTracker.isExpensive(mbeanName);
         for (Object attributeObj : attributes.asList()) {
             if (Attribute.class.isInstance(attributeObj)) {
                 Attribute attribute = (Attribute)(attributeObj);
                 MBeanAttributeInfo attr = name2AttrInfo.get(attribute.getName());
                 logScrape(mbeanName, attr, "process");
-                processBeanValue(
-                        mbeanName.getDomain(),
-                        jmxMBeanPropertyCache.getKeyPropertyList(mbeanName),
-                        new LinkedList<String>(),
-                        attr.getName(),
-                        attr.getType(),
-                        attr.getDescription(),
-                        attribute.getValue()
-                );
+                List<JmxAttributeCache.RecordedValue> recorded = new ArrayList<JmxAttributeCache.RecordedValue>();
+                long intervalMillis;
+                receiver.startAttribute(mbeanName, attr.getName());
+                try {
+                    intervalMillis = processBeanValue(
+                            mbeanName.getDomain(),
+                            jmxMBeanPropertyCache.getKeyPropertyList(mbeanName),
+                            new LinkedList<String>(),
+                            attr.getName(),
+                            attr.getType(),
+                            attr.getDescription(),
+                            attribute.getValue(),
+                            recorded
+                    );
+                } finally {
+                    receiver.endAttribute();
+                }
+                if (intervalMillis == MBeanReceiver.NEVER_EXPORTED) {
+                    // Nothing to replay, the attribute is simply not fetched anymore.
+                    recorded.clear();
+                }
+                if (intervalMillis > 0 || expensive) {
+                    cachedBean.attributes.put(attr.getName(),
+                            new JmxAttributeCache.CachedAttribute(recorded, now, intervalMillis));
+                } else {
+                    cachedBean.attributes.remove(attr.getName());
+                }
             }
         }
+        return attributes.size();
     }
 
+    /**
+     * Read the attributes of a platform MXBean of this JVM through their getters when possible, the others from the
+     * MBeanServer. Like {@code getAttributes}, the attributes failing to be read are left out, and the result keeps
+     * the order of the names.
+     */
+    private AttributeList fetchPlatformAttributes(MBeanServerConnection beanConn, ObjectName mbeanName,
+                                                  PlatformMBeanAccessor.Bean platformBean, List<String> attrNames,
+                                                  long now) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        List<String> others = new ArrayList<String>();
+        for (String attrName : attrNames) {
+            if (!platformBean.isDirect(attrName)) {
+                others.add(attrName);
+                continue;
+            }
+            try {
+                values.put(attrName, platformBean.read(attrName));
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                logScrape(mbeanName, Collections.singleton(attrName), "Fail: " + t);
+            }
+        }
+        if (!others.isEmpty()) {
+            AttributeList fetched = fetchAttributes(beanConn, mbeanName, others, now);
+            if (fetched == null) {
+                return null;
+            }
+            for (Attribute attribute : fetched.asList()) {
+                values.put(attribute.getName(), attribute.getValue());
+            }
+        }
+        AttributeList attributes = new AttributeList(values.size());
+        for (String attrName : attrNames) {
+            if (values.containsKey(attrName)) {
+                attributes.add(new Attribute(attrName, values.get(attrName)));
+            }
+        }
+        return attributes;
+    }
 
+    /**
+     * Fetch the attributes of a bean in bulk. If the bulk call fails, the attributes are split in halves and fetched
+     * again, down to single attributes, so that one failing getter does not lose the values of the whole bean.
+     * Attributes failing on their own are left out of the result.
+     *
+     * Returns null if the bean itself could not be reached.
+     */
+    private AttributeList fetchAttributes(MBeanServerConnection beanConn, ObjectName mbeanName,
+                                          List<String> attrNames, long now) {
+        try {
+            AttributeList attributes = beanConn.getAttributes(mbeanName, attrNames.toArray(new String[0]));
+            if (attributes == null) {
+                logScrape(mbeanName, "getAttributes Fail: attributes are null");
+            }
+            return attributes;
+        } catch (IOException e) {
+            logScrape(mbeanName, new HashSet<String>(attrNames), "Fail: " + e);
+            return null;
+        } catch (InstanceNotFoundException e) {
+            logScrape(mbeanName, new HashSet<String>(attrNames), "Fail: " + e);
+            return null;
+        } catch (Exception e) {
+            logScrape(mbeanName, new HashSet<String>(attrNames), "Fail: " + e);
+            if (attrNames.size() == 1) {
+                // Left out, the caller reports it to the blacklist along with the attributes getAttributes omitted.
+                return new AttributeList();
+            }
+        }
+        int half = attrNames.size() / 2;
+        AttributeList first = fetchAttributes(beanConn, mbeanName, attrNames.subList(0, half), now);
+        if (first == null) {
+            return null;
+        }
+        AttributeList second = fetchAttributes(beanConn, mbeanName, attrNames.subList(half, attrNames.size()), now);
+        if (second == null) {
+            return null;
+        }
+        first.addAll(second);
+        return first;
+    }
 
     /**
      * Recursive function for exporting the values of an mBean.
      * JMX is a very open technology, without any prescribed way of declaring mBeans
      * so this function tries to do a best-effort pass of getting the values/names
      * out in a way it can be processed elsewhere easily.
+     *
+     * Every value passed to the receiver is also added to {@code recorded}.
+     * Returns the shortest interval the receiver asked for, or 0 if no value was passed to it.
      */
-    private void processBeanValue(
+    private long processBeanValue(
             String domain,
             LinkedHashMap<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
             String attrDescription,
-            Object value) {
+            Object value,
+            List<JmxAttributeCache.RecordedValue> recorded) {
         if (value == null) {
-            logScrape(domain + beanProperties + attrName, "null");
+            logScrape(domain, beanProperties, attrName, "null");
+            return 0;
         } else if (value instanceof Number || value instanceof String || value instanceof Boolean || value instanceof java.util.Date) {
             if (value instanceof java.util.Date) {
                 attrType = "java.lang.Double";
                 value = ((java.util.Date) value).getTime() / 1000.0;
             }
-            logScrape(domain + beanProperties + attrName, value.toString());
+            logScrape(domain, beanProperties, attrName, value);
 
-            this.receiver.recordBean(
+            recorded.add(new JmxAttributeCache.RecordedValue(
+                    domain, beanProperties, attrKeys, attrName, attrType, attrDescription, value));
+            return this.receiver.recordBean(
                     domain,
                     beanProperties,
                     attrKeys,
@@ -211,30 +606,33 @@ class JmxScraper {
                     attrDescription,
                     value);
         } else if (value instanceof CompositeData) {
-            logScrape(domain + beanProperties + attrName, "compositedata");
+            logScrape(domain, beanProperties, attrName, "compositedata");
             CompositeData composite = (CompositeData) value;
             CompositeType type = composite.getCompositeType();
             attrKeys = new LinkedList<String>(attrKeys);
             attrKeys.add(attrName);
+            long intervalMillis = -1;
             for(String key : type.keySet()) {
                 String typ = type.getType(key).getTypeName();
                 Object valu = composite.get(key);
-                processBeanValue(
+                intervalMillis = shortestInterval(intervalMillis, processBeanValue(
                         domain,
                         beanProperties,
                         attrKeys,
                         key,
                         typ,
                         type.getDescription(),
-                        valu);
+                        valu,
+                        recorded));
             }
+            return Math.max(intervalMillis, 0);
         } else if (value instanceof TabularData) {
             // I don't pretend to have a good understanding of TabularData.
             // The real world usage doesn't appear to match how they were
             // meant to be used according to the docs. I've only seen them
             // used as 'key' 'value' pairs even when 'value' is itself a
             // CompositeData of multiple values.
-            logScrape(domain + beanProperties + attrName, "tabulardata");
+            logScrape(domain, beanProperties, attrName, "tabulardata");
             TabularData tds = (TabularData) value;
             TabularType tt = tds.getTabularType();
 
@@ -246,6 +644,7 @@ class JmxScraper {
 
             LinkedList<String> extendedAttrKeys = new LinkedList<String>(attrKeys);
             extendedAttrKeys.add(attrName);
+            long intervalMillis = -1;
             for (Object valu : tds.values()) {
                 if (valu instanceof CompositeData) {
                     CompositeData composite = (CompositeData) valu;
@@ -270,51 +669,91 @@ class JmxScraper {
                             attrNames = attrKeys;
                             name = attrName;
                         }
-                        processBeanValue(
+                        intervalMillis = shortestInterval(intervalMillis, processBeanValue(
                             domain,
                             l2s,
                             attrNames,
                             name,
                             typ,
                             type.getDescription(),
-                            composite.get(valueIdx));
+                            composite.get(valueIdx),
+                            recorded));
                     }
                 } else {
                     logScrape(domain, "not a correct tabulardata format");
                 }
             }
+            // The row indexes are labels, so whether a row is exported depends on the value: rows added later may
+            // match even if none of the current ones does.
+            return intervalMillis == MBeanReceiver.NEVER_EXPORTED ? 0 : Math.max(intervalMillis, 0);
         } else if (value.getClass().isArray()) {
             logScrape(domain, "arrays are unsupported");
+            return MBeanReceiver.NEVER_EXPORTED;
         } else if (optionalValueExtractor.isOptional(value)) {
-            logScrape(domain + beanProperties + attrName, "java.util.Optional");
-            processBeanValue(
+            logScrape(domain, beanProperties, attrName, "java.util.Optional");
+            return processBeanValue(
                     domain,
                     beanProperties,
                     attrKeys,
                     attrName,
                     attrType,
                     attrDescription,
-                    optionalValueExtractor.getOptionalValueOrNull(value));
+                    optionalValueExtractor.getOptionalValueOrNull(value),
+                    recorded);
         } else {
             logScrape(domain + beanProperties, attrType + " is not exported");
+            return MBeanReceiver.NEVER_EXPORTED;
         }
     }
 
+    // -1 stands for "no value recorded yet".
+    private static long shortestInterval(long intervalMillis, long valueIntervalMillis) {
+        return intervalMillis < 0 ? valueIntervalMillis : Math.min(intervalMillis, valueIntervalMillis);
+    }
+
     /**
      * For debugging.
      */
     private static void logScrape(ObjectName mbeanName, Set<String> names, String msg) {
-        logScrape(mbeanName + "_" + names, msg);
+        if (logger.isLoggable(Level.FINE)) {
+            logScrape(mbeanName + "_" + names, msg);
+        }
     }
     private static void logScrape(ObjectName mbeanName, MBeanAttributeInfo attr, String msg) {
-        logScrape(mbeanName + "'_'" + attr.getName(), msg);
+        if (logger.isLoggable(Level.FINE)) {
+            logScrape(mbeanName + "'_'" + attr.getName(), msg);
+        }
+    }
+    private static void logScrape(ObjectName mbeanName, String msg) {
+        if (logger.isLoggable(Level.FINE)) {
+            logScrape(mbeanName.toString(), msg);
+        }
+    }
+    // Called for every value, the name and message are only built when logged.
+    private static void logScrape(String domain, Map<String, String> beanProperties, String attrName, Object msg) {
+        if (logger.isLoggable(Level.FINE)) {
+            logScrape(domain + beanProperties + attrName, String.valueOf(msg));
+        }
     }
     private static void logScrape(String name, String msg) {
         logger.log(Level.FINE, "scrape: '" + name + "': " + msg);
     }
 
+    private static class NoopReceiver implements MBeanReceiver {
+        public long recordBean(
+            String domain,
+            LinkedHashMap<String, String> beanProperties,
+            LinkedList<String> attrKeys,
+            String attrName,
+            String attrType,
+            String attrDescription,
+            Object value) {
+            return 0;
+        }
+    }
+
     private static class StdoutWriter implements MBeanReceiver {
-        public void recordBean(
+        public long recordBean(
             String domain,
             LinkedHashMap<String, String> beanProperties,
             LinkedList<String> attrKeys,
@@ -327,6 +766,7 @@ class JmxScraper {
                                attrKeys +
                                attrName +
                                ": " + value);
+            return 0;
         }
     }
 
@@ -338,15 +778,15 @@ class JmxScraper {
       objectNames.add(null);
       if (args.length >= 3){
             new JmxScraper(args[0], args[1], args[2], "test", false, objectNames, new LinkedList<ObjectName>(),
-                    new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+                    new StdoutWriter(), new JmxMBeanPropertyCache(), new JmxAttributeCache(), new MBeanCostTracker(0, 0), new AttributeBlacklist(3, 600000L)).doScrape();
         }
       else if (args.length > 0){
           new JmxScraper(args[0], "", "", "test", false, objectNames, new LinkedList<ObjectName>(),
-                  new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+                  new StdoutWriter(), new JmxMBeanPropertyCache(), new JmxAttributeCache(), new MBeanCostTracker(0, 0), new AttributeBlacklist(3, 600000L)).doScrape();
       }
       else {
           new JmxScraper("", "", "", "test", false, objectNames, new LinkedList<ObjectName>(),
-                  new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+                  new StdoutWriter(), new JmxMBeanPropertyCache(), new JmxAttributeCache(), new MBeanCostTracker(0, 0), new AttributeBlacklist(3, 600000L)).doScrape();
       }
     }
 }
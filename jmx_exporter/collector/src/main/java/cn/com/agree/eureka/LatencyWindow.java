@@ -0,0 +1,38 @@
+package cn.com.agree.eureka;
+
+import java.util.Arrays;
+
+/**
+ * LatencyWindow keeps the last {@code size} latencies of a request, to derive the delay after which the request is
+ * hedged from its own recent percentile instead of a fixed timeout.
+ */
+class LatencyWindow {
+    private final long[] latencies;
+    private int count;
+    private int next;
+
+    LatencyWindow(int size) {
+        latencies = new long[size];
+    }
+
+    public synchronized void record(long latencyMillis) {
+        latencies[next] = latencyMillis;
+        next = (next + 1) % latencies.length;
+        if (count < latencies.length) {
+            count++;
+        }
+    }
+
+    /**
+     * @return the given percentile of the recorded latencies, -1 if none was recorded yet.
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
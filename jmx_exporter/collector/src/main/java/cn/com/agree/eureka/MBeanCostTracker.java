@@ -0,0 +1,115 @@
+package cn.com.agree.eureka;
+
+import cn.com.agree.eureka.core.NamedThreadFactory;
+
+import javax.management.ObjectName;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MBeanCostTracker keeps an exponentially weighted estimate of how long {@code getAttributes} takes for each mBean.
+ * Beans whose estimate is above the configured threshold are placed in the asynchronous tier: scrapes serve their
+ * last values from the {@link JmxAttributeCache} while they are refreshed in the background at a lower frequency.
+ */
+class MBeanCostTracker {
+    // Weight of the latest measurement in the estimate.
+    private static final double ALPHA = 0.3;
+
+    private final long thresholdNanos;
+    private final long refreshIntervalMillis;
+    private final Map<ObjectName, Cost> costs = new ConcurrentHashMap<ObjectName, Cost>();
+
+    /**
+     * @param thresholdNanos beans costing more than this are refreshed asynchronously, 0 disables the async tier.
+     * @param refreshIntervalMillis minimum time between two refreshes of a bean in the async tier.
+     */
+    MBeanCostTracker(long thresholdNanos, long refreshIntervalMillis) {
+        this.thresholdNanos = thresholdNanos;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    public void record(ObjectName mbeanName, long nanos, long nowMillis) {
+        // Scrapes and background refreshes run concurrently, the entry holding the refresh claim must only be created
+        // once.
+        Cost cost = costs.computeIfAbsent(mbeanName, name -> new Cost());
+        synchronized (cost) {
+            cost.ewmaNanos = cost.ewmaNanos < 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * cost.ewmaNanos;
+            cost.lastFetchMillis = nowMillis;
+        }
+    }
+
+    public boolean isExpensive(ObjectName mbeanName) {
+        if (thresholdNanos <= 0) {
+            return false;
+        }
+        Cost cost = costs.get(mbeanName);
+        return cost != null && cost.ewmaNanos > thresholdNanos;
+    }
+
+    /**
+     * Claim the background refresh of an expensive bean. Returns false if the bean was fetched recently or if a
+     * refresh is already in flight.
+     */
+    public boolean startRefreshIfDue(ObjectName mbeanName, long nowMillis) {
+        Cost cost = costs.get(mbeanName);
+        if (cost == null || nowMillis - cost.lastFetchMillis < refreshIntervalMillis) {
+            return false;
+        }
+        return cost.refreshing.compareAndSet(false, true);
+    }
+
+    public void refreshDone(ObjectName mbeanName) {
+        Cost cost = costs.get(mbeanName);
+        if (cost != null) {
+            cost.refreshing.set(false);
+        }
+    }
+
+    /**
+     * @return the estimated cost in seconds of each bean currently in the async tier.
+     */
+    public Map<ObjectName, Double> expensiveBeans() {
+        Map<ObjectName, Double> expensiveBeans = new HashMap<ObjectName, Double>();
+        if (thresholdNanos <= 0) {
+            return expensiveBeans;
+        }
+        for (Map.Entry<ObjectName, Cost> entry : costs.entrySet()) {
+            if (entry.getValue().ewmaNanos > thresholdNanos) {
+                expensiveBeans.put(entry.getKey(), entry.getValue().ewmaNanos / 1.0E9);
+            }
+        }
+        return expensiveBeans;
+    }
+
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        for (ObjectName prevName : costs.keySet()) {
+            if (!latestBeans.contains(prevName)) {
+                costs.remove(prevName);
+            }
+        }
+    }
+
+    /**
+     * Background refreshes of every collector run one at a time on a single daemon thread,
+     * so that the exporter never competes with the application for more than one core.
+     */
+    static ExecutorService refreshExecutor() {
+        return RefreshExecutorHolder.EXECUTOR;
+    }
+
+    private static class RefreshExecutorHolder {
+        static final ExecutorService EXECUTOR =
+                Executors.newSingleThreadExecutor(new NamedThreadFactory("jmx-expensive-bean-refresh", true, Thread.MIN_PRIORITY));
+    }
+
+    private static class Cost {
+        volatile double ewmaNanos = -1;
+        volatile long lastFetchMillis;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+}
@@ -0,0 +1,276 @@
+package cn.com.agree.eureka;
+
+import cn.com.agree.eureka.core.NamedThreadFactory;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MappedMetricsWriter copies the metrics of a registry into a memory-mapped file at a fixed interval, in the manner of
+ * hsperfdata, so that a process on the same host reads them without any socket:
+ * <pre>
+ * metric:
+ *   mmap:
+ *     enabled: true
+ *     file: /tmp/jmx_exporter.mmap
+ *     intervalMillis: 1000
+ *     names: [jvm_threads_current]
+ * </pre>
+ * The layout, all numbers big-endian:
+ * <pre>
+ *   0  int    magic, 'JMXM'
+ *   4  int    version
+ *   8  long   sequence, odd while the file is being written
+ *   16 long   time of the last update, in milliseconds
+ *   24 int    number of series
+ *   28 int    length of the series directory
+ *   32 int    offset of the values
+ *   64        series directory: int families, then per family its name, type and help, int samples, then per sample
+ *             its name, int labels and the name and value of each label, strings as by DataOutput.writeUTF
+ *   values    one double per series, in the order of the directory
+ * </pre>
+ * The directory is only written again when the series change, an update otherwise writes the values in place. A
+ * reader copies the directory and values, and keeps them if the sequence was even and unchanged around the copy.
+ * The file is deleted on {@link #close}.
+ */
+public class MappedMetricsWriter implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MappedMetricsWriter.class.getName());
+
+    public static final int MAGIC = 0x4a4d584d;
+    public static final int VERSION = 1;
+    public static final int SEQUENCE_OFFSET = 8;
+    public static final int UPDATED_AT_OFFSET = 16;
+    public static final int SERIES_COUNT_OFFSET = 24;
+    public static final int DIRECTORY_LENGTH_OFFSET = 28;
+    public static final int VALUES_OFFSET_OFFSET = 32;
+    public static final int HEADER_SIZE = 64;
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    private final File file;
+    private final CollectorRegistry registry;
+    private final Set<String> names;
+    private final long intervalMillis;
+    private final RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private ScheduledExecutorService writer;
+
+    // The series of the directory currently in the file.
+    private List<Collector.MetricFamilySamples> series;
+    private int valuesOffset;
+    private long sequence;
+
+    /**
+     * @param names the metrics to write, as for a {@code name[]} scrape, empty for all of them.
+     */
+    public MappedMetricsWriter(File file, CollectorRegistry registry, Set<String> names, long intervalMillis)
+            throws IOException {
+        this.file = file;
+        this.registry = registry;
+        this.names = names;
+        this.intervalMillis = intervalMillis;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(INITIAL_SIZE);
+        this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(SEQUENCE_OFFSET, sequence);
+    }
+
+    public static MappedMetricsWriter load(File configFile, CollectorRegistry registry) throws IOException {
+        FileReader reader = new FileReader(configFile);
+        Map<String, Object> yamlConfig;
+        try {
+            yamlConfig = (Map<String, Object>) new Yaml().load(reader);
+        } finally {
+            reader.close();
+        }
+        Map<String, Object> metric = yamlConfig != null ? (Map<String, Object>) yamlConfig.get("metric") : null;
+        Map<String, Object> mmap = metric != null ? (Map<String, Object>) metric.get("mmap") : null;
+        if (mmap == null) {
+            mmap = new HashMap<String, Object>();
+        }
+        String file = (String) mmap.get("file");
+        if (file == null) {
+            String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+            file = new File(System.getProperty("java.io.tmpdir"), "jmx_exporter_" + pid + ".mmap").getPath();
+        }
+        Set<String> names = new HashSet<String>();
+        if (mmap.get("names") != null) {
+            for (Object name : (List<Object>) mmap.get("names")) {
+                names.add((String) name);
+            }
+        }
+        long intervalMillis = mmap.get("intervalMillis") != null ? ((Number) mmap.get("intervalMillis")).longValue() : 1000;
+        return new MappedMetricsWriter(new File(file), registry, names, intervalMillis);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Write the metrics every {@code intervalMillis} on a thread of its own.
+     */
+    public synchronized void start() {
+        writer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("jmx-exporter-mmap", true, Thread.MIN_PRIORITY));
+        writer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Unable to write the metrics to " + file, e);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collect the registry and write its values to the file.
+     */
+    synchronized void write() throws IOException {
+        List<Collector.MetricFamilySamples> mfsList;
+        if (names.isEmpty()) {
+            mfsList = Collections.list(registry.metricFamilySamples());
+        } else {
+            ScrapeRequest.begin(names);
+            try {
+                mfsList = Collections.list(registry.filteredMetricFamilySamples(names));
+            } finally {
+                ScrapeRequest.end();
+            }
+        }
+        if (!sameSeries(series, mfsList)) {
+            writeDirectory(mfsList);
+        } else {
+            beginWrite();
+        }
+        int offset = valuesOffset;
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                buffer.putDouble(offset, sample.value);
+                offset += 8;
+            }
+        }
+        buffer.putLong(UPDATED_AT_OFFSET, System.currentTimeMillis());
+        endWrite();
+    }
+
+    private void writeDirectory(List<Collector.MetricFamilySamples> mfsList) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int seriesCount = 0;
+        out.writeInt(mfsList.size());
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            out.writeUTF(mfs.name);
+            out.writeUTF(mfs.type.name());
+            out.writeUTF(mfs.help);
+            out.writeInt(mfs.samples.size());
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                out.writeUTF(sample.name);
+                out.writeInt(sample.labelNames.size());
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    out.writeUTF(sample.labelNames.get(i));
+                    out.writeUTF(sample.labelValues.get(i));
+                }
+                seriesCount++;
+            }
+        }
+        out.flush();
+        byte[] directory = bytes.toByteArray();
+        int newValuesOffset = (HEADER_SIZE + directory.length + 7) & ~7;
+        ensureCapacity(newValuesOffset + seriesCount * 8);
+
+        beginWrite();
+        for (int i = 0; i < directory.length; i++) {
+            buffer.put(HEADER_SIZE + i, directory[i]);
+        }
+        buffer.putInt(SERIES_COUNT_OFFSET, seriesCount);
+        buffer.putInt(DIRECTORY_LENGTH_OFFSET, directory.length);
+        buffer.putInt(VALUES_OFFSET_OFFSET, newValuesOffset);
+        valuesOffset = newValuesOffset;
+        series = mfsList;
+    }
+
+    /**
+     * Grow the file when the series do not fit anymore. The readers map the file again when the offsets of the header
+     * go past their mapping.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (size <= buffer.capacity()) {
+            return;
+        }
+        int newSize = Math.max(size, buffer.capacity() * 2);
+        randomAccessFile.setLength(newSize);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    // The odd sequence is stored before the series and values, the even one after them.
+    private void beginWrite() {
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+        MemoryFences.releaseFence();
+    }
+
+    private void endWrite() {
+        MemoryFences.releaseFence();
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    }
+
+    /**
+     * @return true if both collections have the same families and series in the same order, whatever their values.
+     */
+    static boolean sameSeries(List<Collector.MetricFamilySamples> previous, List<Collector.MetricFamilySamples> current) {
+        if (previous == null || previous.size() != current.size()) {
+            return false;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            Collector.MetricFamilySamples a = previous.get(i);
+            Collector.MetricFamilySamples b = current.get(i);
+            if (!a.name.equals(b.name) || a.type != b.type || !a.help.equals(b.help) || a.samples.size() != b.samples.size()) {
+                return false;
+            }
+            for (int j = 0; j < b.samples.size(); j++) {
+                Collector.MetricFamilySamples.Sample sa = a.samples.get(j);
+                Collector.MetricFamilySamples.Sample sb = b.samples.get(j);
+                if (!sa.name.equals(sb.name) || !sa.labelNames.equals(sb.labelNames) || !sa.labelValues.equals(sb.labelValues)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.shutdownNow();
+        }
+        randomAccessFile.close();
+        if (!file.delete()) {
+            LOGGER.fine("Unable to delete " + file);
+        }
+    }
+}
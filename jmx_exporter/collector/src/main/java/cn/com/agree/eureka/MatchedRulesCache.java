@@ -58,6 +58,18 @@ public class MatchedRulesCache {
             lastCachedEntriesForRule.add(cacheKey);
         }
 
+        public void addAll(final StalenessTracker other) {
+            for (Map.Entry<JmxCollector.Rule, Set<String>> entry : other.lastCachedEntries.entrySet()) {
+                for (String cacheKey : entry.getValue()) {
+                    add(entry.getKey(), cacheKey);
+                }
+            }
+        }
+
+        public void clear() {
+            lastCachedEntries.clear();
+        }
+
         public boolean contains(final JmxCollector.Rule rule, final String cacheKey) {
             Set<String> lastCachedEntriesForRule = lastCachedEntries.get(rule);
             return (lastCachedEntriesForRule != null) && lastCachedEntriesForRule.contains(cacheKey);
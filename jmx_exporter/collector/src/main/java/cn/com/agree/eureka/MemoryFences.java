@@ -0,0 +1,75 @@
+package cn.com.agree.eureka;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MemoryFences orders the plain accesses to memory shared with other threads or processes, such as a memory-mapped
+ * file, where no volatile field can carry the ordering. Java 8 has no public fence, this version calls the fences of
+ * {@code sun.misc.Unsafe}; on Java 11 and later the version under {@code src/main/java11} uses those of
+ * {@code VarHandle}.
+ */
+final class MemoryFences {
+    private static final Logger LOGGER = Logger.getLogger(MemoryFences.class.getName());
+
+    private static final MethodHandle STORE_FENCE = unsafeFence("storeFence");
+    private static final MethodHandle LOAD_FENCE = unsafeFence("loadFence");
+
+    // Only used without Unsafe: a volatile store followed by a volatile load of the same field is a full fence on
+    // HotSpot.
+    private static volatile int fallback;
+
+    private MemoryFences() {
+    }
+
+    private static MethodHandle unsafeFence(String name) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass, name, MethodType.methodType(void.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Unable to use Unsafe." + name + ", falling back to a volatile access", e);
+            return null;
+        }
+    }
+
+    /**
+     * The loads and stores before the fence are not reordered with the stores after it.
+     */
+    static void releaseFence() {
+        if (STORE_FENCE == null) {
+            fullFence();
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The loads before the fence are not reordered with the loads and stores after it.
+     */
+    static void acquireFence() {
+        if (LOAD_FENCE == null) {
+            fullFence();
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void fullFence() {
+        fallback = fallback + 1;
+    }
+}
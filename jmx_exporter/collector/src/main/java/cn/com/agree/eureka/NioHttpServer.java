@@ -0,0 +1,916 @@
+package cn.com.agree.eureka;
+
+import cn.com.agree.eureka.core.NamedThreadFactory;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * NioHttpServer exposes a {@link CollectorRegistry} over HTTP, in place of simpleclient's {@code HTTPServer}.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   NioHttpServer server = new NioHttpServer(socket, CollectorRegistry.defaultRegistry, true);
+ *   server.addHandler(HttpSdHandler.PATH, new HttpSdHandler(eurekaCollector));
+ * }
+ * </pre>
+ * A single selector thread accepts the connections, reads the requests and writes the responses, so idle keep-alive
+ * connections and slow clients cost no thread. Scrapes run on at most {@code maxConcurrentScrapes} threads, further
+ * scrapes are answered with 503 right away. A scrape streams the text format as it is written, gzipped if the client
+ * accepts it, in chunks of {@value #CHUNK_SIZE} bytes: a scrape thread never queues more than {@value #HIGH_WATER_MARK}
+ * bytes for a client, and gives up on a client that does not read for {@value #WRITE_TIMEOUT_MILLIS} ms.
+ * <p>
+ * Every path serves the metrics, except {@code /-/healthy} and the paths of the handlers added with
+ * {@link #addHandler}. Handlers run on the selector thread and must not block. The paths added with
+ * {@link #addRegistry} serve the metrics of their own registry, with a scrape of their own, so that a long scrape of
+ * one endpoint does not turn the scrapes of another away. The scrapes of the paths added with {@link #addRemoteEndpoint}
+ * run on an executor of their own, see {@link ScrapeExecutors}.
+ */
+public class NioHttpServer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(NioHttpServer.class.getName());
+
+    public static final int DEFAULT_MAX_CONCURRENT_SCRAPES = 2;
+    static final String HEALTHY_PATH = "/-/healthy";
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_REQUEST_HEAD = 16384;
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+    private static final long WRITE_TIMEOUT_MILLIS = 30000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ASCII);
+
+    /**
+     * Answers the requests of a path. Called on the selector thread, so it must not block.
+     */
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    /**
+     * Collects the metrics of a path. Called on a scrape thread, so it may block.
+     */
+    public interface MetricsSource {
+        /**
+         * @param names the names requested with {@code name[]}, empty for all.
+         * @throws StatusException to answer with another status than 500, e.g. 400 for a malformed request.
+         */
+        List<Collector.MetricFamilySamples> collect(Request request, Set<String> names);
+    }
+
+    public static class StatusException extends RuntimeException {
+        private final int status;
+
+        public StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    public static class Request {
+        private final String method;
+        private final String path;
+        private final String query;
+        private final Map<String, String> headers;
+
+        Request(String method, String path, String query, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return the decoded values of a query parameter, empty if absent.
+         */
+        public List<String> getParameters(String name) {
+            List<String> values = new ArrayList<String>();
+            if (query == null) {
+                return values;
+            }
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    try {
+                        if (name.equals(URLDecoder.decode(pair.substring(0, equals), "UTF-8"))) {
+                            values.add(URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                        }
+                    } catch (UnsupportedEncodingException e) {
+                        throw new IllegalStateException(e);
+                    } catch (IllegalArgumentException e) {
+                        // Malformed escape, ignore the parameter.
+                    }
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return the first value of a query parameter, null if absent.
+         */
+        public String getParameter(String name) {
+            List<String> values = getParameters(name);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        /**
+         * @return the value of the header, null if absent. Header names are case insensitive.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public static class Response {
+        private final int status;
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private final byte[] body;
+
+        /**
+         * @param body null for a response without body, such as 304.
+         */
+        public Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.body = body;
+            if (contentType != null) {
+                headers.put("Content-Type", contentType);
+            }
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    /**
+     * Metrics served over HTTP, with the number of scrapes of them that may run at the same time.
+     */
+    private static class Endpoint {
+        final MetricsSource source;
+        final int maxConcurrentScrapes;
+        final Semaphore scrapePermits;
+        // Where the scrapes run, null for the scrape threads of the server.
+        final ExecutorService executor;
+
+        Endpoint(MetricsSource source, int maxConcurrentScrapes, ExecutorService executor) {
+            this.source = source;
+            this.maxConcurrentScrapes = maxConcurrentScrapes;
+            this.scrapePermits = new Semaphore(maxConcurrentScrapes);
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * The metrics of the servers exporting to a registry. They are registered with the first server and shared by the
+     * next ones, which add up to them instead of failing on a duplicate registration.
+     */
+    private static class ServerMetrics {
+        private static final Map<CollectorRegistry, ServerMetrics> BY_REGISTRY = new WeakHashMap<CollectorRegistry, ServerMetrics>();
+
+        final Histogram requestDuration;
+        final Gauge requestsInFlight;
+        final Gauge openConnections;
+        final Counter rejectedScrapes;
+
+        private ServerMetrics(CollectorRegistry registry) {
+            requestDuration = Histogram.build()
+                    .name("jmx_exporter_http_request_duration_seconds")
+                    .help("Time from reading a request to writing the last byte of its response.")
+                    .labelNames("path").register(registry);
+            requestsInFlight = Gauge.build()
+                    .name("jmx_exporter_http_requests_in_flight")
+                    .help("Requests being answered.").register(registry);
+            openConnections = Gauge.build()
+                    .name("jmx_exporter_http_open_connections")
+                    .help("Connections open to the exposition server.").register(registry);
+            rejectedScrapes = Counter.build()
+                    .name("jmx_exporter_http_rejected_scrapes_total")
+                    .help("Scrapes answered with 503 as too many scrapes were running.").register(registry);
+        }
+
+        static synchronized ServerMetrics of(CollectorRegistry registry) {
+            ServerMetrics metrics = BY_REGISTRY.get(registry);
+            if (metrics == null) {
+                metrics = new ServerMetrics(registry);
+                BY_REGISTRY.put(registry, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    private final Endpoint defaultEndpoint;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread selectorThread;
+    private final ThreadPoolExecutor scrapeExecutor;
+    private final boolean daemon;
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<String, Handler>();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean running = true;
+
+    private final Histogram requestDuration;
+    private final Gauge requestsInFlight;
+    private final Gauge openConnections;
+    private final Counter rejectedScrapes;
+
+    public NioHttpServer(InetSocketAddress address, CollectorRegistry registry, boolean daemon) throws IOException {
+        this(address, registry, DEFAULT_MAX_CONCURRENT_SCRAPES, daemon);
+    }
+
+    public NioHttpServer(InetSocketAddress address, CollectorRegistry registry, int maxConcurrentScrapes,
+                         boolean daemon) throws IOException {
+        this.defaultEndpoint = new Endpoint(registrySource(registry), maxConcurrentScrapes, null);
+        this.daemon = daemon;
+        ServerMetrics metrics = ServerMetrics.of(registry);
+        requestDuration = metrics.requestDuration;
+        requestsInFlight = metrics.requestsInFlight;
+        openConnections = metrics.openConnections;
+        rejectedScrapes = metrics.rejectedScrapes;
+
+        scrapeExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxConcurrentScrapes,
+                new NamedThreadFactory("jmx-exporter-scrape", daemon, Thread.MIN_PRIORITY));
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new NamedThreadFactory("jmx-exporter-http", daemon, Thread.MIN_PRIORITY).newThread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        });
+        selectorThread.start();
+    }
+
+    public void addHandler(String path, Handler handler) {
+        handlers.put(path, handler);
+    }
+
+    /**
+     * Serve the metrics of a registry on a path of its own, scraped by a single thread at a time. The metrics of the
+     * server itself stay in the registry it was created with.
+     */
+    public void addRegistry(String path, CollectorRegistry registry) {
+        addEndpoint(path, registrySource(registry), 1);
+    }
+
+    /**
+     * Serve the metrics of a source on a path of its own, scraped by at most {@code maxConcurrentScrapes} threads.
+     */
+    public void addEndpoint(String path, MetricsSource source, int maxConcurrentScrapes) {
+        synchronized (scrapeExecutor) {
+            Endpoint previous = endpoints.put(path, new Endpoint(source, maxConcurrentScrapes, null));
+            // One more scrape thread per scrape the endpoint may run.
+            int added = maxConcurrentScrapes - (previous != null && previous.executor == null ? previous.maxConcurrentScrapes : 0);
+            if (added > 0) {
+                scrapeExecutor.setMaximumPoolSize(scrapeExecutor.getMaximumPoolSize() + added);
+                scrapeExecutor.setCorePoolSize(scrapeExecutor.getCorePoolSize() + added);
+            }
+            shutdownExecutor(previous);
+        }
+    }
+
+    /**
+     * Serve the metrics of a source whose scrapes mostly wait on remote JMX calls, e.g. the probes, at most
+     * {@code maxConcurrentScrapes} at the same time. Its scrapes run on an executor of their own from
+     * {@link ScrapeExecutors}, on virtual threads with Java 21 and later.
+     */
+    public void addRemoteEndpoint(String path, MetricsSource source, int maxConcurrentScrapes) {
+        synchronized (scrapeExecutor) {
+            Endpoint previous = endpoints.put(path, new Endpoint(source, maxConcurrentScrapes,
+                    ScrapeExecutors.newExecutor("jmx-exporter-remote-scrape", daemon, maxConcurrentScrapes)));
+            shutdownExecutor(previous);
+        }
+    }
+
+    private static void shutdownExecutor(Endpoint endpoint) {
+        if (endpoint != null && endpoint.executor != null) {
+            // The scrapes in progress still get their answer.
+            endpoint.executor.shutdown();
+        }
+    }
+
+    private static MetricsSource registrySource(final CollectorRegistry registry) {
+        return new MetricsSource() {
+            @Override
+            public List<Collector.MetricFamilySamples> collect(Request request, Set<String> names) {
+                return Collections.list(registry.filteredMetricFamilySamples(names));
+            }
+        };
+    }
+
+    /**
+     * @return the port the server listens on, useful when bound to port 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        scrapeExecutor.shutdownNow();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint.executor != null) {
+                endpoint.executor.shutdownNow();
+            }
+        }
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void runSelector() {
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(c);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Closing connection", e);
+                        close(c);
+                    } catch (CancelledKeyException e) {
+                        close(c);
+                    }
+                }
+                Connection c;
+                while ((c = pendingWrites.poll()) != null) {
+                    if (c.isClosed()) {
+                        close(c);
+                    } else if (c.key.isValid()) {
+                        c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000) {
+                    lastIdleCheck = now;
+                    closeIdleConnections(now);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Exposition server selector failed", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exposition server selector failed", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close((Connection) key.attachment());
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to close the exposition server", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+        openConnections.inc();
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection c = (Connection) attachment;
+                // A connection waiting for a scrape to be collected is not idle, one whose client stops reading is.
+                if ((!c.responding || c.hasQueuedOutput()) && now - c.lastActivity > IDLE_TIMEOUT_MILLIS) {
+                    close(c);
+                }
+            }
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            close(c);
+            return;
+        }
+        c.lastActivity = System.currentTimeMillis();
+        processRequests(c);
+    }
+
+    /**
+     * Answer the requests read so far, one at a time: pipelined requests stay in the buffer until the previous
+     * response has been written.
+     */
+    private void processRequests(Connection c) throws IOException {
+        while (!c.responding && c.channel.isOpen()) {
+            int headEnd = indexOfHeadEnd(c.in);
+            if (headEnd < 0) {
+                if (!c.in.hasRemaining()) {
+                    // The rest of the head is never read, the connection is closed once the reply is written.
+                    c.in.clear();
+                    startRequest(c);
+                    c.route = "other";
+                    reply(c, null, new Response(431, "text/plain; charset=utf-8", "Request head too large\n".getBytes(UTF_8)), true);
+                }
+                return;
+            }
+            String head = new String(c.in.array(), 0, headEnd, ASCII);
+            int consumed = headEnd + 4;
+            System.arraycopy(c.in.array(), consumed, c.in.array(), 0, c.in.position() - consumed);
+            c.in.position(c.in.position() - consumed);
+            dispatch(c, head);
+        }
+    }
+
+    private static int indexOfHeadEnd(ByteBuffer in) {
+        byte[] bytes = in.array();
+        for (int i = 0; i + 3 < in.position(); i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void startRequest(Connection c) {
+        c.responding = true;
+        // Pipelined requests are read once this one has been answered.
+        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+        c.requestStartNanos = System.nanoTime();
+        requestsInFlight.inc();
+    }
+
+    private void dispatch(Connection c, String head) throws IOException {
+        startRequest(c);
+
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            c.route = "other";
+            reply(c, null, new Response(400, "text/plain; charset=utf-8", "Bad request\n".getBytes(UTF_8)), true);
+            return;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        String target = requestLine[1];
+        int questionMark = target.indexOf('?');
+        Request request = new Request(requestLine[0], questionMark < 0 ? target : target.substring(0, questionMark),
+                questionMark < 0 ? null : target.substring(questionMark + 1), headers);
+
+        boolean http11 = "HTTP/1.1".equals(requestLine[2]);
+        String connection = request.getHeader("Connection");
+        boolean close = !http11 || (connection != null && connection.equalsIgnoreCase("close"));
+
+        Handler handler = handlers.get(request.getPath());
+        Endpoint endpoint = endpoints.get(request.getPath());
+        c.route = handler != null || endpoint != null || HEALTHY_PATH.equals(request.getPath()) ? request.getPath() : "/metrics";
+        if (request.getHeader("Content-Length") != null && !"0".equals(request.getHeader("Content-Length"))
+                || request.getHeader("Transfer-Encoding") != null) {
+            reply(c, request, new Response(413, "text/plain; charset=utf-8", "Request bodies are not supported\n".getBytes(UTF_8)), true);
+        } else if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+            reply(c, request, new Response(405, "text/plain; charset=utf-8", "Method not allowed\n".getBytes(UTF_8))
+                    .header("Allow", "GET, HEAD"), close);
+        } else if (handler != null) {
+            Response response;
+            try {
+                response = handler.handle(request);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Handler of " + request.getPath() + " failed", e);
+                response = new Response(500, "text/plain; charset=utf-8", "Internal server error\n".getBytes(UTF_8));
+            }
+            reply(c, request, response, close);
+        } else if (HEALTHY_PATH.equals(request.getPath())) {
+            reply(c, request, new Response(200, "text/plain; charset=utf-8", "Exporter is Healthy.\n".getBytes(UTF_8)), close);
+        } else {
+            scrape(c, request, endpoint != null ? endpoint : defaultEndpoint, http11, close);
+        }
+    }
+
+    /**
+     * Write a response with a known length from the selector thread.
+     */
+    private void reply(Connection c, Request request, Response response, boolean close) throws IOException {
+        c.closeAfterResponse = close;
+        boolean withBody = response.body != null && (request == null || !"HEAD".equals(request.getMethod()));
+        StringBuilder head = statusLine(response.status);
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (response.body != null) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        if (close) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        c.enqueue(ByteBuffer.wrap(head.toString().getBytes(ASCII)), false);
+        if (withBody) {
+            c.enqueue(ByteBuffer.wrap(response.body), false);
+        }
+        c.finish();
+    }
+
+    private void scrape(final Connection c, final Request request, final Endpoint endpoint, final boolean chunked,
+                        boolean close) throws IOException {
+        if (!endpoint.scrapePermits.tryAcquire()) {
+            rejectedScrapes.inc();
+            reply(c, request, new Response(503, "text/plain; charset=utf-8", "Too many concurrent scrapes\n".getBytes(UTF_8))
+                    .header("Retry-After", "1"), close);
+            return;
+        }
+        // Without chunked encoding the end of the body is the end of the connection.
+        c.closeAfterResponse = close || !chunked;
+        try {
+            (endpoint.executor != null ? endpoint.executor : scrapeExecutor).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeMetrics(c, request, endpoint.source, chunked);
+                    } finally {
+                        endpoint.scrapePermits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            endpoint.scrapePermits.release();
+            reply(c, request, new Response(503, "text/plain; charset=utf-8", "Server stopping\n".getBytes(UTF_8)), true);
+        }
+    }
+
+    /**
+     * Runs on a scrape thread.
+     */
+    private void writeMetrics(Connection c, Request request, MetricsSource source, boolean chunked) {
+        List<Collector.MetricFamilySamples> families;
+        try {
+            // Collect before sending the headers, so that a failing collector still gets a proper 500.
+            Set<String> names = new HashSet<String>(request.getParameters("name[]"));
+            ScrapeRequest.begin(names);
+            try {
+                families = source.collect(request, names);
+            } finally {
+                ScrapeRequest.end();
+            }
+        } catch (RuntimeException e) {
+            Response response;
+            if (e instanceof StatusException) {
+                LOGGER.log(Level.FINE, "Scrape answered with " + ((StatusException) e).getStatus(), e);
+                response = new Response(((StatusException) e).getStatus(), "text/plain; charset=utf-8",
+                        (e.getMessage() + "\n").getBytes(UTF_8));
+                if (response.status == 503) {
+                    rejectedScrapes.inc();
+                    response.header("Retry-After", "1");
+                }
+            } else {
+                LOGGER.log(Level.WARNING, "Scrape failed", e);
+                response = new Response(500, "text/plain; charset=utf-8", "Scrape failed\n".getBytes(UTF_8));
+            }
+            try {
+                c.closeAfterResponse = true;
+                reply(c, request, response, true);
+            } catch (IOException ioe) {
+                c.abort();
+            }
+            return;
+        }
+
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+        StringBuilder head = statusLine(200);
+        head.append("Content-Type: ").append(TextFormat.CONTENT_TYPE_004).append("\r\n");
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        if (c.closeAfterResponse) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        try {
+            c.enqueue(ByteBuffer.wrap(head.toString().getBytes(ASCII)), true);
+            if ("HEAD".equals(request.getMethod())) {
+                c.finish();
+                return;
+            }
+            OutputStream body = new BodyOutputStream(c, chunked);
+            if (gzip) {
+                body = new GZIPOutputStream(body, CHUNK_SIZE);
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(body, UTF_8), CHUNK_SIZE);
+            TextFormat.write004(writer, Collections.enumeration(families));
+            writer.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to send the scrape", e);
+            c.abort();
+        }
+    }
+
+    private static StringBuilder statusLine(int status) {
+        String reason;
+        switch (status) {
+            case 200: reason = "OK"; break;
+            case 304: reason = "Not Modified"; break;
+            case 400: reason = "Bad Request"; break;
+            case 404: reason = "Not Found"; break;
+            case 405: reason = "Method Not Allowed"; break;
+            case 413: reason = "Payload Too Large"; break;
+            case 431: reason = "Request Header Fields Too Large"; break;
+            case 500: reason = "Internal Server Error"; break;
+            case 503: reason = "Service Unavailable"; break;
+            default: reason = "Unknown";
+        }
+        return new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+    }
+
+    private void write(Connection c) throws IOException {
+        synchronized (c) {
+            while (!c.out.isEmpty()) {
+                ByteBuffer buffer = c.out.peek();
+                c.queuedBytes -= c.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                c.out.poll();
+            }
+            c.lastActivity = System.currentTimeMillis();
+            // Let the scrape thread write more.
+            c.notifyAll();
+            if (!c.out.isEmpty()) {
+                return;
+            }
+            c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (!c.responseComplete) {
+                return;
+            }
+            c.responseComplete = false;
+        }
+        requestDuration.labels(c.route).observe((System.nanoTime() - c.requestStartNanos) / 1.0E9);
+        requestsInFlight.dec();
+        c.responding = false;
+        if (c.closeAfterResponse) {
+            close(c);
+        } else {
+            c.key.interestOps(SelectionKey.OP_READ);
+            processRequests(c);
+        }
+    }
+
+    private void close(Connection c) {
+        if (c.key.isValid() || c.channel.isOpen()) {
+            openConnections.dec();
+        }
+        synchronized (c) {
+            c.closed = true;
+            c.notifyAll();
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to close connection", e);
+        }
+        if (c.responding) {
+            c.responding = false;
+            requestsInFlight.dec();
+        }
+    }
+
+    /**
+     * A client connection. The request side is only used by the selector thread, the response queue is shared with
+     * the scrape thread writing the response.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+        long lastActivity = System.currentTimeMillis();
+        // Selector thread only.
+        boolean responding;
+        long requestStartNanos;
+        String route;
+        volatile boolean closeAfterResponse;
+        // Guarded by this.
+        final Queue<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        int queuedBytes;
+        boolean responseComplete;
+        boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Queue bytes of the response, waiting for the client to read if too much is queued already.
+         *
+         * @param mayWait false on the selector thread, which must never wait.
+         */
+        synchronized void enqueue(ByteBuffer buffer, boolean mayWait) throws IOException {
+            long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MILLIS;
+            while (mayWait && queuedBytes > HIGH_WATER_MARK && !closed) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Client did not read the response for " + WRITE_TIMEOUT_MILLIS + " ms");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing the response");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            out.add(buffer);
+            queuedBytes += buffer.remaining();
+            requestWrite();
+        }
+
+        synchronized void finish() {
+            responseComplete = true;
+            requestWrite();
+        }
+
+        /**
+         * Give up on the response, the connection is closed by the selector thread.
+         */
+        synchronized void abort() {
+            closed = true;
+            requestWrite();
+        }
+
+        synchronized boolean hasQueuedOutput() {
+            return !out.isEmpty();
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void requestWrite() {
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Cuts the body in chunks queued to the connection, with the chunked transfer coding if requested.
+     */
+    private static class BodyOutputStream extends OutputStream {
+        private final Connection connection;
+        private final boolean chunked;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        BodyOutputStream(Connection connection, boolean chunked) {
+            this.connection = connection;
+            this.chunked = chunked;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            ByteBuffer chunk;
+            if (chunked) {
+                byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(ASCII);
+                chunk = ByteBuffer.allocate(size.length + count + 2);
+                chunk.put(size).put(buffer, 0, count).put((byte) '\r').put((byte) '\n');
+                chunk.flip();
+            } else {
+                chunk = ByteBuffer.wrap(Arrays.copyOf(buffer, count));
+            }
+            count = 0;
+            connection.enqueue(chunk, true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+            if (chunked) {
+                connection.enqueue(ByteBuffer.wrap(LAST_CHUNK), true);
+            }
+            connection.finish();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package cn.com.agree.eureka;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.PlatformManagedObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PlatformMBeanAccessor reads the attributes of the platform MXBeans of this JVM (memory, threads, GC, ...) by calling
+ * their getters directly, instead of going through the MBeanServer: no interception, no {@code AttributeList} and no
+ * open type conversion.
+ *
+ * Only the attributes whose value is the same either way are read directly, that is primitives, their wrappers and
+ * strings. The others, e.g. the {@code MemoryUsage} turned into {@code CompositeData} by the MXBean mapping, are still
+ * fetched from the MBeanServer. The getters are resolved once per bean into method handles, along with the attribute
+ * infos of the bean, which do not change for platform MXBeans.
+ *
+ * The StandardMBeans and MXBeans the application registers are still read through the MBeanServer: unlike the
+ * platform MXBeans, which {@link ManagementFactory} hands out, the MBeanServer has no public way to reach the object
+ * behind their name.
+ */
+class PlatformMBeanAccessor {
+    private static final Logger LOGGER = Logger.getLogger(PlatformMBeanAccessor.class.getName());
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class);
+    private static final Set<Class<?>> DIRECT_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class,
+            Boolean.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            String.class));
+
+    private static final PlatformMBeanAccessor INSTANCE = new PlatformMBeanAccessor(platformObjects());
+
+    private final Map<ObjectName, PlatformManagedObject> objects;
+    private final Map<ObjectName, Bean> beans = new ConcurrentHashMap<ObjectName, Bean>();
+
+    PlatformMBeanAccessor(Map<ObjectName, PlatformManagedObject> objects) {
+        this.objects = objects;
+    }
+
+    /**
+     * @return the accessor of the platform MXBeans of this JVM.
+     */
+    static PlatformMBeanAccessor getInstance() {
+        return INSTANCE;
+    }
+
+    private static Map<ObjectName, PlatformManagedObject> platformObjects() {
+        Map<ObjectName, PlatformManagedObject> objects = new HashMap<ObjectName, PlatformManagedObject>();
+        for (Class<? extends PlatformManagedObject> iface : ManagementFactory.getPlatformManagementInterfaces()) {
+            try {
+                for (PlatformManagedObject object : ManagementFactory.getPlatformMXBeans(iface)) {
+                    if (object != null && object.getObjectName() != null) {
+                        objects.put(object.getObjectName(), object);
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Unable to get the platform MXBeans of " + iface.getName(), e);
+            }
+        }
+        return Collections.unmodifiableMap(objects);
+    }
+
+    /**
+     * @return the bean to read directly, null if the name is not the one of a platform MXBean of this JVM.
+     */
+    Bean getBean(MBeanServerConnection beanConn, ObjectName mbeanName) throws IOException, JMException {
+        Bean bean = beans.get(mbeanName);
+        if (bean == null) {
+            PlatformManagedObject object = objects.get(mbeanName);
+            if (object == null) {
+                return null;
+            }
+            bean = new Bean(object, beanConn.getMBeanInfo(mbeanName).getAttributes());
+            beans.put(mbeanName, bean);
+        }
+        return bean;
+    }
+
+    static class Bean {
+        final MBeanAttributeInfo[] attributes;
+        private final Map<String, MethodHandle> getters = new HashMap<String, MethodHandle>();
+
+        Bean(PlatformManagedObject object, MBeanAttributeInfo[] attributes) {
+            this.attributes = attributes;
+            List<Class<? extends PlatformManagedObject>> interfaces = new ArrayList<Class<? extends PlatformManagedObject>>();
+            for (Class<? extends PlatformManagedObject> iface : ManagementFactory.getPlatformManagementInterfaces()) {
+                if (iface.isInstance(object)) {
+                    interfaces.add(iface);
+                }
+            }
+            for (MBeanAttributeInfo attribute : attributes) {
+                if (!attribute.isReadable()) {
+                    continue;
+                }
+                Method getter = getter(interfaces, attribute);
+                if (getter == null) {
+                    continue;
+                }
+                try {
+                    getters.put(attribute.getName(),
+                            MethodHandles.publicLookup().unreflect(getter).bindTo(object).asType(GETTER_TYPE));
+                } catch (IllegalAccessException e) {
+                    LOGGER.fine("Unable to read " + attribute.getName() + " directly: " + e);
+                }
+            }
+        }
+
+        private static Method getter(List<Class<? extends PlatformManagedObject>> interfaces, MBeanAttributeInfo attribute) {
+            String prefix = attribute.isIs() ? "is" : "get";
+            for (Class<? extends PlatformManagedObject> iface : interfaces) {
+                try {
+                    Method method = iface.getMethod(prefix + attribute.getName());
+                    return DIRECT_TYPES.contains(method.getReturnType()) ? method : null;
+                } catch (NoSuchMethodException e) {
+                    // Declared by another interface of the object.
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the attribute is read by calling its getter.
+         */
+        boolean isDirect(String attrName) {
+            return getters.containsKey(attrName);
+        }
+
+        /**
+         * Read an attribute, as {@link MBeanServerConnection#getAttribute} would but without the MBeanServer.
+         */
+        Object read(String attrName) throws Throwable {
+            return getters.get(attrName).invokeExact();
+        }
+    }
+}
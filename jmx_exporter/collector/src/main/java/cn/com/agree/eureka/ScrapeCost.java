@@ -0,0 +1,175 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ScrapeCost measures what the scrapes of a collector cost the JVM they run in: the CPU time and the bytes allocated
+ * on the scraping thread, plus those of the worker threads the scrape hands work to. Each scrape is one observation
+ * of the {@code jmx_exporter_scrape_cpu_seconds} and {@code jmx_exporter_scrape_allocated_bytes} histograms, labelled
+ * with the collector. Each registry exports histograms of its own, holding the scrapes of the collectors registered
+ * with it, and only those.
+ *
+ * Work finishing after its scrape, e.g. a background refresh or a request given up on, is charged to the next scrape
+ * of the collector.
+ */
+final class ScrapeCost {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final CpuBudget UNLIMITED = new CpuBudget(0, 0);
+    private static final Map<CollectorRegistry, Histograms> REGISTRIES = new WeakHashMap<CollectorRegistry, Histograms>();
+
+    private final String collector;
+    private final List<Histogram.Child> cpuHistograms = new CopyOnWriteArrayList<Histogram.Child>();
+    private final List<Histogram.Child> allocationHistograms = new CopyOnWriteArrayList<Histogram.Child>();
+    private final AtomicLong workerCpuNanos = new AtomicLong();
+    private final AtomicLong workerAllocatedBytes = new AtomicLong();
+
+    /**
+     * @param collector the value of the {@code collector} label, telling apart the collectors of a registry.
+     */
+    ScrapeCost(String collector) {
+        this.collector = collector;
+    }
+
+    /**
+     * Observe the scrapes in the histograms of the given registry, created and registered by the first collector of
+     * the registry asking for them. Scrapes are not observed before the first call.
+     */
+    void register(CollectorRegistry registry) {
+        Histograms histograms;
+        synchronized (REGISTRIES) {
+            histograms = REGISTRIES.get(registry);
+            if (histograms == null) {
+                histograms = new Histograms(registry);
+                REGISTRIES.put(registry, histograms);
+            }
+        }
+        cpuHistograms.add(histograms.cpuSeconds.labels(collector));
+        allocationHistograms.add(histograms.allocatedBytes.labels(collector));
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, -1 if the JVM does not measure them.
+     */
+    static long currentThreadAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Start measuring a scrape running on the current thread.
+     */
+    Measurement begin() {
+        return new Measurement(UNLIMITED.begin());
+    }
+
+    /**
+     * Start measuring a scrape running on the current thread, taking its CPU time from the usage of its budget
+     * instead of measuring it again.
+     */
+    Measurement begin(CpuBudget.Usage cpuUsage) {
+        return new Measurement(cpuUsage);
+    }
+
+    /**
+     * Charge the cost of work done on another thread on behalf of the scrapes.
+     */
+    void charge(long cpuNanos, long allocatedBytes) {
+        if (cpuNanos > 0) {
+            workerCpuNanos.addAndGet(cpuNanos);
+        }
+        if (allocatedBytes > 0) {
+            workerAllocatedBytes.addAndGet(allocatedBytes);
+        }
+    }
+
+    /**
+     * Charge the cost of a task to the scrapes, on whichever thread it runs.
+     */
+    <T> Callable<T> onWorker(final Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                Measurement measurement = begin();
+                try {
+                    return task.call();
+                } finally {
+                    charge(measurement.cpuNanos(), measurement.allocatedBytes());
+                }
+            }
+        };
+    }
+
+    /**
+     * The cost of a scrape, only valid on the thread that began it.
+     */
+    class Measurement {
+        private final CpuBudget.Usage cpuUsage;
+        private final long startAllocatedBytes = currentThreadAllocatedBytes();
+
+        private Measurement(CpuBudget.Usage cpuUsage) {
+            this.cpuUsage = cpuUsage;
+        }
+
+        private long cpuNanos() {
+            return Math.max(cpuUsage.end(), 0);
+        }
+
+        private long allocatedBytes() {
+            return startAllocatedBytes >= 0 ? currentThreadAllocatedBytes() - startAllocatedBytes : 0;
+        }
+
+        /**
+         * Observe the cost of the scrape, along with the work charged since the previous one.
+         */
+        void end() {
+            boolean cpuMeasured = cpuUsage.end() >= 0;
+            long cpu = cpuNanos() + workerCpuNanos.getAndSet(0);
+            long allocated = allocatedBytes() + workerAllocatedBytes.getAndSet(0);
+            if (cpuMeasured) {
+                for (Histogram.Child cpuHistogram : cpuHistograms) {
+                    cpuHistogram.observe(cpu / 1.0E9);
+                }
+            }
+            if (startAllocatedBytes >= 0) {
+                for (Histogram.Child allocationHistogram : allocationHistograms) {
+                    allocationHistogram.observe(allocated);
+                }
+            }
+        }
+    }
+
+    private static class Histograms {
+        final Histogram cpuSeconds;
+        final Histogram allocatedBytes;
+
+        Histograms(CollectorRegistry registry) {
+            cpuSeconds = Histogram.build()
+                    .name("jmx_exporter_scrape_cpu_seconds")
+                    .help("CPU time a scrape took, its worker threads included.")
+                    .labelNames("collector")
+                    .exponentialBuckets(0.0001, 4, 10).register(registry);
+            allocatedBytes = Histogram.build()
+                    .name("jmx_exporter_scrape_allocated_bytes")
+                    .help("Bytes allocated by a scrape, its worker threads included.")
+                    .labelNames("collector")
+                    .exponentialBuckets(16384, 4, 10).register(registry);
+        }
+    }
+}
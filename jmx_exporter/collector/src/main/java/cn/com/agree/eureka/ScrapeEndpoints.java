@@ -0,0 +1,89 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.CollectorRegistry;
+import org.yaml.snakeyaml.Yaml;
+
+import javax.management.MalformedObjectNameException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ScrapeEndpoints serves further {@link JmxCollector} configurations on paths of their own, each with its own registry
+ * and caches, e.g. a few hot metrics scraped every 5s next to everything scraped every 60s:
+ * <pre>
+ * metric:
+ *   endpoints:
+ *     /metrics/hot: hot.yml
+ *     /metrics/full: full.yml
+ * </pre>
+ * Relative files are resolved against the directory of the main configuration, each one is reloaded when it changes
+ * as any {@link JmxCollector} configuration. The collectors share the cache of the bean key properties.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   ScrapeEndpoints endpoints = ScrapeEndpoints.load(file);
+ *   if (endpoints.isEmpty()) {
+ *     new JmxCollector(file).register();
+ *   }
+ *   endpoints.addTo(server);
+ * }
+ * </pre>
+ */
+public class ScrapeEndpoints {
+    private static final String METRIC = "metric";
+    private static final String ENDPOINTS = "endpoints";
+
+    private final Map<String, JmxCollector> collectors;
+
+    private ScrapeEndpoints(Map<String, JmxCollector> collectors) {
+        this.collectors = collectors;
+    }
+
+    public static ScrapeEndpoints load(File configFile) throws IOException, MalformedObjectNameException {
+        FileReader reader = new FileReader(configFile);
+        Map<String, Object> yamlConfig;
+        try {
+            yamlConfig = (Map<String, Object>) new Yaml().load(reader);
+        } finally {
+            reader.close();
+        }
+
+        Map<String, JmxCollector> collectors = new LinkedHashMap<String, JmxCollector>();
+        Map<String, Object> metric = yamlConfig != null ? (Map<String, Object>) yamlConfig.get(METRIC) : null;
+        if (metric == null || metric.get(ENDPOINTS) == null) {
+            return new ScrapeEndpoints(collectors);
+        }
+        JmxMBeanPropertyCache propertyCache = new JmxMBeanPropertyCache(true);
+        for (Map.Entry<String, Object> endpoint : ((Map<String, Object>) metric.get(ENDPOINTS)).entrySet()) {
+            String path = endpoint.getKey();
+            if (!path.startsWith("/") || path.equals(NioHttpServer.HEALTHY_PATH)) {
+                throw new IllegalArgumentException("Invalid endpoint path: " + path);
+            }
+            File file = new File((String) endpoint.getValue());
+            if (!file.isAbsolute()) {
+                file = new File(configFile.getAbsoluteFile().getParentFile(), file.getPath());
+            }
+            collectors.put(path, new JmxCollector(file, propertyCache, path));
+        }
+        return new ScrapeEndpoints(collectors);
+    }
+
+    public boolean isEmpty() {
+        return collectors.isEmpty();
+    }
+
+    /**
+     * Serve each endpoint from a registry of its own.
+     */
+    public void addTo(NioHttpServer server) {
+        for (Map.Entry<String, JmxCollector> endpoint : collectors.entrySet()) {
+            CollectorRegistry registry = new CollectorRegistry();
+            endpoint.getValue().register(registry);
+            server.addRegistry(endpoint.getKey(), registry);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cn.com.agree.eureka;
+
+import javax.management.ObjectName;
+
+/**
+ * ScrapeEvents reports the phases of a scrape to Java Flight Recorder.
+ *
+ * This is the Java 8 version, which does nothing. On Java 11 and later the version under {@code src/main/java11}
+ * is loaded from the multi-release jar instead, and emits {@code jdk.jfr.Event}s. Each {@code begin} method returns
+ * the event in flight, or null when the event type is disabled, to be passed to the matching {@code end} method.
+ */
+final class ScrapeEvents {
+    private ScrapeEvents() {
+    }
+
+    static Object beginScrape() {
+        return null;
+    }
+
+    static void endScrape(Object event, String jmxUrl, int metricFamilies, boolean failed) {
+    }
+
+    static Object beginBean() {
+        return null;
+    }
+
+    static void endBean(Object event, ObjectName mbeanName, int fetchedAttributes) {
+    }
+
+    static Object beginRuleMatch() {
+        return null;
+    }
+
+    static void endRuleMatch(Object event, String beanName, String attrName, int ruleIndex) {
+    }
+}
@@ -0,0 +1,35 @@
+package cn.com.agree.eureka;
+
+import cn.com.agree.eureka.core.NamedThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScrapeExecutors creates the executors of the scrapes that mostly wait on remote JMX calls: the scrapes of the Eureka
+ * JMX targets and the probes. Their callers bound how many scrapes run at the same time.
+ *
+ * This is the Java 8 version, a pool of platform threads at the lowest priority. It keeps {@code threads} of them and
+ * starts more while those are all busy, so that a scrape given up on while stuck in a JMX call ignoring interrupts does
+ * not hold back the next ones. On Java 21 and later the version under {@code src/main/java21} is loaded from the
+ * multi-release jar instead, and runs each task on a virtual thread of its own, so that thousands of blocking RMI
+ * calls may be in flight without sizing any pool.
+ */
+final class ScrapeExecutors {
+    private ScrapeExecutors() {
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads.
+     */
+    static boolean isVirtual() {
+        return false;
+    }
+
+    static ExecutorService newExecutor(String name, boolean daemon, int threads) {
+        return new ThreadPoolExecutor(threads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory(name, daemon, Thread.MIN_PRIORITY));
+    }
+}
@@ -0,0 +1,32 @@
+package cn.com.agree.eureka;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * ScrapeRequest carries the metric names a scrape was asked for with {@code name[]} to the collectors, so that they
+ * can leave out the work for the others. It is set by {@link NioHttpServer} on the scrape thread for the duration of
+ * the collection.
+ */
+final class ScrapeRequest {
+    private static final ThreadLocal<Set<String>> REQUESTED_NAMES = new ThreadLocal<Set<String>>();
+
+    private ScrapeRequest() {
+    }
+
+    /**
+     * @return the names requested by the scrape running on this thread, empty if every metric is requested.
+     */
+    static Set<String> requestedNames() {
+        Set<String> names = REQUESTED_NAMES.get();
+        return names != null ? names : Collections.<String>emptySet();
+    }
+
+    static void begin(Set<String> names) {
+        REQUESTED_NAMES.set(Collections.unmodifiableSet(names));
+    }
+
+    static void end() {
+        REQUESTED_NAMES.remove();
+    }
+}
@@ -0,0 +1,98 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Times the phases of the exporter startup, each phase lasting from the previous mark to its own.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   StartupPhases phases = new StartupPhases().register();
+ *   new JmxCollector(file).register();
+ *   phases.mark("jmx");
+ * }
+ * </pre>
+ * Metrics being exported:
+ * <pre>
+ *   jmx_exporter_startup_phase_seconds{phase="jmx",} 0.012
+ *   jmx_exporter_startup_phase_loaded_classes{phase="jmx",} 310.0
+ *   jmx_exporter_startup_seconds 0.034
+ * </pre>
+ * The classes are counted JVM wide, those the application loads during a phase are included.
+ */
+public class StartupPhases extends Collector {
+    private static final ClassLoadingMXBean CLASS_LOADING = ManagementFactory.getClassLoadingMXBean();
+
+    private final List<Phase> phases = Collections.synchronizedList(new ArrayList<Phase>());
+    private final long startNanos;
+    private long lastNanos;
+    private long lastLoadedClasses;
+
+    public StartupPhases() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param startNanos when the startup began, as given by {@link System#nanoTime()}.
+     */
+    public StartupPhases(long startNanos) {
+        this.startNanos = startNanos;
+        this.lastNanos = startNanos;
+        this.lastLoadedClasses = CLASS_LOADING.getTotalLoadedClassCount();
+    }
+
+    /**
+     * End the current phase. Phases are marked from the startup thread only.
+     */
+    public void mark(String phase) {
+        long now = System.nanoTime();
+        long loadedClasses = CLASS_LOADING.getTotalLoadedClassCount();
+        phases.add(new Phase(phase, (now - lastNanos) / 1.0E9, loadedClasses - lastLoadedClasses, (now - startNanos) / 1.0E9));
+        lastNanos = now;
+        lastLoadedClasses = loadedClasses;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        GaugeMetricFamily seconds = new GaugeMetricFamily("jmx_exporter_startup_phase_seconds",
+                "Time a phase of the exporter startup took.", Collections.singletonList("phase"));
+        GaugeMetricFamily loadedClasses = new GaugeMetricFamily("jmx_exporter_startup_phase_loaded_classes",
+                "Classes loaded by the JVM during a phase of the exporter startup.", Collections.singletonList("phase"));
+        double total = 0;
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                seconds.addMetric(Collections.singletonList(phase.name), phase.seconds);
+                loadedClasses.addMetric(Collections.singletonList(phase.name), phase.loadedClasses);
+                total = phase.sinceStartSeconds;
+            }
+        }
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        mfs.add(seconds);
+        mfs.add(loadedClasses);
+        mfs.add(new GaugeMetricFamily("jmx_exporter_startup_seconds",
+                "Time from the start of the exporter to the end of its last startup phase.", total));
+        return mfs;
+    }
+
+    private static class Phase {
+        final String name;
+        final double seconds;
+        final long loadedClasses;
+        final double sinceStartSeconds;
+
+        Phase(String name, double seconds, long loadedClasses, double sinceStartSeconds) {
+            this.name = name;
+            this.seconds = seconds;
+            this.loadedClasses = loadedClasses;
+            this.sinceStartSeconds = sinceStartSeconds;
+        }
+    }
+}
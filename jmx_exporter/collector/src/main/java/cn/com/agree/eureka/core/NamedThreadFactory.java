@@ -23,6 +23,7 @@ public class NamedThreadFactory implements ThreadFactory {
     private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
     private final ThreadGroup GROUP;
     private final boolean DAEMON;
+    private final int PRIORITY;
     private String namePrefix = "EUREKA-Thread";
 
     private Map<String, ThreadMeta> tmeta = new HashMap<>();
@@ -36,10 +37,18 @@ public class NamedThreadFactory implements ThreadFactory {
     }
 
     public NamedThreadFactory(String namePrefix, boolean daemon) {
+        this(namePrefix, daemon, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param priority 线程优先级，嵌入业务JVM的采集线程使用 {@link Thread#MIN_PRIORITY}，避免与业务线程争抢CPU
+     */
+    public NamedThreadFactory(String namePrefix, boolean daemon, int priority) {
         if (namePrefix != null) {
             this.namePrefix = namePrefix;
         }
         this.DAEMON = daemon;
+        this.PRIORITY = priority;
         SecurityManager s = System.getSecurityManager();
         GROUP = (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
     }
@@ -55,8 +64,8 @@ public class NamedThreadFactory implements ThreadFactory {
         if (t.isDaemon() != DAEMON) {
             t.setDaemon(DAEMON);
         }
-        if (t.getPriority() != Thread.NORM_PRIORITY) {
-            t.setPriority(Thread.NORM_PRIORITY);
+        if (t.getPriority() != PRIORITY) {
+            t.setPriority(PRIORITY);
         }
 
         ThreadMeta meta = new ThreadMeta(t.getId(), name, System.currentTimeMillis());
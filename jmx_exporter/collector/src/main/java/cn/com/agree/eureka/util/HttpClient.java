@@ -6,6 +6,9 @@
  */
 package cn.com.agree.eureka.util;
 
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.ParseException;
@@ -15,31 +18,83 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
-public class HttpClient {
+/**
+ * 共享的 HTTP 客户端，连接池中的连接在请求之间保持（keep-alive）并复用。
+ * 不再使用时需调用 {@link #close()} 释放连接池。
+ */
+public class HttpClient implements Closeable {
 
     private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
     private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 3000;
     private static final int DEFAULT_SOCKET_TIMEOUT = 5000;
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
     private static final String CHARSET = "UTF-8";
 
-    public static void sendGet(String url, Map<String, Object> params) throws Exception {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param maxPerRoute      每个目标主机的最大连接数
+     * @param maxTotal         连接池的最大连接数
+     * @param maxIdleMillis    空闲超过该时间的连接被后台线程关闭（单位：毫秒）
+     * @param keepAliveMillis  服务端未通过 Keep-Alive 头指定时，连接保持的时间（单位：毫秒）
+     */
+    public HttpClient(int maxPerRoute, int maxTotal, long maxIdleMillis, final long keepAliveMillis) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setMaxTotal(maxTotal);
+        // 复用空闲过的连接前先检查是否已被服务端关闭
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        RequestConfig config = RequestConfig.custom().setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+                .setSocketTimeout(DEFAULT_CONNECTION_REQUEST_TIMEOUT).build();
+        httpClient = HttpClientBuilder.create().setDefaultRequestConfig(config)
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new KeepAliveStrategy(keepAliveMillis))
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS)
+                .setRetryHandler((exception, executionCount, context) -> (executionCount <= 3
+                        && exception instanceof NoHttpResponseException)).build();
+    }
+
+    /**
+     * @return 连接池的统计信息（已借出、空闲、等待中的连接数）
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    public void sendGet(String url, Map<String, Object> params) throws Exception {
         sendGet(url, params, null);
     }
 
-    public static void sendGet(String url, Map<String, Object> params, IHttpResponseHandler handler) throws Exception {
+    public void sendGet(String url, Map<String, Object> params, IHttpResponseHandler handler) throws Exception {
         sendGet(url, params, handler, -1, -1, -1);
     }
 
@@ -50,30 +105,30 @@ public class HttpClient {
      * @param connectionRequestTimeout  请求超时
      * @throws Exception 异常
      */
-    public static void sendGet(String url, Map<String, Object> params, int connectTimeout, int connectionRequestTimeout)
+    public void sendGet(String url, Map<String, Object> params, int connectTimeout, int connectionRequestTimeout)
             throws Exception {
         sendGet(url, params, null, connectTimeout, connectionRequestTimeout, -1);
     }
 
-    public static void sendGet(String url, Map<String, Object> params, IHttpResponseHandler handler, int connectTimeout,
+    public void sendGet(String url, Map<String, Object> params, IHttpResponseHandler handler, int connectTimeout,
                                int connectionRequestTimeout, int socketTimeout) throws Exception {
         send(RequestType.GET, url, params, handler, connectTimeout, connectionRequestTimeout, socketTimeout);
     }
 
-    public static void sendPost(String url, Map<String, Object> params) throws Exception {
+    public void sendPost(String url, Map<String, Object> params) throws Exception {
         sendPost(url, params, null);
     }
 
-    public static void sendPost(String url, Map<String, Object> params, IHttpResponseHandler handler) throws Exception {
+    public void sendPost(String url, Map<String, Object> params, IHttpResponseHandler handler) throws Exception {
         sendPost(url, params, handler, -1, -1, -1);
     }
 
-    public static void sendPost(String url, Map<String, Object> params, int connectTimeout,
+    public void sendPost(String url, Map<String, Object> params, int connectTimeout,
                                 int connectionRequestTimeout) throws Exception {
         sendPost(url, params, null, connectTimeout, connectionRequestTimeout, -1);
     }
 
-    public static void sendPost(String url, Map<String, Object> params, IHttpResponseHandler handler,
+    public void sendPost(String url, Map<String, Object> params, IHttpResponseHandler handler,
                                 int connectTimeout, int connectionRequestTimeout, int socketTimeout) throws Exception {
         send(RequestType.POST, url, params, handler, connectTimeout, connectionRequestTimeout, socketTimeout);
     }
@@ -90,7 +145,7 @@ public class HttpClient {
      * @param socketTimeout            读超时时间（单位：毫秒）
      * @throws Exception 请求-响应-处理 过程中发生的异常
      */
-    private static void send(RequestType requestType, String url, Map<String, Object> params,
+    private void send(RequestType requestType, String url, Map<String, Object> params,
                              IHttpResponseHandler handler, int connectTimeout, int connectionRequestTimeout, int socketTimeout)
             throws Exception {
 
@@ -120,21 +175,39 @@ public class HttpClient {
         request.setConfig(RequestConfig.custom().setConnectTimeout(connectTimeout)
                 .setConnectionRequestTimeout(connectionRequestTimeout).setSocketTimeout(socketTimeout).build());
 
-        try (CloseableHttpClient httpClient = newHttpClient()) {
-            if (handler != null) {
-                try (CloseableHttpResponse response = httpClient.execute(request)) {
-                    handler.handle(response);
-                }
-            } else {
-                try {
-                    httpClient.execute(request);
-                } catch (SocketTimeoutException e) {
-                    // ignore
-                }
+        if (handler != null) {
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                handler.handle(response);
+            }
+        } else {
+            // 必须关闭响应，否则连接不会归还连接池
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                // ignore
+            } catch (SocketTimeoutException e) {
+                // ignore
             }
         }
     }
 
+    /**
+     * 发送由调用方创建的 GET 请求，调用方可通过 {@link HttpGet#abort()} 中止请求（例如对冲请求中落后的一方）
+     *
+     * @param request                  请求
+     * @param handler                  响应处理器
+     * @param connectTimeout           连接超时时间（单位：毫秒）
+     * @param connectionRequestTimeout 获取连接超时时间（单位：毫秒）
+     * @param socketTimeout            读超时时间（单位：毫秒）
+     * @throws Exception 请求-响应-处理 过程中发生的异常，请求被中止时同样抛出异常
+     */
+    public void execute(HttpGet request, IHttpResponseHandler handler, int connectTimeout,
+                        int connectionRequestTimeout, int socketTimeout) throws Exception {
+        request.setConfig(RequestConfig.custom().setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout).setSocketTimeout(socketTimeout).build());
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            handler.handle(response);
+        }
+    }
+
     private static HttpRequestBase generateGetRequest(String url, Map<String, Object> params, int connectTimeout,
                                                       int connectionRequestTimeout, int socketTimeout) throws ParseException, IOException {
 
@@ -169,12 +242,32 @@ public class HttpClient {
         return httpPost;
     }
 
-    private static CloseableHttpClient newHttpClient() {
-        RequestConfig config = RequestConfig.custom().setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
-                .setSocketTimeout(DEFAULT_CONNECTION_REQUEST_TIMEOUT).build();
-        return HttpClientBuilder.create().setDefaultRequestConfig(config).setRetryHandler(
-                (exception, executionCount, context) -> (executionCount <= 3
-                        && exception instanceof NoHttpResponseException)).build();
+    /**
+     * 优先使用服务端 Keep-Alive 头中的 timeout，没有时使用默认的保持时间
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long keepAliveMillis;
+
+        KeepAliveStrategy(long keepAliveMillis) {
+            this.keepAliveMillis = keepAliveMillis;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // ignore
+                    }
+                }
+            }
+            return keepAliveMillis;
+        }
     }
 
     private enum RequestType {
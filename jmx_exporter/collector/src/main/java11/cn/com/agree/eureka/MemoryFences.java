@@ -0,0 +1,27 @@
+package cn.com.agree.eureka;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * MemoryFences orders the plain accesses to memory shared with other threads or processes, such as a memory-mapped
+ * file, where no volatile field can carry the ordering. This version uses the fences of {@link VarHandle}.
+ */
+final class MemoryFences {
+
+    private MemoryFences() {
+    }
+
+    /**
+     * The loads and stores before the fence are not reordered with the stores after it.
+     */
+    static void releaseFence() {
+        VarHandle.releaseFence();
+    }
+
+    /**
+     * The loads before the fence are not reordered with the loads and stores after it.
+     */
+    static void acquireFence() {
+        VarHandle.acquireFence();
+    }
+}
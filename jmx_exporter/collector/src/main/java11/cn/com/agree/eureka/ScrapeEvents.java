@@ -0,0 +1,141 @@
+package cn.com.agree.eureka;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import javax.management.ObjectName;
+
+/**
+ * ScrapeEvents reports the phases of a scrape to Java Flight Recorder.
+ *
+ * The events are only allocated while their type is enabled in a recording, and only committed when they last
+ * longer than their threshold, so the exporter costs close to nothing to the recordings that do not ask for it.
+ * Thresholds can be changed per recording, e.g. {@code cn.com.agree.eureka.RuleMatch#threshold=0 ms}.
+ */
+final class ScrapeEvents {
+    // Event instances only used to ask whether their type is enabled, without allocating.
+    private static final ScrapeEvent SCRAPE = new ScrapeEvent();
+    private static final BeanEvent BEAN = new BeanEvent();
+    private static final RuleMatchEvent RULE_MATCH = new RuleMatchEvent();
+
+    private ScrapeEvents() {
+    }
+
+    static Object beginScrape() {
+        if (!SCRAPE.isEnabled()) {
+            return null;
+        }
+        ScrapeEvent event = new ScrapeEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endScrape(Object event, String jmxUrl, int metricFamilies, boolean failed) {
+        if (event == null) {
+            return;
+        }
+        ScrapeEvent scrapeEvent = (ScrapeEvent) event;
+        scrapeEvent.end();
+        if (scrapeEvent.shouldCommit()) {
+            scrapeEvent.jmxUrl = jmxUrl;
+            scrapeEvent.metricFamilies = metricFamilies;
+            scrapeEvent.failed = failed;
+            scrapeEvent.commit();
+        }
+    }
+
+    static Object beginBean() {
+        if (!BEAN.isEnabled()) {
+            return null;
+        }
+        BeanEvent event = new BeanEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endBean(Object event, ObjectName mbeanName, int fetchedAttributes) {
+        if (event == null) {
+            return;
+        }
+        BeanEvent beanEvent = (BeanEvent) event;
+        beanEvent.end();
+        if (beanEvent.shouldCommit()) {
+            beanEvent.mbeanName = mbeanName.toString();
+            beanEvent.fetchedAttributes = fetchedAttributes;
+            beanEvent.commit();
+        }
+    }
+
+    static Object beginRuleMatch() {
+        if (!RULE_MATCH.isEnabled()) {
+            return null;
+        }
+        RuleMatchEvent event = new RuleMatchEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endRuleMatch(Object event, String beanName, String attrName, int ruleIndex) {
+        if (event == null) {
+            return;
+        }
+        RuleMatchEvent ruleMatchEvent = (RuleMatchEvent) event;
+        ruleMatchEvent.end();
+        if (ruleMatchEvent.shouldCommit()) {
+            ruleMatchEvent.beanName = beanName;
+            ruleMatchEvent.attrName = attrName;
+            ruleMatchEvent.ruleIndex = ruleIndex;
+            ruleMatchEvent.commit();
+        }
+    }
+
+    @Name("cn.com.agree.eureka.Scrape")
+    @Label("JMX Scrape")
+    @Description("A call to JmxCollector.collect")
+    @Category("JMX Exporter")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class ScrapeEvent extends Event {
+        @Label("JMX URL")
+        String jmxUrl;
+        @Label("Metric Families")
+        int metricFamilies;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("cn.com.agree.eureka.Bean")
+    @Label("JMX Bean Scrape")
+    @Description("Fetching the attributes of one mBean")
+    @Category("JMX Exporter")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class BeanEvent extends Event {
+        @Label("MBean Name")
+        String mbeanName;
+        @Label("Fetched Attributes")
+        @Description("Attributes fetched from the MBeanServer, the others were served from the cache")
+        int fetchedAttributes;
+    }
+
+    @Name("cn.com.agree.eureka.RuleMatch")
+    @Label("JMX Rule Match")
+    @Description("Matching one attribute value against the rules")
+    @Category("JMX Exporter")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class RuleMatchEvent extends Event {
+        @Label("Bean Name")
+        String beanName;
+        @Label("Attribute Name")
+        String attrName;
+        @Label("Rule Index")
+        @Description("Index of the matched rule in the configuration, -1 if none matched")
+        int ruleIndex;
+    }
+}
@@ -0,0 +1,28 @@
+package cn.com.agree.eureka;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ScrapeExecutors creates the executors of the scrapes that mostly wait on remote JMX calls: the scrapes of the Eureka
+ * JMX targets and the probes. Their callers bound how many scrapes run at the same time.
+ *
+ * Each task runs on a virtual thread of its own, which gives its carrier thread back while blocked on an RMI call.
+ * Virtual threads are always daemon threads and have no priority of their own. The JVM does not measure their CPU
+ * time nor their allocations, so the work they do is left out of {@link ScrapeCost}.
+ */
+final class ScrapeExecutors {
+    private ScrapeExecutors() {
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads.
+     */
+    static boolean isVirtual() {
+        return true;
+    }
+
+    static ExecutorService newExecutor(String name, boolean daemon, int threads) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+}
@@ -0,0 +1,70 @@
+package cn.com.agree.eureka;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000, 10000, new Random(0));
+        breaker.recordFailure(0);
+        breaker.recordFailure(0);
+        assertTrue(breaker.allowRequest(0));
+        breaker.recordSuccess();
+        breaker.recordFailure(0);
+        breaker.recordFailure(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(0));
+        assertEquals(1, breaker.getTransitions(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void testProbesWithExponentialBackoff() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 3000, new Random(0));
+        breaker.recordFailure(0);
+        long retryAt = breaker.getRetryAtMillis();
+        assertTrue(retryAt >= 500 && retryAt <= 1000);
+        assertFalse(breaker.allowRequest(retryAt - 1));
+
+        // A single probe goes through once the backoff is over.
+        assertTrue(breaker.allowRequest(retryAt));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(retryAt));
+
+        // A failed probe doubles the backoff.
+        breaker.recordFailure(retryAt);
+        long backoff = breaker.getRetryAtMillis() - retryAt;
+        assertTrue(backoff >= 1000 && backoff <= 2000);
+
+        // Up to the maximum.
+        retryAt = breaker.getRetryAtMillis();
+        assertTrue(breaker.allowRequest(retryAt));
+        breaker.recordFailure(retryAt);
+        backoff = breaker.getRetryAtMillis() - retryAt;
+        assertTrue(backoff >= 1500 && backoff <= 3000);
+    }
+
+    @Test
+    public void testSuccessfulProbeClosesTheCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 3000, new Random(0));
+        breaker.recordFailure(0);
+        assertTrue(breaker.allowRequest(breaker.getRetryAtMillis()));
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(0));
+        assertEquals(1, breaker.getTransitions(CircuitBreaker.State.HALF_OPEN));
+        assertEquals(1, breaker.getTransitions(CircuitBreaker.State.CLOSED));
+
+        // The backoff starts over.
+        breaker.recordFailure(0);
+        assertTrue(breaker.getRetryAtMillis() <= 1000);
+    }
+}
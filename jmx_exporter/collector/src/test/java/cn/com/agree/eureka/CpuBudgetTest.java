@@ -0,0 +1,29 @@
+package cn.com.agree.eureka;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CpuBudgetTest {
+
+    @Test
+    public void testUnlimitedBudgetIsNeverExhausted() {
+        CpuBudget budget = new CpuBudget(0, 0);
+        assertFalse(budget.isLimited());
+        CpuBudget.Usage usage = budget.begin();
+        budget.charge(Long.MAX_VALUE / 2);
+        assertFalse(usage.isExhausted());
+    }
+
+    @Test
+    public void testChargesExhaustTheMinuteBudget() {
+        CpuBudget budget = new CpuBudget(0, 1000000000L);
+        assertFalse(budget.begin().isExhausted());
+        // E.g. background refreshes using up the budget of the minute.
+        budget.charge(2000000000L);
+        CpuBudget.Usage usage = budget.begin();
+        assertTrue(usage.isExhausted());
+        assertTrue(usage.wasExhausted());
+    }
+}
@@ -0,0 +1,70 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class EurekaInfoCollectorTest {
+
+    // Thrown by the next refreshes when set.
+    private volatile Error failure;
+    private EurekaInfoCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new EurekaInfoCollector("server:\n  port: 8761\nmetric:\n  eureka:\n    enabled: true\n    refreshIntervalSeconds: 3600\n") {
+            @Override
+            List<MetricFamilySamples> scrapeEureka() {
+                if (failure != null) {
+                    throw failure;
+                }
+                return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily("eureka_up", "up", 1));
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        collector.close();
+    }
+
+    private Map<String, Double> samples() {
+        Map<String, Double> samples = new HashMap<String, Double>();
+        for (Collector.MetricFamilySamples mfs : collector.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                samples.put(sample.name, sample.value);
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void testFailedRefreshServesThePreviousSnapshot() throws Exception {
+        // The first refresh runs in the background as the collector starts.
+        for (int i = 0; i < 100 && samples().get("eureka_up") == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(samples().get("eureka_up"));
+        double age = samples().get("eureka_snapshot_age_seconds");
+
+        Thread.sleep(50);
+        failure = new NoClassDefFoundError("org/apache/http/impl/client/HttpClients");
+        collector.refresh();
+
+        Map<String, Double> samples = samples();
+        assertEquals(1.0, samples.get("eureka_up"), .001);
+        assertTrue(samples.get("eureka_snapshot_age_seconds") >= age + 0.05);
+        assertEquals(1.0, samples.get("eureka_refresh_errors_total"), .001);
+    }
+}
@@ -0,0 +1,111 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EurekaJmxTargetsCollectorTest {
+
+    private final List<EurekaRegistryParser.Instance> instances = new ArrayList<EurekaRegistryParser.Instance>();
+    // How long the scrape of each instance takes, by JMX URL.
+    private final Map<String, Long> scrapeMillis = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private EurekaInfoCollector registry;
+    private EurekaJmxTargetsCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new EurekaInfoCollector("server:\n  port: 8761\nmetric:\n  eureka:\n    enabled: true\n    jmxTargets: true\n    jmxTargetParallelism: 2\n    jmxTargetTimeoutSeconds: 1\n") {
+            @Override
+            List<EurekaRegistryParser.Instance> jmxTargets() {
+                return instances;
+            }
+        };
+        JmxCollector jmxCollector = new JmxCollector("---") {
+            @Override
+            List<MetricFamilySamples> scrapeTarget(String jmxUrl, Map<String, String> targetLabels,
+                                                   JmxConnectionPool connectionPool) {
+                maxInFlight.set(Math.max(maxInFlight.get(), inFlight.incrementAndGet()));
+                try {
+                    Thread.sleep(scrapeMillis.get(jmxUrl));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                List<String> labelNames = new ArrayList<String>(targetLabels.keySet());
+                List<String> labelValues = new ArrayList<String>(targetLabels.values());
+                return new ArrayList<MetricFamilySamples>(Arrays.asList(new MetricFamilySamples("up", Type.GAUGE, "up",
+                        Arrays.asList(new MetricFamilySamples.Sample("up", labelNames, labelValues, 1)))));
+            }
+        };
+        collector = new EurekaJmxTargetsCollector(registry, jmxCollector);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        collector.close();
+        registry.close();
+    }
+
+    private void addInstance(String instanceId, long millis) {
+        EurekaRegistryParser.Instance instance = new EurekaRegistryParser.Instance();
+        instance.app = "ORDER";
+        instance.hostName = instanceId;
+        instance.instanceId = instanceId;
+        instance.status = "UP";
+        instance.jmxPort = "1099";
+        instances.add(instance);
+        scrapeMillis.put(EurekaJmxTargetsCollector.jmxUrl(instance), millis);
+    }
+
+    private Map<String, Double> samples(String name) {
+        Map<String, Double> samples = new HashMap<String, Double>();
+        for (Collector.MetricFamilySamples mfs : collector.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                if (sample.name.equals(name)) {
+                    samples.put(sample.labelValues.get(1), sample.value);
+                }
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void testTimeoutCountsFromTheStartOfEachScrape() throws Exception {
+        // Three rounds of two scrapes, longer than the timeout altogether but well within it one by one.
+        for (int i = 0; i < 6; i++) {
+            addInstance("o" + i, 400);
+        }
+        Map<String, Double> up = samples("up");
+        assertEquals(6, up.size());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void testTargetOverItsTimeoutIsReported() throws Exception {
+        addInstance("slow", 10000);
+        addInstance("o1", 100);
+        addInstance("o2", 100);
+        long start = System.nanoTime();
+        Map<String, Double> errors = samples("jmx_scrape_error");
+        assertTrue((System.nanoTime() - start) / 1.0E9 < 5);
+        assertEquals(1.0, errors.get("slow"), .001);
+        assertNull(errors.get("o1"));
+        assertEquals(2, samples("up").size());
+    }
+}
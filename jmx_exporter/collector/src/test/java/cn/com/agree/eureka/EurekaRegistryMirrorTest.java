@@ -0,0 +1,122 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EurekaRegistryMirrorTest {
+
+    @Test
+    public void testReconcileHashCode() {
+        EurekaRegistryMirror mirror = new EurekaRegistryMirror("test");
+        mirror.applyFull(Arrays.asList(
+                instance("ORDER", "o1", "UP", null),
+                instance("ORDER", "o2", "DOWN", null),
+                instance("PAYMENT", "p1", "UP", null)));
+        assertTrue(mirror.isSynced());
+        assertEquals("DOWN_1_UP_2_", mirror.reconcileHashCode());
+    }
+
+    @Test
+    public void testDeltaIsApplied() {
+        EurekaRegistryMirror mirror = new EurekaRegistryMirror("test");
+        mirror.applyFull(Arrays.asList(instance("ORDER", "o1", "UP", null), instance("ORDER", "o2", "UP", null)));
+
+        assertTrue(mirror.applyDelta(Arrays.asList(
+                instance("ORDER", "o1", "DOWN", "MODIFIED"),
+                instance("ORDER", "o2", "UP", "DELETED"),
+                instance("PAYMENT", "p1", "STARTING", "ADDED")), "DOWN_1_STARTING_1_"));
+        assertEquals(2, mirror.samples().size());
+        assertEquals("DOWN_1_STARTING_1_", mirror.reconcileHashCode());
+
+        // The same delta is returned until it expires on the server, applying it again changes nothing.
+        assertTrue(mirror.applyDelta(Arrays.asList(
+                instance("ORDER", "o1", "DOWN", "MODIFIED"),
+                instance("ORDER", "o2", "UP", "DELETED"),
+                instance("PAYMENT", "p1", "STARTING", "ADDED")), "DOWN_1_STARTING_1_"));
+        assertEquals(2, mirror.samples().size());
+    }
+
+    @Test
+    public void testHashCodeMismatchRequiresFullFetch() {
+        EurekaRegistryMirror mirror = new EurekaRegistryMirror("test");
+        mirror.applyFull(Arrays.asList(instance("ORDER", "o1", "UP", null)));
+        // A change older than the delta retention was missed.
+        assertFalse(mirror.applyDelta(Collections.<EurekaRegistryParser.Instance>emptyList(), "UP_2_"));
+        assertFalse(mirror.isSynced());
+    }
+
+    @Test
+    public void testUnchangedInstancesAreNotRendered() {
+        EurekaRegistryMirror mirror = new EurekaRegistryMirror("test");
+        mirror.applyFull(Arrays.asList(instance("ORDER", "o1", "UP", null), instance("ORDER", "o2", "UP", null)));
+        MetricFamilySamples.Sample o1 = sample(mirror.samples(), "o1");
+        MetricFamilySamples.Sample o2 = sample(mirror.samples(), "o2");
+
+        mirror.applyFull(Arrays.asList(instance("ORDER", "o1", "UP", null), instance("ORDER", "o2", "DOWN", null)));
+        assertSame(o1, sample(mirror.samples(), "o1"));
+        assertFalse(o2 == sample(mirror.samples(), "o2"));
+        assertEquals("DOWN", sample(mirror.samples(), "o2").labelValues.get(4));
+    }
+
+    @Test
+    public void testInstancesPerApplicationAndStatus() {
+        EurekaRegistryMirror mirror = new EurekaRegistryMirror("test");
+        mirror.applyFull(Arrays.asList(
+                instance("ORDER", "o1", "UP", null),
+                instance("ORDER", "o2", "UP", null),
+                instance("ORDER", "o3", "DOWN", null),
+                instance("PAYMENT", "p1", "UP", null)));
+        List<MetricFamilySamples.Sample> nodeSamples = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> applicationSamples = new ArrayList<MetricFamilySamples.Sample>();
+        mirror.addSamples(nodeSamples, applicationSamples);
+
+        assertEquals(4, nodeSamples.size());
+        assertEquals(3, applicationSamples.size());
+        assertEquals(Arrays.asList("test", "ORDER", "DOWN"), applicationSamples.get(0).labelValues);
+        assertEquals(1, applicationSamples.get(0).value, .001);
+        assertEquals(Arrays.asList("test", "ORDER", "UP"), applicationSamples.get(1).labelValues);
+        assertEquals(2, applicationSamples.get(1).value, .001);
+        assertEquals(Arrays.asList("test", "PAYMENT", "UP"), applicationSamples.get(2).labelValues);
+        assertEquals(1, applicationSamples.get(2).value, .001);
+    }
+
+    @Test
+    public void testJmxTargets() {
+        EurekaRegistryMirror mirror = new EurekaRegistryMirror("test");
+        EurekaRegistryParser.Instance o1 = instance("ORDER", "o1", "UP", null);
+        o1.jmxPort = "9010";
+        EurekaRegistryParser.Instance o2 = instance("ORDER", "o2", "DOWN", null);
+        o2.jmxPort = "9010";
+        mirror.applyFull(Arrays.asList(o1, o2, instance("PAYMENT", "p1", "UP", null)));
+        assertEquals(Arrays.asList(o1), mirror.jmxTargets());
+    }
+
+    private static MetricFamilySamples.Sample sample(List<MetricFamilySamples.Sample> samples, String instanceId) {
+        for (MetricFamilySamples.Sample sample : samples) {
+            if (sample.labelValues.get(3).equals(instanceId)) {
+                return sample;
+            }
+        }
+        return null;
+    }
+
+    private static EurekaRegistryParser.Instance instance(String app, String instanceId, String status, String actionType) {
+        EurekaRegistryParser.Instance instance = new EurekaRegistryParser.Instance();
+        instance.app = app;
+        instance.hostName = instanceId + ".example.com";
+        instance.instanceId = instanceId;
+        instance.status = status;
+        instance.actionType = actionType;
+        return instance;
+    }
+}
@@ -0,0 +1,105 @@
+package cn.com.agree.eureka;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EurekaRegistryParserTest {
+
+    private static final String APPS = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+            + "<applications>\n"
+            + "  <versions__delta>1</versions__delta>\n"
+            + "  <apps__hashcode>DOWN_1_UP_2_</apps__hashcode>\n"
+            + "  <application>\n"
+            + "    <name>ORDER</name>\n"
+            + "    <instance>\n"
+            + "      <instanceId>10.0.0.1:order:8080</instanceId>\n"
+            + "      <hostName>10.0.0.1</hostName>\n"
+            + "      <app>ORDER</app>\n"
+            + "      <status>UP</status>\n"
+            + "      <port enabled=\"true\">8080</port>\n"
+            + "      <leaseInfo><renewalIntervalInSecs>30</renewalIntervalInSecs><durationInSecs>90</durationInSecs></leaseInfo>\n"
+            + "      <ipAddr>10.0.0.1</ipAddr>\n"
+            + "      <metadata><status>ignored</status><jmx.port>9010</jmx.port><prometheus.port>9404</prometheus.port><app>ignored</app></metadata>\n"
+            + "    </instance>\n"
+            + "    <instance>\n"
+            + "      <instanceId>10.0.0.2:order:8080</instanceId>\n"
+            + "      <hostName>10.0.0.2</hostName>\n"
+            + "      <app>ORDER</app>\n"
+            + "      <status>DOWN</status>\n"
+            + "    </instance>\n"
+            + "  </application>\n"
+            + "  <application>\n"
+            + "    <name>PAYMENT</name>\n"
+            + "    <instance>\n"
+            + "      <hostName>pay-1</hostName>\n"
+            + "      <app>PAYMENT</app>\n"
+            + "      <status>UP</status>\n"
+            + "    </instance>\n"
+            + "  </application>\n"
+            + "</applications>\n";
+
+    @Test
+    public void testReadsEveryInstance() throws Exception {
+        List<EurekaRegistryParser.Instance> instances = parse(APPS);
+        assertEquals(3, instances.size());
+        assertInstance(instances.get(0), "ORDER", "10.0.0.1", "10.0.0.1:order:8080", "UP");
+        assertInstance(instances.get(1), "ORDER", "10.0.0.2", "10.0.0.2:order:8080", "DOWN");
+        assertInstance(instances.get(2), "PAYMENT", "pay-1", null, "UP");
+    }
+
+    @Test
+    public void testReadsPortsFromMetadata() throws Exception {
+        List<EurekaRegistryParser.Instance> instances = parse(APPS);
+        assertEquals("10.0.0.1", instances.get(0).ipAddr);
+        assertEquals("8080", instances.get(0).port);
+        assertEquals("9010", instances.get(0).jmxPort);
+        assertEquals("9404", instances.get(0).prometheusPort);
+        assertEquals(null, instances.get(1).jmxPort);
+    }
+
+    @Test
+    public void testReadsDelta() throws Exception {
+        final List<EurekaRegistryParser.Instance> instances = new ArrayList<EurekaRegistryParser.Instance>();
+        String appsHashcode = EurekaRegistryParser.parse(new ByteArrayInputStream(APPS.replace(
+                "<status>DOWN</status>", "<status>DOWN</status><actionType>MODIFIED</actionType>").getBytes("UTF-8")), "UTF-8",
+                new EurekaRegistryParser.InstanceListener() {
+                    @Override
+                    public void onInstance(EurekaRegistryParser.Instance instance) {
+                        instances.add(instance);
+                    }
+                });
+        assertEquals("DOWN_1_UP_2_", appsHashcode);
+        assertEquals(null, instances.get(0).actionType);
+        assertEquals("MODIFIED", instances.get(1).actionType);
+    }
+
+    @Test
+    public void testEmptyRegistry() throws Exception {
+        assertEquals(0, parse("<applications><versions__delta>1</versions__delta></applications>").size());
+    }
+
+    private static List<EurekaRegistryParser.Instance> parse(String xml) throws Exception {
+        final List<EurekaRegistryParser.Instance> instances = new ArrayList<EurekaRegistryParser.Instance>();
+        EurekaRegistryParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), "UTF-8",
+                new EurekaRegistryParser.InstanceListener() {
+                    @Override
+                    public void onInstance(EurekaRegistryParser.Instance instance) {
+                        instances.add(instance);
+                    }
+                });
+        return instances;
+    }
+
+    private static void assertInstance(EurekaRegistryParser.Instance instance, String app, String hostName,
+                                       String instanceId, String status) {
+        assertEquals(app, instance.app);
+        assertEquals(hostName, instance.hostName);
+        assertEquals(instanceId, instance.instanceId);
+        assertEquals(status, instance.status);
+    }
+}
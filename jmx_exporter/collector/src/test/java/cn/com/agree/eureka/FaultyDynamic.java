@@ -0,0 +1,74 @@
+package cn.com.agree.eureka;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.Arrays;
+
+/**
+ * A dynamic MBean whose bulk getAttributes fails as a whole as soon as the broken attribute is asked for, unlike
+ * standard MBeans which leave the failing attribute out.
+ */
+class FaultyDynamic implements DynamicMBean {
+    static final String OBJECT_NAME = "faulty:type=FaultyDynamic";
+
+    int singleAttributeCalls;
+
+    public static FaultyDynamic registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        FaultyDynamic mbean = new FaultyDynamic();
+        mbs.registerMBean(mbean, new ObjectName(OBJECT_NAME));
+        return mbean;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws MBeanException {
+        if ("Broken".equals(attribute)) {
+            throw new MBeanException(new UnsupportedOperationException("Broken is not supported"));
+        }
+        return 1;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        if (attributes.length == 1) {
+            singleAttributeCalls++;
+        }
+        if (Arrays.asList(attributes).contains("Broken")) {
+            throw new UnsupportedOperationException("Broken is not supported");
+        }
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            list.add(new Attribute(attribute, 1));
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return new MBeanInfo(FaultyDynamic.class.getName(), "Faulty dynamic MBean", new MBeanAttributeInfo[]{
+                new MBeanAttributeInfo("Good", "int", "Good", true, false, false),
+                new MBeanAttributeInfo("Broken", "int", "Broken", true, false, false),
+        }, null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,28 @@
+package cn.com.agree.eureka;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface FaultyMBean {
+    public int getGood();
+    public int getBroken();
+}
+
+class Faulty implements FaultyMBean {
+    static final String OBJECT_NAME = "faulty:type=Faulty";
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName(OBJECT_NAME);
+        Faulty mbean = new Faulty();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    public int getGood() {
+        return 1;
+    }
+
+    public int getBroken() {
+        throw new UnsupportedOperationException("Broken is not supported");
+    }
+}
@@ -0,0 +1,56 @@
+package cn.com.agree.eureka;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpSdTargetsTest {
+
+    @Test
+    public void testOneGroupPerApplication() throws Exception {
+        HttpSdTargets targets = HttpSdTargets.render("test", Arrays.asList(
+                instance("ORDER", "o1", "8080", null),
+                instance("ORDER", "o2", "8080", "9404"),
+                instance("PAYMENT", "p1", "8081", null)));
+        assertEquals("[{\"targets\":[\"o1:8080\",\"o2:9404\"],\"labels\":{\"eureka_cluster\":\"test\",\"application\":\"ORDER\"}},"
+                        + "{\"targets\":[\"p1:8081\"],\"labels\":{\"eureka_cluster\":\"test\",\"application\":\"PAYMENT\"}}]",
+                new String(targets.getBody(), "UTF-8"));
+    }
+
+    @Test
+    public void testInstancesWithoutPortAreLeftOut() throws Exception {
+        HttpSdTargets targets = HttpSdTargets.render("test", Arrays.asList(instance("ORDER", "o1", null, null)));
+        assertEquals("[]", new String(targets.getBody(), "UTF-8"));
+        assertEquals(HttpSdTargets.EMPTY.getEtag(), targets.getEtag());
+    }
+
+    @Test
+    public void testEtagChangesWithTheTargets() {
+        HttpSdTargets targets = HttpSdTargets.render("test", Arrays.asList(instance("ORDER", "o1", "8080", null)));
+        assertEquals(targets.getEtag(),
+                HttpSdTargets.render("test", Arrays.asList(instance("ORDER", "o1", "8080", null))).getEtag());
+        assertFalse(targets.getEtag().equals(
+                HttpSdTargets.render("test", Arrays.asList(instance("ORDER", "o2", "8080", null))).getEtag()));
+
+        assertTrue(targets.matches(targets.getEtag()));
+        assertTrue(targets.matches("\"other\", " + targets.getEtag()));
+        assertTrue(targets.matches("*"));
+        assertFalse(targets.matches("\"other\""));
+        assertFalse(targets.matches(null));
+    }
+
+    private static EurekaRegistryParser.Instance instance(String app, String hostName, String port, String prometheusPort) {
+        EurekaRegistryParser.Instance instance = new EurekaRegistryParser.Instance();
+        instance.app = app;
+        instance.hostName = hostName;
+        instance.instanceId = hostName;
+        instance.status = "UP";
+        instance.port = port;
+        instance.prometheusPort = prometheusPort;
+        return instance;
+    }
+}
@@ -7,7 +7,14 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -33,6 +40,7 @@ public class JmxCollectorTest {
         TomcatServlet.registerBean(mbs);
         Bool.registerBean(mbs);
         Camel.registerBean(mbs);
+        Ticker.registerBean(mbs);
     }
 
     @Before
@@ -284,4 +292,191 @@ public class JmxCollectorTest {
         assertTrue(registry.getSampleValue("jmx_scrape_cached_beans", new String[]{}, new String[]{}) > 0);
         assertEquals(4.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
     }
+
+    @Test
+    public void testIntervalServesValueFromLastFetch() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks\n  interval: 60".replace('`','"')).register(registry);
+        double first = registry.getSampleValue("ticks", new String[]{}, new String[]{});
+        assertEquals(first, registry.getSampleValue("ticks", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test
+    public void testNoIntervalFetchesOnEveryScrape() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks".replace('`','"')).register(registry);
+        double first = registry.getSampleValue("ticks", new String[]{}, new String[]{});
+        assertEquals(first + 1, registry.getSampleValue("ticks", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test
+    public void testExpensiveBeansAreServedFromCache() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        Slow.registerBean(mbs);
+        try {
+            JmxCollector jc = new JmxCollector("\n---\nexpensiveBeanThresholdMillis: 10\nexpensiveBeanRefreshSeconds: 3600\nwhitelistObjectNames:\n- `slow:*`\nrules:\n- pattern: `^slow<type=Slow><>Calls`\n  name: calls".replace('`','"')).register(registry);
+            assertEquals(1.0, registry.getSampleValue("calls", new String[]{}, new String[]{}), .001);
+            assertEquals(1.0, registry.getSampleValue("jmx_scrape_async_beans", new String[]{}, new String[]{}), .001);
+            assertEquals(1.0, registry.getSampleValue("calls", new String[]{}, new String[]{}), .001);
+            assertTrue(registry.getSampleValue("jmx_scrape_async_bean_cost_seconds", new String[]{"object_name"}, new String[]{Slow.OBJECT_NAME}) > 0.01);
+        } finally {
+            mbs.unregisterMBean(new ObjectName(Slow.OBJECT_NAME));
+        }
+    }
+
+    @Test
+    public void testFailingAttributesAreBlacklisted() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        Faulty.registerBean(mbs);
+        try {
+            JmxCollector jc = new JmxCollector("\n---\nattributeFailureThreshold: 2\nwhitelistObjectNames:\n- `faulty:*`".replace('`','"')).register(registry);
+            assertEquals(1.0, registry.getSampleValue("faulty_Faulty_Good", new String[]{}, new String[]{}), .001);
+            assertEquals(1.0, registry.getSampleValue("jmx_scrape_blacklisted_attributes", new String[]{}, new String[]{}), .001);
+            assertEquals(1.0, registry.getSampleValue("faulty_Faulty_Good", new String[]{}, new String[]{}), .001);
+        } finally {
+            mbs.unregisterMBean(new ObjectName(Faulty.OBJECT_NAME));
+        }
+    }
+
+    @Test
+    public void testFailingBulkFetchIsSplitAndCountsOneFailurePerScrape() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        FaultyDynamic bean = FaultyDynamic.registerBean(mbs);
+        try {
+            JmxCollector jc = new JmxCollector("\n---\nattributeFailureThreshold: 2\nwhitelistObjectNames:\n- `faulty:type=FaultyDynamic`".replace('`','"')).register(registry);
+            // One failure after the first scrape, below the threshold.
+            assertEquals(0.0, registry.getSampleValue("jmx_scrape_blacklisted_attributes", new String[]{}, new String[]{}), .001);
+            // The bulk call failed, the attributes were then fetched one by one.
+            assertEquals(2, bean.singleAttributeCalls);
+            // Second failure in a row, blacklisted.
+            assertEquals(1.0, registry.getSampleValue("jmx_scrape_blacklisted_attributes", new String[]{}, new String[]{}), .001);
+            assertEquals(1.0, registry.getSampleValue("faulty_FaultyDynamic_Good", new String[]{}, new String[]{}), .001);
+        } finally {
+            mbs.unregisterMBean(new ObjectName(FaultyDynamic.OBJECT_NAME));
+        }
+    }
+
+    @Test
+    public void testBeansWithoutSamplesAreSkipped() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `ticker:*`\n- `boolean:*`\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks\n  cache: true".replace('`','"')).register(registry);
+        double first = registry.getSampleValue("ticks", new String[]{}, new String[]{});
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_skipped_beans", new String[]{}, new String[]{}), .001);
+        assertEquals(first + 2, registry.getSampleValue("ticks", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test
+    public void testReregisteredBeansAreFetchedAgain() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("swap:type=Swap");
+        mbs.registerMBean(new Bool(), name);
+        try {
+            JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `swap:*`\nrules:\n- pattern: `^swap<type=Swap><>Ticks`\n  name: ticks\n  cache: true".replace('`','"')).register(registry);
+            assertNull(registry.getSampleValue("ticks", new String[]{}, new String[]{}));
+            assertEquals(1.0, registry.getSampleValue("jmx_scrape_skipped_beans", new String[]{}, new String[]{}), .001);
+            // Replaced between two scrapes, the bean is never found missing by a scrape.
+            mbs.unregisterMBean(name);
+            mbs.registerMBean(new Ticker(), name);
+            assertEquals(1.0, registry.getSampleValue("ticks", new String[]{}, new String[]{}), .001);
+        } finally {
+            mbs.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testBeansMatchedOnValueAreNotSkipped() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `boolean:*`\nrules:\n- pattern: `^boolean<Type=Test><>True: false`\n  name: never_true".replace('`','"')).register(registry);
+        assertNull(registry.getSampleValue("never_true", new String[]{}, new String[]{}));
+        assertEquals(0.0, registry.getSampleValue("jmx_scrape_skipped_beans", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test
+    public void testTableRowsAddedLaterAreExported() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        Rows bean = Rows.registerBean(mbs);
+        try {
+            bean.rows.put("initial", 1);
+            JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `rows:*`\nrules:\n- pattern: `^rows<type=Rows, name=added><>Rows`\n  name: added_row\n  cache: true".replace('`','"')).register(registry);
+            assertNull(registry.getSampleValue("added_row", new String[]{}, new String[]{}));
+            // The row index is a label, so the table is fetched again even though no row matched.
+            bean.rows.put("added", 2);
+            assertEquals(2.0, registry.getSampleValue("added_row", new String[]{}, new String[]{}), .001);
+        } finally {
+            mbs.unregisterMBean(new ObjectName(Rows.OBJECT_NAME));
+        }
+    }
+
+    @Test
+    public void testTargetSamplesCarryTargetLabels() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `boolean:*`\nrules:\n- pattern: `^boolean<Type=Test><>True: true`\n  name: always_true".replace('`','"'));
+        Map<String, String> targetLabels = new LinkedHashMap<String, String>();
+        targetLabels.put("application", "ORDER");
+        targetLabels.put("instance_id", "o1");
+        Map<String, Collector.MetricFamilySamples.Sample> samples = new HashMap<String, Collector.MetricFamilySamples.Sample>();
+        for (Collector.MetricFamilySamples mfs : jc.scrapeTarget("", targetLabels, null)) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                samples.put(sample.name, sample);
+            }
+        }
+        assertEquals(Arrays.asList("application", "instance_id"), samples.get("always_true").labelNames);
+        assertEquals(Arrays.asList("ORDER", "o1"), samples.get("always_true").labelValues);
+        assertEquals(0.0, samples.get("jmx_scrape_error").value, .001);
+        assertEquals(Arrays.asList("ORDER", "o1"), samples.get("jmx_scrape_error").labelValues);
+    }
+
+    @Test
+    public void testFilteredScrapeOnlyFetchesRequestedMetrics() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `ticker:*`\n- `boolean:*`\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks\n- pattern: `^boolean<Type=Test><>True: true`\n  name: always_true".replace('`','"'));
+        double first = sampleValues(jc.collect()).get("ticks");
+
+        Map<String, Double> filtered;
+        ScrapeRequest.begin(new HashSet<String>(Arrays.asList("always_true")));
+        try {
+            filtered = sampleValues(jc.collect());
+        } finally {
+            ScrapeRequest.end();
+        }
+        assertEquals(1.0, filtered.get("always_true"), .001);
+        assertNull(filtered.get("ticks"));
+
+        // The ticker was left alone by the filtered scrape.
+        assertEquals(first + 1, sampleValues(jc.collect()).get("ticks"), .001);
+    }
+
+    @Test
+    public void testFilteredScrapeWithoutFullScrapeFetchesEverything() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- `ticker:*`\n- `boolean:*`\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks\n- pattern: `^boolean<Type=Test><>True: true`\n  name: always_true".replace('`','"'));
+        ScrapeRequest.begin(new HashSet<String>(Arrays.asList("always_true")));
+        try {
+            assertNotNull(sampleValues(jc.collect()).get("ticks"));
+        } finally {
+            ScrapeRequest.end();
+        }
+    }
+
+    @Test
+    public void testScrapeOverCpuBudgetSkipsBeansNeverFetched() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nscrapeCpuBudgetMillisPerMinute: 0.000001\nwhitelistObjectNames:\n- `ticker:*`\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks".replace('`','"'));
+        // Connecting and querying the beans already used up the budget.
+        Map<String, Double> values = sampleValues(jc.collect());
+        assertNull(values.get("ticks"));
+        assertEquals(1.0, values.get("jmx_scrape_cpu_budget_exhausted"), .001);
+        assertEquals(0.0, values.get("jmx_scrape_error"), .001);
+    }
+
+    @Test
+    public void testScrapeWithinCpuBudgetFetches() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nscrapeCpuBudgetMillis: 60000\nscrapeCpuBudgetMillisPerMinute: 60000\nwhitelistObjectNames:\n- `ticker:*`\nrules:\n- pattern: `^ticker<type=Ticker><>Ticks`\n  name: ticks".replace('`','"'));
+        double first = sampleValues(jc.collect()).get("ticks");
+        Map<String, Double> values = sampleValues(jc.collect());
+        assertEquals(first + 1, values.get("ticks"), .001);
+        assertEquals(0.0, values.get("jmx_scrape_cpu_budget_exhausted"), .001);
+    }
+
+    private static Map<String, Double> sampleValues(List<Collector.MetricFamilySamples> mfsList) {
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                values.put(sample.name, sample.value);
+            }
+        }
+        return values;
+    }
 }
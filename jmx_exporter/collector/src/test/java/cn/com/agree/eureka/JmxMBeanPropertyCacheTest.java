@@ -3,6 +3,7 @@ package cn.com.agree.eureka;
 import org.junit.Test;
 
 import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 
 import static org.junit.Assert.assertEquals;
@@ -117,6 +118,17 @@ public class JmxMBeanPropertyCacheTest {
         assertTrue(testCache.getKeyPropertiesPerBean().keySet().contains(mBean3));
     }
 
+    @Test
+    public void testSharedCacheKeepsRegisteredMBeans() throws Throwable {
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache(true);
+        ObjectName registered = new ObjectName("java.lang:type=Runtime");
+        ObjectName unregistered = new ObjectName("com.organisation:name=value1");
+        testCache.getKeyPropertyList(registered);
+        testCache.getKeyPropertyList(unregistered);
+        testCache.onlyKeepMBeans(Collections.<ObjectName>emptySet(), ManagementFactory.getPlatformMBeanServer());
+        assertEquals(Collections.singleton(registered), testCache.getKeyPropertiesPerBean().keySet());
+    }
+
     @Test
     public void testRemoveEmptyIdempotent() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
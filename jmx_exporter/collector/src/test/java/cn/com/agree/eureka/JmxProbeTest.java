@@ -0,0 +1,120 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JmxProbeTest {
+
+    private JMXConnectorServer connectorServer;
+    private JmxProbe probe;
+
+    @Before
+    public void setUp() throws Exception {
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL("service:jmx:rmi://localhost"), null, ManagementFactory.getPlatformMBeanServer());
+        connectorServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (probe != null) {
+            probe.close();
+        }
+        connectorServer.stop();
+    }
+
+    private JmxProbe newProbe(long idleConnectionMillis) throws Exception {
+        Map<String, JmxCollector> modules = new HashMap<String, JmxCollector>();
+        modules.put(JmxProbe.DEFAULT_MODULE, new JmxCollector("\n---\nwhitelistObjectNames:\n- `java.lang:type=Runtime`\nrules:\n- pattern: `^java.lang<type=Runtime><>StartTime`\n  name: start_time".replace('`', '"')));
+        return new JmxProbe(modules, 2, 1, idleConnectionMillis,
+                Collections.singletonList(Pattern.compile("10\\.0\\.0\\.[0-9]+:9010")),
+                Collections.singletonList(Pattern.compile(Pattern.quote(connectorServer.getAddress().toString()))));
+    }
+
+    private static NioHttpServer.Request request(String query) {
+        return new NioHttpServer.Request("GET", JmxProbe.PATH, query, Collections.<String, String>emptyMap());
+    }
+
+    private static Map<String, Double> sampleValues(List<Collector.MetricFamilySamples> mfsList) {
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                values.put(sample.name, sample.value);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testProbesTarget() throws Exception {
+        probe = newProbe(300000);
+        String target = URLEncoder.encode(connectorServer.getAddress().toString(), "UTF-8");
+        Map<String, Double> values = sampleValues(probe.collect(request("target=" + target), Collections.<String>emptySet()));
+        assertEquals(ManagementFactory.getRuntimeMXBean().getStartTime(), values.get("start_time"), .001);
+        assertEquals(0.0, values.get("jmx_scrape_error"), .001);
+        assertEquals(1, probe.idleConnections());
+
+        values = sampleValues(probe.collect(request("target=" + target + "&module=default"),
+                new HashSet<String>(Collections.singletonList("jmx_scrape_error"))));
+        assertEquals(Collections.singleton("jmx_scrape_error"), values.keySet());
+    }
+
+    @Test
+    public void testIdleTargetsAreClosed() throws Exception {
+        probe = newProbe(0);
+        String target = URLEncoder.encode(connectorServer.getAddress().toString(), "UTF-8");
+        probe.collect(request("target=" + target), Collections.<String>emptySet());
+        assertEquals(1, probe.idleConnections());
+        Thread.sleep(5);
+        probe.evictIdleTargets();
+        assertEquals(0, probe.idleConnections());
+    }
+
+    @Test
+    public void testRejectsMalformedProbes() throws Exception {
+        probe = newProbe(300000);
+        for (String query : new String[]{null, "module=default", "target=localhost:1&module=unknown",
+                "target=localhost", "target=ldap%3A%2F%2Fevil%3A389%2Fx"}) {
+            try {
+                probe.collect(request(query), Collections.<String>emptySet());
+                fail("Expected a 400 for " + query);
+            } catch (NioHttpServer.StatusException e) {
+                assertEquals(400, e.getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyAllowedTargetsAreProbed() throws Exception {
+        probe = newProbe(300000);
+        assertEquals("service:jmx:rmi:///jndi/rmi://10.0.0.1:9010/jmxrmi", probe.jmxUrl("10.0.0.1:9010"));
+        String allowed = connectorServer.getAddress().toString();
+        assertEquals(allowed, probe.jmxUrl(allowed));
+        for (String target : new String[]{"evil:1099", "[::1]:9010", "10.0.0.1:9011",
+                "service:jmx:rmi:///jndi/ldap://evil:389/x"}) {
+            try {
+                probe.collect(request("target=" + URLEncoder.encode(target, "UTF-8")), Collections.<String>emptySet());
+                fail("Expected a 403 for " + target);
+            } catch (NioHttpServer.StatusException e) {
+                assertEquals(403, e.getStatus());
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package cn.com.agree.eureka;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyWindowTest {
+
+    @Test
+    public void testEmptyWindow() {
+        assertEquals(-1, new LatencyWindow(10).percentile(95));
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyWindow window = new LatencyWindow(100);
+        for (int i = 100; i >= 1; i--) {
+            window.record(i);
+        }
+        assertEquals(95, window.percentile(95));
+        assertEquals(50, window.percentile(50));
+        assertEquals(100, window.percentile(100));
+        assertEquals(1, window.percentile(0));
+    }
+
+    @Test
+    public void testOnlyKeepsTheLastLatencies() {
+        LatencyWindow window = new LatencyWindow(3);
+        window.record(1000);
+        window.record(1);
+        window.record(2);
+        window.record(3);
+        assertEquals(3, window.percentile(100));
+    }
+}
@@ -0,0 +1,107 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedMetricsWriterTest {
+
+    private File file;
+    private CollectorRegistry registry;
+    private Gauge gauge;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("jmx_exporter", ".mmap");
+        registry = new CollectorRegistry();
+        gauge = Gauge.build().name("queue_size").help("Size of a queue.").labelNames("queue").register(registry);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private ByteBuffer readFile() throws Exception {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private double value(ByteBuffer buffer, int series) {
+        return buffer.getDouble(buffer.getInt(MappedMetricsWriter.VALUES_OFFSET_OFFSET) + series * 8);
+    }
+
+    @Test
+    public void testValuesAreUpdatedInPlace() throws Exception {
+        gauge.labels("in").set(3);
+        MappedMetricsWriter writer = new MappedMetricsWriter(file, registry, Collections.<String>emptySet(), 1000);
+        writer.write();
+        ByteBuffer buffer = readFile();
+        assertEquals(MappedMetricsWriter.MAGIC, buffer.getInt(0));
+        assertEquals(2, buffer.getLong(MappedMetricsWriter.SEQUENCE_OFFSET));
+        assertEquals(1, buffer.getInt(MappedMetricsWriter.SERIES_COUNT_OFFSET));
+        assertEquals(0, buffer.getInt(MappedMetricsWriter.VALUES_OFFSET_OFFSET) % 8);
+        assertEquals(3, value(buffer, 0), .001);
+        int directoryLength = buffer.getInt(MappedMetricsWriter.DIRECTORY_LENGTH_OFFSET);
+
+        gauge.labels("in").set(5);
+        writer.write();
+        buffer = readFile();
+        assertEquals(4, buffer.getLong(MappedMetricsWriter.SEQUENCE_OFFSET));
+        assertEquals(directoryLength, buffer.getInt(MappedMetricsWriter.DIRECTORY_LENGTH_OFFSET));
+        assertEquals(5, value(buffer, 0), .001);
+
+        gauge.labels("out").set(7);
+        writer.write();
+        buffer = readFile();
+        assertEquals(2, buffer.getInt(MappedMetricsWriter.SERIES_COUNT_OFFSET));
+        assertTrue(buffer.getInt(MappedMetricsWriter.DIRECTORY_LENGTH_OFFSET) > directoryLength);
+        assertEquals(7, value(buffer, 1), .001);
+
+        writer.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testFileGrowsWithTheSeries() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            gauge.labels("queue-with-a-rather-long-name-" + i).set(i);
+        }
+        MappedMetricsWriter writer = new MappedMetricsWriter(file, registry, Collections.<String>emptySet(), 1000);
+        writer.write();
+        ByteBuffer buffer = readFile();
+        assertTrue(buffer.capacity() > 64 * 1024);
+        assertEquals(5000, buffer.getInt(MappedMetricsWriter.SERIES_COUNT_OFFSET));
+        assertEquals(2, buffer.getLong(MappedMetricsWriter.SEQUENCE_OFFSET));
+        writer.close();
+    }
+
+    @Test
+    public void testOnlyTheNamedMetricsAreWritten() throws Exception {
+        gauge.labels("in").set(3);
+        Gauge.build().name("other").help("Other.").register(registry).set(1);
+        MappedMetricsWriter writer = new MappedMetricsWriter(file, registry, Collections.singleton("other"), 1000);
+        writer.write();
+        ByteBuffer buffer = readFile();
+        assertEquals(1, buffer.getInt(MappedMetricsWriter.SERIES_COUNT_OFFSET));
+        assertEquals(1, value(buffer, 0), .001);
+        writer.close();
+    }
+}
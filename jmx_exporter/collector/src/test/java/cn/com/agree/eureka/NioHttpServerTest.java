@@ -0,0 +1,206 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.GaugeMetricFamily;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioHttpServerTest {
+
+    private CollectorRegistry registry;
+    private NioHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new CollectorRegistry();
+        Gauge.build().name("a").help("a help").register(registry).set(1);
+        Gauge.build().name("b").help("b help").register(registry).set(2);
+        server = new NioHttpServer(new InetSocketAddress("localhost", 0), registry, true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testServesMetrics() throws Exception {
+        HttpURLConnection connection = open("/metrics");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+        String body = read(connection.getInputStream());
+        assertTrue(body.contains("a 1.0\n"));
+        assertTrue(body.contains("b 2.0\n"));
+        assertTrue(body.contains("jmx_exporter_http_requests_in_flight 1.0\n"));
+    }
+
+    @Test
+    public void testFiltersByName() throws Exception {
+        String body = read(open("/metrics?name[]=b").getInputStream());
+        assertFalse(body.contains("a 1.0\n"));
+        assertTrue(body.contains("b 2.0\n"));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        HttpURLConnection connection = open("/metrics");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertTrue(read(new GZIPInputStream(connection.getInputStream())).contains("a 1.0\n"));
+    }
+
+    @Test
+    public void testHandlersAndHealth() throws Exception {
+        server.addHandler("/test", new NioHttpServer.Handler() {
+            @Override
+            public NioHttpServer.Response handle(NioHttpServer.Request request) {
+                return new NioHttpServer.Response(200, "text/plain", ("hello " + request.getQuery()).getBytes())
+                        .header("X-Test", request.getHeader("x-test"));
+            }
+        });
+        HttpURLConnection connection = open("/test?q");
+        connection.setRequestProperty("X-Test", "value");
+        assertEquals("value", connection.getHeaderField("X-Test"));
+        assertEquals("hello q", read(connection.getInputStream()));
+        assertEquals("Exporter is Healthy.\n", read(open(NioHttpServer.HEALTHY_PATH).getInputStream()));
+        assertEquals(405, method(open("/metrics"), "POST").getResponseCode());
+    }
+
+    @Test
+    public void testKeepAliveAndPipelining() throws Exception {
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /-/healthy HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /-/healthy HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            String responses = read(socket.getInputStream());
+            assertEquals(2, responses.split("Exporter is Healthy.", -1).length - 1);
+            assertTrue(responses.endsWith("Exporter is Healthy.\n"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testHttp10GetsTheBodyUntilClose() throws Exception {
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.getOutputStream().write("GET /metrics HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+            String response = read(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertFalse(response.contains("Transfer-Encoding"));
+            assertTrue(response.contains("\r\n\r\n# HELP"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testRequestHeadTooLarge() throws Exception {
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            StringBuilder head = new StringBuilder("GET /metrics HTTP/1.1\r\nX-Padding: ");
+            while (head.length() < 16384) {
+                head.append('x');
+            }
+            socket.getOutputStream().write(head.toString().getBytes("US-ASCII"));
+            String response = read(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 431 "));
+            assertEquals(1, response.split("HTTP/1.1 ", -1).length - 1);
+        } finally {
+            socket.close();
+        }
+        String body = read(open("/metrics").getInputStream());
+        assertTrue(body.contains("jmx_exporter_http_requests_in_flight 1.0\n"));
+        assertTrue(body.contains("jmx_exporter_http_request_duration_seconds_count{path=\"other\",} 1.0\n"));
+    }
+
+    @Test
+    public void testRegistryPerPath() throws Exception {
+        CollectorRegistry hot = new CollectorRegistry();
+        Gauge.build().name("hot").help("hot help").register(hot).set(3);
+        server.addRegistry("/metrics/hot", hot);
+        String body = read(open("/metrics/hot").getInputStream());
+        assertTrue(body.contains("hot 3.0\n"));
+        assertFalse(body.contains("a 1.0\n"));
+        assertFalse(read(open("/metrics").getInputStream()).contains("hot 3.0\n"));
+    }
+
+    @Test
+    public void testRemoteEndpointRunsOnItsOwnExecutor() throws Exception {
+        final String[] threadName = new String[1];
+        server.addRemoteEndpoint("/probe", new NioHttpServer.MetricsSource() {
+            @Override
+            public List<Collector.MetricFamilySamples> collect(NioHttpServer.Request request, Set<String> names) {
+                threadName[0] = Thread.currentThread().getName();
+                return Collections.<Collector.MetricFamilySamples>singletonList(
+                        new GaugeMetricFamily("probed", "probed help", 4));
+            }
+        }, 2);
+        assertTrue(read(open("/probe").getInputStream()).contains("probed 4.0\n"));
+        assertTrue(threadName[0].startsWith("jmx-exporter-remote-scrape-"));
+        assertTrue(read(open("/metrics").getInputStream()).contains("a 1.0\n"));
+    }
+
+    @Test
+    public void testServersShareTheMetricsOfTheirRegistry() throws Exception {
+        NioHttpServer second = new NioHttpServer(new InetSocketAddress("localhost", 0), registry, true);
+        try {
+            Socket socket = new Socket("localhost", second.getPort());
+            try {
+                // The second server accepts the socket on its own selector thread.
+                String body = "";
+                for (int i = 0; i < 50 && !body.contains("jmx_exporter_http_open_connections 2.0\n"); i++) {
+                    Thread.sleep(20);
+                    body = read(open("/metrics").getInputStream());
+                }
+                assertTrue(body.contains("jmx_exporter_http_open_connections 2.0\n"));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            second.stop();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static HttpURLConnection method(HttpURLConnection connection, String method) throws IOException {
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
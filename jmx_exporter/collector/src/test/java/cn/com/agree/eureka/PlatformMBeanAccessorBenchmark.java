@@ -0,0 +1,70 @@
+package cn.com.agree.eureka;
+
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compares scraping the platform MXBeans of this JVM through the MBeanServer and through {@link PlatformMBeanAccessor}.
+ * Not a test, run it with:
+ * <pre>
+ * java -cp collector/target/classes:collector/target/test-classes:... cn.com.agree.eureka.PlatformMBeanAccessorBenchmark [iterations]
+ * </pre>
+ */
+public class PlatformMBeanAccessorBenchmark {
+
+    private static class CountingReceiver implements JmxScraper.MBeanReceiver {
+        long values;
+
+        @Override
+        public long recordBean(String domain, LinkedHashMap<String, String> beanProperties, LinkedList<String> attrKeys,
+                               String attrName, String attrType, String attrDescription, Object value) {
+            values++;
+            return 0;
+        }
+    }
+
+    private static JmxScraper scraper(List<ObjectName> whitelist, CountingReceiver receiver,
+                                      PlatformMBeanAccessor platformAccessor) {
+        return new JmxScraper("", "", "", "benchmark", false, whitelist, new LinkedList<ObjectName>(), receiver,
+                new JmxMBeanPropertyCache(), new JmxAttributeCache(), new MBeanCostTracker(0, 0),
+                new AttributeBlacklist(3, 600000L), null, platformAccessor);
+    }
+
+    private static void run(String name, List<ObjectName> whitelist, PlatformMBeanAccessor platformAccessor,
+                            int iterations) throws Exception {
+        CountingReceiver receiver = new CountingReceiver();
+        JmxScraper scraper = scraper(whitelist, receiver, platformAccessor);
+        for (int i = 0; i < iterations; i++) {
+            scraper.doScrape();
+        }
+        receiver.values = 0;
+        long allocated = ScrapeCost.currentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            scraper.doScrape();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = ScrapeCost.currentThreadAllocatedBytes() - allocated;
+        System.out.printf("%-16s %10.1f us/scrape %10d bytes/scrape %6d values/scrape%n", name,
+                nanos / 1000.0 / iterations, allocated / iterations, receiver.values / iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        // Every platform bean, and the ones made of scalar attributes only, where the getters are all called directly.
+        // The OperatingSystem bean is left out of the latter, its getters read /proc and cgroup files on every call.
+        List<ObjectName> all = Arrays.asList(new ObjectName("java.lang:*"), new ObjectName("java.nio:*"));
+        List<ObjectName> scalar = Arrays.asList(new ObjectName("java.lang:type=Threading"),
+                new ObjectName("java.lang:type=ClassLoading"), new ObjectName("java.lang:type=Compilation"),
+                new ObjectName("java.nio:*"));
+        for (int round = 0; round < 3; round++) {
+            run("all generic", all, null, iterations);
+            run("all direct", all, PlatformMBeanAccessor.getInstance(), iterations);
+            run("scalar generic", scalar, null, iterations);
+            run("scalar direct", scalar, PlatformMBeanAccessor.getInstance(), iterations);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package cn.com.agree.eureka;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlatformMBeanAccessorTest {
+
+    /**
+     * Records everything passed to it, keyed by the bean, attribute path, type and description.
+     */
+    static class RecordingReceiver implements JmxScraper.MBeanReceiver {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+        @Override
+        public long recordBean(String domain, LinkedHashMap<String, String> beanProperties, LinkedList<String> attrKeys,
+                               String attrName, String attrType, String attrDescription, Object value) {
+            values.put(domain + beanProperties + attrKeys + attrName + " " + attrType + " " + attrDescription, value);
+            return 0;
+        }
+    }
+
+    static Map<String, Object> scrape(PlatformMBeanAccessor platformAccessor) throws Exception {
+        RecordingReceiver receiver = new RecordingReceiver();
+        new JmxScraper("", "", "", "test", false, Arrays.asList(new ObjectName("java.lang:*"), new ObjectName("java.nio:*")),
+                new LinkedList<ObjectName>(), receiver, new JmxMBeanPropertyCache(), new JmxAttributeCache(),
+                new MBeanCostTracker(0, 0), new AttributeBlacklist(3, 600000L), null, platformAccessor).doScrape();
+        return receiver.values;
+    }
+
+    @Test
+    public void testDirectScrapeMatchesTheMBeanServer() throws Exception {
+        Map<String, Object> generic = scrape(null);
+        Map<String, Object> direct = scrape(PlatformMBeanAccessor.getInstance());
+        assertEquals(generic.keySet(), direct.keySet());
+        for (Map.Entry<String, Object> entry : generic.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue().getClass(), direct.get(entry.getKey()).getClass());
+            if (entry.getKey().startsWith("java.lang{type=Runtime}") && !entry.getKey().contains("Uptime")) {
+                assertEquals(entry.getKey(), entry.getValue(), direct.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void testOnlySimpleAttributesAreReadDirectly() throws Throwable {
+        PlatformMBeanAccessor accessor = PlatformMBeanAccessor.getInstance();
+        PlatformMBeanAccessor.Bean threading = accessor.getBean(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME));
+        assertTrue(threading.isDirect("ThreadCount"));
+        assertTrue(threading.isDirect("ThreadCpuTimeEnabled"));
+        assertEquals(Integer.class, threading.read("ThreadCount").getClass());
+        assertFalse(threading.isDirect("AllThreadIds"));
+
+        PlatformMBeanAccessor.Bean memory = accessor.getBean(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME));
+        assertFalse(memory.isDirect("HeapMemoryUsage"));
+
+        assertNull(accessor.getBean(ManagementFactory.getPlatformMBeanServer(), new ObjectName("JMImplementation:type=MBeanServerDelegate")));
+    }
+}
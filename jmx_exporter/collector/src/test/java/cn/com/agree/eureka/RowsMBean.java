@@ -0,0 +1,41 @@
+package cn.com.agree.eureka;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public interface RowsMBean {
+    public TabularData getRows() throws OpenDataException;
+}
+
+class Rows implements RowsMBean {
+    public static final String OBJECT_NAME = "rows:type=Rows";
+
+    final Map<String, Integer> rows = new ConcurrentHashMap<String, Integer>();
+
+    public static Rows registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        Rows mbean = new Rows();
+        mbs.registerMBean(mbean, new ObjectName(OBJECT_NAME));
+        return mbean;
+    }
+
+    public TabularData getRows() throws OpenDataException {
+        CompositeType rowType = new CompositeType("row", "A row", new String[]{"name", "value"},
+                new String[]{"Name", "Value"}, new OpenType<?>[]{SimpleType.STRING, SimpleType.INTEGER});
+        TabularDataSupport table = new TabularDataSupport(new TabularType("rows", "Rows", rowType, new String[]{"name"}));
+        for (Map.Entry<String, Integer> row : rows.entrySet()) {
+            table.put(new CompositeDataSupport(rowType, new String[]{"name", "value"}, new Object[]{row.getKey(), row.getValue()}));
+        }
+        return table;
+    }
+}
@@ -0,0 +1,105 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScrapeCostTest {
+
+    private CollectorRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new CollectorRegistry();
+    }
+
+    private static double sampleValue(CollectorRegistry registry, String name, String collector) {
+        Double value = registry.getSampleValue(name, new String[]{"collector"}, new String[]{collector});
+        return value != null ? value : 0;
+    }
+
+    private double sampleValue(String name, String collector) {
+        return sampleValue(registry, name, collector);
+    }
+
+    private static JmxCollector endpointCollector(String path, String objectName) throws Exception {
+        File file = File.createTempFile("endpoint", ".yml");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("whitelistObjectNames: ['" + objectName + "']\n");
+        } finally {
+            writer.close();
+        }
+        return new JmxCollector(file, new JmxMBeanPropertyCache(), path);
+    }
+
+    @Test
+    public void testJmxScrapesAreObserved() throws Exception {
+        new JmxCollector("\n---\nwhitelistObjectNames:\n- `java.lang:type=Runtime`".replace('`', '"')).register(registry);
+        // Each collection of the registry is one scrape.
+        double count = sampleValue("jmx_exporter_scrape_cpu_seconds_count", "jmx");
+        assertEquals(count + 1, sampleValue("jmx_exporter_scrape_cpu_seconds_count", "jmx"), .001);
+        assertTrue(sampleValue("jmx_exporter_scrape_allocated_bytes_count", "jmx") > 0);
+        assertTrue(sampleValue("jmx_exporter_scrape_allocated_bytes_sum", "jmx") > 0);
+    }
+
+    @Test
+    public void testEndpointsOnlyExportTheCostOfTheirCollectors() throws Exception {
+        endpointCollector("/metrics/hot", "java.lang:type=Runtime").register(registry);
+        CollectorRegistry full = new CollectorRegistry();
+        endpointCollector("/metrics/full", "java.lang:type=Memory").register(full);
+        sampleValue("jmx_exporter_scrape_cpu_seconds_count", "/metrics/hot");
+        sampleValue(full, "jmx_exporter_scrape_cpu_seconds_count", "/metrics/full");
+
+        assertTrue(sampleValue("jmx_exporter_scrape_allocated_bytes_count", "/metrics/hot") > 0);
+        assertTrue(sampleValue(full, "jmx_exporter_scrape_allocated_bytes_count", "/metrics/full") > 0);
+        assertNull(registry.getSampleValue("jmx_exporter_scrape_allocated_bytes_count", new String[]{"collector"}, new String[]{"/metrics/full"}));
+        assertNull(full.getSampleValue("jmx_exporter_scrape_allocated_bytes_count", new String[]{"collector"}, new String[]{"/metrics/hot"}));
+    }
+
+    @Test
+    public void testScrapeWaitingForItsStartDelayIsNotObserved() throws Exception {
+        JmxCollector collector = new JmxCollector("\n---\nstartDelaySeconds: 60").register(registry);
+        try {
+            collector.collect();
+            fail("Expected the scrape to wait for its start delay");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        registry.unregister(collector);
+        assertEquals(0, sampleValue("jmx_exporter_scrape_allocated_bytes_count", "jmx"), .001);
+    }
+
+    @Test
+    public void testWorkerCostIsChargedToTheScrape() throws Exception {
+        ScrapeCost scrapeCost = new ScrapeCost("test");
+        scrapeCost.register(registry);
+        ScrapeCost.Measurement measurement = scrapeCost.begin();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(scrapeCost.onWorker(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return new byte[1 << 20];
+                }
+            })).get();
+        } finally {
+            executor.shutdown();
+        }
+        measurement.end();
+        assertEquals(1, sampleValue("jmx_exporter_scrape_allocated_bytes_count", "test"), .001);
+        assertTrue(sampleValue("jmx_exporter_scrape_allocated_bytes_sum", "test") >= 1 << 20);
+    }
+}
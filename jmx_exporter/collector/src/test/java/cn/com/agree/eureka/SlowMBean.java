@@ -0,0 +1,31 @@
+package cn.com.agree.eureka;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public interface SlowMBean {
+    public int getCalls();
+}
+
+class Slow implements SlowMBean {
+    static final String OBJECT_NAME = "slow:type=Slow";
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName(OBJECT_NAME);
+        Slow mbean = new Slow();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    public int getCalls() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return calls.incrementAndGet();
+    }
+}
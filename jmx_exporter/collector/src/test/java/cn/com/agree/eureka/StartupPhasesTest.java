@@ -0,0 +1,29 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StartupPhasesTest {
+
+    @Test
+    public void testPhasesAreTimedFromThePreviousMark() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        StartupPhases phases = new StartupPhases(System.nanoTime() - 1000000000L).register(registry);
+        assertEquals(0.0, registry.getSampleValue("jmx_exporter_startup_seconds"), .001);
+
+        phases.mark("config");
+        Thread.sleep(20);
+        phases.mark("jmx");
+        double config = registry.getSampleValue("jmx_exporter_startup_phase_seconds", new String[]{"phase"}, new String[]{"config"});
+        double jmx = registry.getSampleValue("jmx_exporter_startup_phase_seconds", new String[]{"phase"}, new String[]{"jmx"});
+        assertTrue(config >= 1);
+        assertTrue(jmx >= 0.02 && jmx < 1);
+        assertEquals(config + jmx, registry.getSampleValue("jmx_exporter_startup_seconds"), .001);
+        assertTrue(registry.getSampleValue("jmx_exporter_startup_phase_loaded_classes", new String[]{"phase"}, new String[]{"jmx"}) >= 0);
+        assertNull(registry.getSampleValue("jmx_exporter_startup_phase_seconds", new String[]{"phase"}, new String[]{"eureka"}));
+    }
+}
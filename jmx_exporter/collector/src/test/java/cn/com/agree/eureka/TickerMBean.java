@@ -0,0 +1,24 @@
+package cn.com.agree.eureka;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public interface TickerMBean {
+    public int getTicks();
+}
+
+class Ticker implements TickerMBean {
+    private final AtomicInteger ticks = new AtomicInteger();
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("ticker:type=Ticker");
+        Ticker mbean = new Ticker();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    public int getTicks() {
+        return ticks.incrementAndGet();
+    }
+}
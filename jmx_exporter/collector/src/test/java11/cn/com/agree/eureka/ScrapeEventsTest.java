@@ -0,0 +1,81 @@
+package cn.com.agree.eureka;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs on Java 11 and later only. The tests run against the classes directory, where the multi-release overlay does
+ * not apply, so the Java 11 ScrapeEvents is loaded from {@code META-INF/versions/11} by a class loader of its own.
+ */
+public class ScrapeEventsTest {
+
+    private static Method method(Class<?> events, String name, Class<?>... parameterTypes) throws Exception {
+        Method method = events.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return method;
+    }
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+        Path classes = Paths.get("target", "classes");
+        URL[] urls = {classes.resolve("META-INF/versions/11").toUri().toURL(), classes.toUri().toURL()};
+        Path file = Files.createTempFile("scrape-events", ".jfr");
+        try (URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+             Recording recording = new Recording()) {
+            Class<?> events = loader.loadClass("cn.com.agree.eureka.ScrapeEvents");
+            Method beginScrape = method(events, "beginScrape");
+            Method endScrape = method(events, "endScrape", Object.class, String.class, int.class, boolean.class);
+            Method beginBean = method(events, "beginBean");
+            Method endBean = method(events, "endBean", Object.class, ObjectName.class, int.class);
+            assertNull("disabled outside of a recording", beginScrape.invoke(null));
+
+            recording.enable("cn.com.agree.eureka.Scrape").withThreshold(Duration.ZERO);
+            recording.enable("cn.com.agree.eureka.Bean").withThreshold(Duration.ZERO);
+            recording.start();
+            Object scrape = beginScrape.invoke(null);
+            assertNotNull(scrape);
+            Object bean = beginBean.invoke(null);
+            endBean.invoke(null, bean, new ObjectName("test:type=Bean"), 2);
+            endScrape.invoke(null, scrape, "service:jmx:rmi:///jndi/rmi://host:1234/jmxrmi", 3, false);
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+            RecordedEvent scrapeEvent = null;
+            RecordedEvent beanEvent = null;
+            for (RecordedEvent event : recorded) {
+                if (event.getEventType().getName().equals("cn.com.agree.eureka.Scrape")) {
+                    scrapeEvent = event;
+                } else if (event.getEventType().getName().equals("cn.com.agree.eureka.Bean")) {
+                    beanEvent = event;
+                }
+            }
+            assertNotNull(scrapeEvent);
+            assertEquals("service:jmx:rmi:///jndi/rmi://host:1234/jmxrmi", scrapeEvent.getString("jmxUrl"));
+            assertEquals(3, scrapeEvent.getInt("metricFamilies"));
+            assertFalse(scrapeEvent.getBoolean("failed"));
+            assertNotNull(beanEvent);
+            assertEquals("test:type=Bean", beanEvent.getString("mbeanName"));
+            assertEquals(2, beanEvent.getInt("fetchedAttributes"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the metrics an agent writes with {@code metric.mmap.enabled}, see {@link MappedMetricsWriter} for the layout of
+ * the file. The metrics are printed in the Prometheus text format, as the agent would serve them:
+ * <pre>
+ *   java -cp jmx_prometheus_httpserver.jar cn.com.agree.eureka.MappedMetricsReader /tmp/jmx_exporter.mmap
+ * </pre>
+ */
+public class MappedMetricsReader {
+
+    private static final int MAX_ATTEMPTS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MappedMetricsReader <metrics file>");
+            System.exit(1);
+        }
+        Writer writer = new OutputStreamWriter(System.out, "UTF-8");
+        TextFormat.write004(writer, Collections.enumeration(read(new File(args[0]))));
+        writer.flush();
+    }
+
+    /**
+     * @return the metrics of the last update of the file.
+     * @throws IOException if the file is not one written by {@link MappedMetricsWriter}, or if it kept being
+     *                     written while reading it.
+     */
+    public static List<Collector.MetricFamilySamples> read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = map(randomAccessFile);
+            if (buffer.capacity() < MappedMetricsWriter.HEADER_SIZE || buffer.getInt(0) != MappedMetricsWriter.MAGIC) {
+                throw new IOException(file + " is not a metrics file");
+            }
+            if (buffer.getInt(4) != MappedMetricsWriter.VERSION) {
+                throw new IOException("Unsupported version " + buffer.getInt(4) + " of " + file);
+            }
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                long sequence = buffer.getLong(MappedMetricsWriter.SEQUENCE_OFFSET);
+                if ((sequence & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                // The copy is read after the sequence.
+                MemoryFences.acquireFence();
+                int seriesCount = buffer.getInt(MappedMetricsWriter.SERIES_COUNT_OFFSET);
+                int directoryLength = buffer.getInt(MappedMetricsWriter.DIRECTORY_LENGTH_OFFSET);
+                int valuesOffset = buffer.getInt(MappedMetricsWriter.VALUES_OFFSET_OFFSET);
+                if (sequence == 0) {
+                    // Nothing written yet.
+                    return new ArrayList<Collector.MetricFamilySamples>();
+                }
+                if (valuesOffset < 0 || seriesCount < 0 || directoryLength < 0
+                        || MappedMetricsWriter.HEADER_SIZE + (long) directoryLength > buffer.capacity()
+                        || valuesOffset + seriesCount * 8L > buffer.capacity()) {
+                    // The file grew since it was mapped, or the header is being written.
+                    buffer = map(randomAccessFile);
+                    continue;
+                }
+                byte[] directory = new byte[directoryLength];
+                for (int i = 0; i < directoryLength; i++) {
+                    directory[i] = buffer.get(MappedMetricsWriter.HEADER_SIZE + i);
+                }
+                double[] values = new double[seriesCount];
+                for (int i = 0; i < seriesCount; i++) {
+                    values[i] = buffer.getDouble(valuesOffset + i * 8);
+                }
+                // The copy must be complete before checking it was not overwritten meanwhile.
+                MemoryFences.acquireFence();
+                if (buffer.getLong(MappedMetricsWriter.SEQUENCE_OFFSET) == sequence) {
+                    return decode(directory, values);
+                }
+            }
+            throw new IOException(file + " kept changing while reading it");
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile randomAccessFile) throws IOException {
+        return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+    }
+
+    private static List<Collector.MetricFamilySamples> decode(byte[] directory, double[] values) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(directory));
+        int familyCount = in.readInt();
+        List<Collector.MetricFamilySamples> mfsList = new ArrayList<Collector.MetricFamilySamples>(familyCount);
+        int series = 0;
+        for (int i = 0; i < familyCount; i++) {
+            String name = in.readUTF();
+            Collector.Type type = Collector.Type.valueOf(in.readUTF());
+            String help = in.readUTF();
+            int sampleCount = in.readInt();
+            List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<Collector.MetricFamilySamples.Sample>(sampleCount);
+            for (int j = 0; j < sampleCount; j++) {
+                String sampleName = in.readUTF();
+                int labelCount = in.readInt();
+                List<String> labelNames = new ArrayList<String>(labelCount);
+                List<String> labelValues = new ArrayList<String>(labelCount);
+                for (int k = 0; k < labelCount; k++) {
+                    labelNames.add(in.readUTF());
+                    labelValues.add(in.readUTF());
+                }
+                samples.add(new Collector.MetricFamilySamples.Sample(sampleName, labelNames, labelValues, values[series++]));
+            }
+            mfsList.add(new Collector.MetricFamilySamples(name, type, help, samples));
+        }
+        return mfsList;
+    }
+}
@@ -4,7 +4,6 @@ import java.io.File;
 import java.net.InetSocketAddress;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 
 public class WebServer {
 
@@ -27,8 +26,21 @@ public class WebServer {
      }
 
      new BuildInfoCollector().register();
-     new EurekaInfoCollector(new File(args[1])).register();
-     new JmxCollector(new File(args[1])).register();
-     new HTTPServer(socket, CollectorRegistry.defaultRegistry);
+     EurekaInfoCollector eurekaCollector = new EurekaInfoCollector(new File(args[1])).register();
+     JmxCollector jmxCollector = new JmxCollector(new File(args[1]));
+     ScrapeEndpoints endpoints = ScrapeEndpoints.load(new File(args[1]));
+     if (eurekaCollector.isJmxTargetsEnabled()) {
+       // Scrape the instances registered in Eureka instead of a single JVM.
+       new EurekaJmxTargetsCollector(eurekaCollector, jmxCollector).register();
+     } else if (endpoints.isEmpty()) {
+       jmxCollector.register();
+     }
+     NioHttpServer server = new NioHttpServer(socket, CollectorRegistry.defaultRegistry, false);
+     server.addHandler(HttpSdHandler.PATH, new HttpSdHandler(eurekaCollector));
+     endpoints.addTo(server);
+     if (JmxProbe.isEnabled(new File(args[1]))) {
+       JmxProbe probe = JmxProbe.load(new File(args[1]));
+       server.addRemoteEndpoint(JmxProbe.PATH, probe, probe.getMaxConcurrentScrapes());
+     }
    }
 }
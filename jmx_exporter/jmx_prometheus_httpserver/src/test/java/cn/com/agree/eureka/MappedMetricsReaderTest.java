@@ -0,0 +1,114 @@
+package cn.com.agree.eureka;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedMetricsReaderTest {
+
+    private File file;
+    private CollectorRegistry registry;
+    private MappedMetricsWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("jmx_exporter", ".mmap");
+        registry = new CollectorRegistry();
+        writer = new MappedMetricsWriter(file, registry, Collections.<String>emptySet(), 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+    }
+
+    @Test
+    public void testReadsWhatWasWritten() throws Exception {
+        assertTrue(MappedMetricsReader.read(file).isEmpty());
+
+        Gauge gauge = Gauge.build().name("queue_size").help("Size of a queue.").labelNames("queue").register(registry);
+        gauge.labels("in").set(3);
+        gauge.labels("out").set(4);
+        Counter.build().name("requests_total").help("Requests.").register(registry).inc(5);
+        writer.write();
+
+        List<Collector.MetricFamilySamples> mfsList = MappedMetricsReader.read(file);
+        assertEquals(Collections.list(registry.metricFamilySamples()), mfsList);
+
+        gauge.labels("in").set(6);
+        writer.write();
+        Collector.MetricFamilySamples queueSize = null;
+        for (Collector.MetricFamilySamples mfs : MappedMetricsReader.read(file)) {
+            if (mfs.name.equals("queue_size")) {
+                queueSize = mfs;
+            }
+        }
+        assertEquals(Collector.Type.GAUGE, queueSize.type);
+        assertEquals("Size of a queue.", queueSize.help);
+        assertEquals(new Collector.MetricFamilySamples.Sample("queue_size", Arrays.asList("queue"), Arrays.asList("in"), 6),
+                queueSize.samples.get(0));
+    }
+
+    @Test
+    public void testNeverReadsAHalfWrittenUpdate() throws Exception {
+        final Gauge gauge = Gauge.build().name("value").help("Value.").labelNames("series").register(registry);
+        final List<String> series = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            series.add("series-" + i);
+            gauge.labels("series-" + i).set(0);
+        }
+        writer.write();
+
+        // Every series holds the same value after each update, and the series change every few updates.
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; !done.get(); i++) {
+                        if (i % 50 == 0 && series.size() < 1000) {
+                            series.add("new-" + i);
+                        }
+                        for (String name : series) {
+                            gauge.labels(name).set(i);
+                        }
+                        writer.write();
+                        Thread.yield();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writerThread.start();
+        try {
+            for (int read = 0; read < 2000; read++) {
+                List<Collector.MetricFamilySamples.Sample> samples = MappedMetricsReader.read(file).get(0).samples;
+                for (Collector.MetricFamilySamples.Sample sample : samples) {
+                    assertEquals(samples.get(0).value, sample.value, 0);
+                }
+            }
+        } finally {
+            done.set(true);
+            writerThread.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -1,55 +1,52 @@
 package cn.com.agree.eureka;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.lang.instrument.Instrumentation;
 import java.net.InetSocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import cn.com.agree.eureka.core.NamedThreadFactory;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
-import io.prometheus.client.hotspot.DefaultExports;
-import org.springframework.stereotype.Component;
+import org.yaml.snakeyaml.Yaml;
 
-import javax.annotation.PreDestroy;
 import javax.management.MalformedObjectNameException;
 
-@Component
+/**
+ * Starts the exporter in the JVM given the agent. Only what the configuration enables is loaded, so that the agent
+ * costs the application as few classes as possible: the Eureka collector and its HTTP and XML libraries are loaded
+ * with {@code metric.eureka.enabled}, the JVM metrics of simpleclient_hotspot unless {@code metric.hotspot.enabled}
+ * is false. With {@code metric.mmap.enabled} the metrics are also written to a memory-mapped file, see
+ * {@link MappedMetricsWriter}. The startup runs on a thread of its own, its phases are exported by {@link StartupPhases}.
+ */
 public class JavaAgent {
 
     private static final Logger LOGGER = Logger.getLogger(JavaAgent.class.getName());
 
-    private static ExecutorService scrapeExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("Eureka-scrape-Thread"));
-
-    static HTTPServer server;
+    static NioHttpServer server;
+    private static volatile Closeable eurekaCollector;
+    private static volatile MappedMetricsWriter mappedMetricsWriter;
 
     public static void agentmain(String agentArgument, Instrumentation instrumentation) throws Exception {
         premain(agentArgument, instrumentation);
     }
 
-    public static void premain(String agentArgument, Instrumentation instrumentation) throws Exception {
-        // Bind to all interfaces by default (this includes IPv6).
-
-
-        scrapeExecutor.execute(new Runnable() {
+    public static void premain(final String agentArgument, Instrumentation instrumentation) throws Exception {
+        final long startNanos = System.nanoTime();
+        // Starting the exporter must not delay the application, nor keep its JVM from exiting.
+        new NamedThreadFactory("jmx-exporter-startup", true, Thread.MIN_PRIORITY).newThread(new Runnable() {
             @Override
             public void run() {
                 try {
                     LOGGER.info("eureka metric scrape agent is starting...");
-                    String host = "0.0.0.0";
-                    Config config = parseConfig(agentArgument, host);
-                    new BuildInfoCollector().register();
-                    new EurekaInfoCollector(new File(config.file)).register();
-                    new JmxCollector(new File(config.file)).register();
-                    //初始化默认Exporter（注册常用的机器性能指标采集器）
-                    DefaultExports.initialize();
-                    //基于http请求的方式连接MBeanServer，通过该server来操作MBean对象
-                    server = new HTTPServer(config.socket, CollectorRegistry.defaultRegistry, true);
+                    // Bind to all interfaces by default (this includes IPv6).
+                    start(parseConfig(agentArgument, "0.0.0.0"), startNanos);
                 } catch (IllegalArgumentException e) {
                     System.err.println("Usage: -javaagent:/path/to/JavaAgent.jar=[host:]<port>:<yaml configuration file> " + e.getMessage());
                     System.exit(1);
@@ -59,20 +56,126 @@ public class JavaAgent {
                     e.printStackTrace();
                 }
             }
-        });
+        }).start();
+    }
+
+    private static void start(Config config, long startNanos) throws IOException, MalformedObjectNameException {
+        StartupPhases phases = new StartupPhases(startNanos).register();
+        File file = new File(config.file);
+        Map<?, ?> metric = metricSection(file);
+        new BuildInfoCollector().register();
+        phases.mark("config");
 
+        ScrapeEndpoints endpoints = ScrapeEndpoints.load(file);
+        if (endpoints.isEmpty()) {
+            new JmxCollector(file).register();
+        }
+        phases.mark("jmx");
+
+        if (isEnabled(metric, "hotspot", true)) {
+            //初始化默认Exporter（注册常用的机器性能指标采集器）
+            Hotspot.initialize();
+            phases.mark("hotspot");
+        }
+
+        //基于http请求的方式连接MBeanServer，通过该server来操作MBean对象
+        server = new NioHttpServer(config.socket, CollectorRegistry.defaultRegistry,
+                intValue(metric, "server", "maxConcurrentScrapes", NioHttpServer.DEFAULT_MAX_CONCURRENT_SCRAPES), true);
+        endpoints.addTo(server);
+        phases.mark("server");
+
+        if (isEnabled(metric, "eureka", false)) {
+            eurekaCollector = Eureka.start(file, server);
+            phases.mark("eureka");
+        }
+
+        if (isEnabled(metric, "mmap", false)) {
+            // Sidecars on the host read the metrics from a memory-mapped file instead of scraping the server.
+            mappedMetricsWriter = MappedMetricsWriter.load(file, CollectorRegistry.defaultRegistry);
+            mappedMetricsWriter.start();
+            LOGGER.info("writing the metrics to " + mappedMetricsWriter.getFile());
+            phases.mark("mmap");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "jmx-exporter-shutdown"));
+        LOGGER.info("eureka metric scrape agent started");
     }
 
-    @PreDestroy
-    public void destory() {
+    static void stop() {
         LOGGER.info("destroy eureka scrape agent....");
         if (server != null) {
             server.stop();
         }
-        scrapeExecutor.shutdown();
+        if (eurekaCollector != null) {
+            try {
+                eurekaCollector.close();
+            } catch (IOException e) {
+                LOGGER.fine("Unable to close the Eureka collector: " + e);
+            }
+        }
+        if (mappedMetricsWriter != null) {
+            try {
+                mappedMetricsWriter.close();
+            } catch (IOException e) {
+                LOGGER.fine("Unable to close the metrics file: " + e);
+            }
+        }
         LOGGER.info("destory eureka scrape agent completely");
     }
 
+    private static Map<?, ?> metricSection(File file) throws IOException {
+        Reader reader = new FileReader(file);
+        try {
+            Object yaml = new Yaml().load(reader);
+            Object metric = yaml instanceof Map ? ((Map<?, ?>) yaml).get("metric") : null;
+            return metric instanceof Map ? (Map<?, ?>) metric : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the {@code metric.<section>.enabled} flag of the configuration.
+     */
+    static boolean isEnabled(Map<?, ?> metric, String section, boolean defaultValue) {
+        Object config = metric != null ? metric.get(section) : null;
+        Object enabled = config instanceof Map ? ((Map<?, ?>) config).get("enabled") : null;
+        return enabled != null ? Boolean.parseBoolean(String.valueOf(enabled)) : defaultValue;
+    }
+
+    /**
+     * @return the {@code metric.<section>.<key>} number of the configuration.
+     */
+    static int intValue(Map<?, ?> metric, String section, String key, int defaultValue) {
+        Object config = metric != null ? metric.get(section) : null;
+        Object value = config instanceof Map ? ((Map<?, ?>) config).get(key) : null;
+        return value != null ? Integer.parseInt(String.valueOf(value)) : defaultValue;
+    }
+
+    /**
+     * Holds the references to simpleclient_hotspot, loaded with this class only.
+     */
+    private static class Hotspot {
+        static void initialize() {
+            io.prometheus.client.hotspot.DefaultExports.initialize();
+        }
+    }
+
+    /**
+     * Holds the references to the Eureka collector, loaded with this class only.
+     */
+    private static class Eureka {
+        static Closeable start(File file, NioHttpServer server) throws IOException, MalformedObjectNameException {
+            EurekaInfoCollector collector = new EurekaInfoCollector(file).register();
+            server.addHandler(HttpSdHandler.PATH, new HttpSdHandler(collector));
+            return collector;
+        }
+    }
+
     /**
      * Parse the Java Agent configuration. The arguments are typically specified to the JVM as a javaagent as
      * {@code -javaagent:/path/to/agent.jar=<CONFIG>}. This method parses the {@code <CONFIG>} portion.
@@ -2,6 +2,9 @@ package cn.com.agree.eureka;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.util.Map;
 
 public class TestJavaAgent {
     /**
@@ -96,4 +99,23 @@ public class TestJavaAgent {
         Assert.assertEquals("C:\\Windows\\Path\\config.yaml", config.file);
         Assert.assertEquals(8080, config.port);
     }
+
+    @Test
+    public void testSectionFlags() {
+        Map<?, ?> metric = (Map<?, ?>) ((Map<?, ?>) new Yaml().load(
+                "metric:\n  eureka:\n    enabled: true\n  hotspot:\n    enabled: false\n  probe: {}")).get("metric");
+        Assert.assertTrue(JavaAgent.isEnabled(metric, "eureka", false));
+        Assert.assertFalse(JavaAgent.isEnabled(metric, "hotspot", true));
+        Assert.assertTrue(JavaAgent.isEnabled(metric, "probe", true));
+        Assert.assertFalse(JavaAgent.isEnabled(null, "eureka", false));
+    }
+
+    @Test
+    public void testSectionNumbers() {
+        Map<?, ?> metric = (Map<?, ?>) ((Map<?, ?>) new Yaml().load(
+                "metric:\n  server:\n    maxConcurrentScrapes: 4\n  probe: {}")).get("metric");
+        Assert.assertEquals(4, JavaAgent.intValue(metric, "server", "maxConcurrentScrapes", 2));
+        Assert.assertEquals(2, JavaAgent.intValue(metric, "probe", "maxConcurrentScrapes", 2));
+        Assert.assertEquals(2, JavaAgent.intValue(null, "server", "maxConcurrentScrapes", 2));
+    }
 }